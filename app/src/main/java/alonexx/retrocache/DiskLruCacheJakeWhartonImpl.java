@@ -8,9 +8,13 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * An implementation of {@code CacheInterface} using Jake Wharton's DiskLruCache.
@@ -18,8 +22,13 @@ import java.io.OutputStream;
  * <p>There's many alternative choices of an LRU disk cache. You can find one inside
  * OkHttp library, another inside Glide, or the source code of Android Jelly Bean MR1.
  * This depends on the library integrated in your app.
+ *
+ * <p>Every write is committed to the journal when its stream is closed, and the
+ * {@code DiskLruCache} flushes the journal on every edit and commit.
  */
-public class DiskLruCacheJakeWhartonImpl implements CacheInterface, Closeable {
+public class DiskLruCacheJakeWhartonImpl
+        implements EntryCacheInterface, BatchCacheInterface, TouchableCacheInterface,
+        RemovableCacheInterface, Flushable, Closeable {
 
     private static final int DISK_VALUE_COUNT = 2;
 
@@ -36,7 +45,8 @@ public class DiskLruCacheJakeWhartonImpl implements CacheInterface, Closeable {
     public OutputStream newOutputStreamForKey(String key) throws IOException {
         DiskLruCache.Editor editor = cache.edit(key);
         if (editor == null) {
-            throw new IOException("Cache is unavailable for editing.");
+            // Wrap the cache in a KeyLockingCache to queue the concurrent writers of a key.
+            throw new IOException("Cache is unavailable for editing, key : " + key);
         }
         return new AutoCommitOutputStream(new BufferedOutputStream(editor.newOutputStream(1)), editor);
     }
@@ -64,6 +74,133 @@ public class DiskLruCacheJakeWhartonImpl implements CacheInterface, Closeable {
         }
     }
 
+    @Override
+    public CacheEntry getEntryForKey(String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+            throw new KeyNotFoundException("key : " + key);
+        }
+        try {
+            return new SnapshotCacheEntry(snapshot, Long.parseLong(snapshot.getString(0)));
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(snapshot);
+            throw e;
+        }
+    }
+
+    @Override
+    public Map<String, CacheEntry> getAll(Collection<String> keys) throws IOException {
+        Map<String, CacheEntry> entries = new LinkedHashMap<>();
+        try {
+            for (String key : keys) {
+                DiskLruCache.Snapshot snapshot = cache.get(key);
+                if (snapshot != null) {
+                    entries.put(key, new SnapshotCacheEntry(snapshot, Long.parseLong(snapshot.getString(0))));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (CacheEntry entry : entries.values()) {
+                closeQuietly(entry);
+            }
+            throw e;
+        }
+        return entries;
+    }
+
+    /**
+     * Commits the records one by one.
+     *
+     * @throws IOException if the key of a record is being edited. The records before it
+     *                     have been written.
+     */
+    @Override
+    public void putAll(Map<String, byte[]> contents) throws IOException {
+        String now = String.valueOf(System.currentTimeMillis());
+        for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+            DiskLruCache.Editor editor = cache.edit(content.getKey());
+            if (editor == null) {
+                throw new IOException("Cache is unavailable for editing, key : " + content.getKey());
+            }
+            try {
+                OutputStream out = editor.newOutputStream(1);
+                try {
+                    out.write(content.getValue());
+                } finally {
+                    out.close();
+                }
+                editor.set(0, now);
+                editor.commit();
+            } finally {
+                editor.abortUnlessCommitted();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the creation time of the record of {@code key} only. The editor of an
+     * existing entry keeps the values it doesn't set, so the content file isn't touched.
+     * Returns false if the key is being edited, or was written since it was looked up.
+     */
+    @Override
+    public boolean touch(String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+            return false;
+        }
+        DiskLruCache.Editor editor;
+        try {
+            editor = snapshot.edit();
+        } finally {
+            snapshot.close();
+        }
+        if (editor == null) {
+            return false;
+        }
+        try {
+            editor.set(0, String.valueOf(System.currentTimeMillis()));
+            editor.commit();
+        } finally {
+            editor.abortUnlessCommitted();
+        }
+        return true;
+    }
+
+    /**
+     * Removes the record of {@code key}. Returns false if there's none, or if it's being
+     * edited.
+     */
+    @Override
+    public boolean remove(String key) throws IOException {
+        return cache.remove(key);
+    }
+
+    /**
+     * Holds the lock of the {@code DiskLruCache}, which its commits take too, from the
+     * lookup of the creation time to the removal.
+     */
+    @Override
+    public boolean remove(String key, long creationTime) throws IOException {
+        synchronized (cache) {
+            DiskLruCache.Snapshot snapshot = cache.get(key);
+            if (snapshot == null) {
+                return false;
+            }
+            try {
+                if (Long.parseLong(snapshot.getString(0)) != creationTime) {
+                    return false;
+                }
+            } finally {
+                snapshot.close();
+            }
+            return cache.remove(key);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        cache.flush();
+    }
+
     @Override
     public void close() throws IOException {
         if (cache != null) {
@@ -83,7 +220,7 @@ public class DiskLruCacheJakeWhartonImpl implements CacheInterface, Closeable {
 
         @Override
         public void close() throws IOException {
-            synchronized (AutoCommitOutputStream.class) {
+            synchronized (this) {
 
                 /*
                  * If this stream is closed more than once, it should behave like doing-nothing,
@@ -92,17 +229,23 @@ public class DiskLruCacheJakeWhartonImpl implements CacheInterface, Closeable {
                 if (closed) {
                     return;
                 }
+                closed = true;
+
+                /*
+                 * A record whose content couldn't be written completely is aborted, and a
+                 * failed commit is thrown, so that the caller can tell the save is lost.
+                 */
                 try {
                     super.close();
+                } catch (IOException | RuntimeException e) {
+                    editor.abortUnlessCommitted();
+                    throw e;
+                }
+                try {
+                    editor.set(0, String.valueOf(System.currentTimeMillis()));
+                    editor.commit();
                 } finally {
-                    try {
-                        editor.set(0, String.valueOf(System.currentTimeMillis()));
-                        editor.commit();
-                        cache.flush();
-                    } catch (IOException e) {
-                        // ignore
-                    }
-                    closed = true;
+                    editor.abortUnlessCommitted();
                 }
             }
         }
@@ -132,6 +275,41 @@ public class DiskLruCacheJakeWhartonImpl implements CacheInterface, Closeable {
         }
     }
 
+    private static final class SnapshotCacheEntry implements CacheEntry {
+
+        final DiskLruCache.Snapshot snapshot;
+        final long creationTime;
+        InputStream in;
+
+        private SnapshotCacheEntry(DiskLruCache.Snapshot snapshot, long creationTime) {
+            this.snapshot = snapshot;
+            this.creationTime = creationTime;
+        }
+
+        @Override
+        public long getCreationTime() {
+            return creationTime;
+        }
+
+        @Override
+        public long getLength() {
+            return snapshot.getLength(1);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            if (in == null) {
+                in = new BufferedInputStream(snapshot.getInputStream(1));
+            }
+            return in;
+        }
+
+        @Override
+        public void close() {
+            snapshot.close();
+        }
+    }
+
     /**
      * Closes 'closeable', ignoring any checked exceptions. Does nothing if 'closeable' is null.
      */
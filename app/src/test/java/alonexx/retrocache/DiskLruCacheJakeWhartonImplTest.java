@@ -0,0 +1,122 @@
+package alonexx.retrocache;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DiskLruCacheJakeWhartonImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DiskLruCacheJakeWhartonImpl cache;
+    private CountingWriter journal;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new DiskLruCacheJakeWhartonImpl(folder.getRoot(), 1, 1024 * 1024);
+        Field cacheField = DiskLruCacheJakeWhartonImpl.class.getDeclaredField("cache");
+        cacheField.setAccessible(true);
+        DiskLruCache diskLruCache = (DiskLruCache) cacheField.get(cache);
+        Field journalField = DiskLruCache.class.getDeclaredField("journalWriter");
+        journalField.setAccessible(true);
+        journal = new CountingWriter((Writer) journalField.get(diskLruCache));
+        journalField.set(diskLruCache, journal);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.close();
+    }
+
+    @Test
+    public void flushesJournalOnceForEditAndOnceForCommit() throws IOException {
+        OutputStream out = cache.newOutputStreamForKey("key");
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        assertEquals(2, journal.flushes);
+        assertEquals(1, read("key"));
+    }
+
+    @Test
+    public void touchFlushesJournalOnceForEditAndOnceForCommit() throws IOException {
+        OutputStream out = cache.newOutputStreamForKey("key");
+        out.write(1);
+        out.close();
+        journal.flushes = 0;
+
+        assertTrue(cache.touch("key"));
+
+        assertEquals(2, journal.flushes);
+    }
+
+    @Test
+    public void closingStreamTwiceCommitsOnce() throws IOException {
+        OutputStream out = cache.newOutputStreamForKey("key");
+        out.write(1);
+        out.close();
+        out.close();
+
+        assertEquals(2, journal.flushes);
+    }
+
+    @Test
+    public void putAllThrowsWhenKeyIsBeingEdited() throws IOException {
+        OutputStream out = cache.newOutputStreamForKey("b");
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("a", new byte[]{1});
+        contents.put("b", new byte[]{2});
+        try {
+            cache.putAll(contents);
+            fail();
+        } catch (IOException expected) {
+        }
+        out.write(3);
+        out.close();
+
+        assertEquals(1, read("a"));
+        assertEquals(3, read("b"));
+    }
+
+    private int read(String key) throws IOException {
+        InputStream in = cache.getInputStreamForKey(key);
+        try {
+            return in.read();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final class CountingWriter extends FilterWriter {
+
+        int flushes;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushes++;
+            super.flush();
+        }
+    }
+}
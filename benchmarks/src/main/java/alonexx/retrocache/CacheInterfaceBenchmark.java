@@ -0,0 +1,140 @@
+package alonexx.retrocache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the writes and reads of the {@code CacheInterface} backends of the library.
+ *
+ * <p>The file backed caches are created in a temporary directory, or under the directory
+ * of the {@code retrocache.benchmark.dir} system property. The sharded backend spreads
+ * the keys over 4 segment caches; run with several threads, such as {@code -t 8}, to
+ * measure the contention it removes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class CacheInterfaceBenchmark {
+
+    private static final int KEY_COUNT = 256;
+    private static final long MAX_SIZE = 512L * 1024 * 1024;
+
+    @Param({"segment", "sharded", "offheap"})
+    public String backend;
+
+    @Param({"256", "16384", "1048576"})
+    public int size;
+
+    private CacheInterface cache;
+    private File directory;
+    private String[] keys;
+    private byte[] value;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        final byte[] buffer = new byte[8192];
+        int next;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        switch (backend) {
+            case "segment":
+                directory = createDirectory();
+                cache = new SegmentFileCache(directory, MAX_SIZE, 64 * 1024 * 1024);
+                break;
+            case "sharded":
+                directory = createDirectory();
+                final File parent = directory;
+                cache = new ShardedCache(4, MAX_SIZE, new ShardedCache.ShardFactory() {
+                    @Override
+                    public CacheInterface create(int index, long maxSize) throws IOException {
+                        return new SegmentFileCache(new File(parent, "shard-" + index), maxSize, 64 * 1024 * 1024);
+                    }
+                });
+                break;
+            case "offheap":
+                cache = new OffHeapCache(MAX_SIZE);
+                break;
+            default:
+                throw new IllegalArgumentException(backend);
+        }
+        value = new byte[size];
+        new Random(0).nextBytes(value);
+        keys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = "key" + i;
+            write(keys[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        cache.close();
+        if (directory != null) {
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    public void write(ThreadState state) throws IOException {
+        write(keys[state.next++ & (KEY_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public int read(ThreadState state) throws IOException {
+        int total = 0;
+        try (InputStream in = cache.getInputStreamForKey(keys[state.next++ & (KEY_COUNT - 1)])) {
+            int count;
+            while ((count = in.read(state.buffer)) != -1) {
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long creationTime(ThreadState state) throws IOException {
+        return cache.getCreationTimeForKey(keys[state.next++ & (KEY_COUNT - 1)]);
+    }
+
+    private void write(String key) throws IOException {
+        try (OutputStream out = cache.newOutputStreamForKey(key)) {
+            out.write(value);
+        }
+    }
+
+    private static File createDirectory() throws IOException {
+        String parent = System.getProperty("retrocache.benchmark.dir");
+        File directory = File.createTempFile("retrocache", "", parent == null ? null : new File(parent));
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        return directory;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
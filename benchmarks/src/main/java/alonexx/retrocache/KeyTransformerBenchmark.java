@@ -0,0 +1,85 @@
+package alonexx.retrocache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+
+/**
+ * Measures {@link DefaultKeyTransformer} on typical argument lists.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class KeyTransformerBenchmark {
+
+    interface Service {
+
+        Observable<String> none();
+
+        Observable<String> primitives(String user, int page, long since);
+
+        Observable<String> list(List<String> ids);
+
+        Observable<String> map(Map<String, String> query);
+    }
+
+    @Param({"none", "primitives", "list", "map"})
+    public String args;
+
+    private KeyTransformer keyTransformer;
+    private CacheContext context;
+
+    @Setup
+    public void setUp() throws Exception {
+        keyTransformer = DefaultKeyTransformer.instance();
+        List<String> ids = new ArrayList<>();
+        Map<String, String> query = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            ids.add("id-" + i);
+            query.put("key" + i, "value" + i);
+        }
+        switch (args) {
+            case "none":
+                context = contextOf("none", new Object[0]);
+                break;
+            case "primitives":
+                context = contextOf("primitives", new Object[]{"alonexx", 3, 1483228800000L},
+                        String.class, int.class, long.class);
+                break;
+            case "list":
+                context = contextOf("list", new Object[]{ids}, List.class);
+                break;
+            case "map":
+                context = contextOf("map", new Object[]{query}, Map.class);
+                break;
+            default:
+                throw new IllegalArgumentException(args);
+        }
+    }
+
+    @Benchmark
+    public String transform() {
+        return keyTransformer.transform(context);
+    }
+
+    private static CacheContext contextOf(String name, Object[] args, Class<?>... parameterTypes)
+            throws NoSuchMethodException {
+        ServiceMethodInfo info = new ServiceMethodInfo(
+                Service.class.getDeclaredMethod(name, parameterTypes), CachePolicy.PREFER_CACHE,
+                ReturnTypeAdapters.OBSERVABLE);
+        return new CacheContext(info, args);
+    }
+}
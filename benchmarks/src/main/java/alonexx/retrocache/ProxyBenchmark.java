@@ -0,0 +1,142 @@
+package alonexx.retrocache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+
+/**
+ * Measures the overhead of a call through the proxy, compared with calling the target
+ * directly, on the uncached, hit, miss and expired paths.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ProxyBenchmark {
+
+    public interface Service {
+
+        Observable<List<Repo>> uncached(String user);
+
+        @Cache(CachePolicy.PREFER_CACHE)
+        @Expiration(value = 1, timeUnit = TimeUnit.DAYS)
+        Observable<List<Repo>> fresh(String user);
+
+        @Cache(CachePolicy.PREFER_CACHE)
+        Observable<List<Repo>> expired(String user);
+
+        @Cache(CachePolicy.PREFER_CACHE)
+        Observable<List<Repo>> failing(String user);
+    }
+
+    static final class Target implements Service {
+
+        final Observable<List<Repo>> repos;
+        final boolean online;
+
+        Target(int count, boolean online) {
+            this.repos = Observable.just(Repo.list(count));
+            this.online = online;
+        }
+
+        @Override
+        public Observable<List<Repo>> uncached(String user) {
+            return repos;
+        }
+
+        @Override
+        public Observable<List<Repo>> fresh(String user) {
+            return repos;
+        }
+
+        @Override
+        public Observable<List<Repo>> expired(String user) {
+            return repos;
+        }
+
+        @Override
+        public Observable<List<Repo>> failing(String user) {
+            return online ? repos : Observable.<List<Repo>>error(new IOException("Network is down."));
+        }
+    }
+
+    @Param({"1", "100"})
+    public int count;
+
+    @Param({"true", "false"})
+    public boolean memoryCache;
+
+    private Service target;
+    private Service service;
+    private OffHeapCache cache;
+
+    @Setup
+    public void setUp() {
+        target = new Target(count, false);
+        cache = new OffHeapCache(64 * 1024 * 1024);
+        Service seed = Retrocache.cache(Service.class, (Service) new Target(count, true))
+                .cache(cache)
+                .cacheParser(new BinaryCacheSerializer())
+                .create();
+        seed.fresh("user").toBlocking().first();
+        seed.failing("user").toBlocking().first();
+
+        Retrocache<Service> retrocache = Retrocache.cache(Service.class, target)
+                .cache(cache)
+                .cacheParser(new BinaryCacheSerializer());
+        if (memoryCache) {
+            retrocache.memoryCache(new MemoryCache(1024));
+        }
+        service = retrocache.create();
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Benchmark
+    public Object direct() {
+        return target.uncached("user").toBlocking().first();
+    }
+
+    /**
+     * A method without a cache policy, which only pays for the proxy and the key.
+     */
+    @Benchmark
+    public Object uncached() {
+        return service.uncached("user").toBlocking().first();
+    }
+
+    @Benchmark
+    public Object hit() {
+        return service.fresh("user").toBlocking().first();
+    }
+
+    /**
+     * An expired record is skipped, and the source result is saved.
+     */
+    @Benchmark
+    public Object miss() {
+        return service.expired("user").toBlocking().first();
+    }
+
+    /**
+     * The source fails and the expired record is read instead.
+     */
+    @Benchmark
+    public Object expiredFallback() {
+        return service.failing("user").toBlocking().first();
+    }
+}
@@ -0,0 +1,42 @@
+package alonexx.retrocache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A typical response model used as the payload of the benchmarks.
+ */
+public class Repo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    long id;
+    String name;
+    String description;
+    String language;
+    int stars;
+    double score;
+    boolean fork;
+    List<String> topics;
+
+    public Repo() {}
+
+    static List<Repo> list(int count) {
+        List<Repo> repos = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Repo repo = new Repo();
+            repo.id = 1000000L + i;
+            repo.name = "repo-" + i;
+            repo.description = "A description of the repository number " + i + ".";
+            repo.language = i % 2 == 0 ? "Java" : "Kotlin";
+            repo.stars = i * 7;
+            repo.score = i / 3.0;
+            repo.fork = i % 5 == 0;
+            repo.topics = Arrays.asList("android", "cache", "rxjava");
+            repos.add(repo);
+        }
+        return repos;
+    }
+}
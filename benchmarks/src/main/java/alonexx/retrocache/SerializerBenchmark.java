@@ -0,0 +1,84 @@
+package alonexx.retrocache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+
+/**
+ * Measures the serializers, across payload sizes, with in-memory streams.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SerializerBenchmark {
+
+    interface Service {
+
+        Observable<List<Repo>> repos();
+    }
+
+    @Param({"1", "100", "10000"})
+    public int count;
+
+    @Param({"java", "binary", "binary+lz4", "binary+deflate"})
+    public String serializer;
+
+    private CacheSerializer cacheSerializer;
+    private CacheContext context;
+    private List<Repo> repos;
+    private ByteArrayOutputStream out;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws Exception {
+        switch (serializer) {
+            case "java":
+                cacheSerializer = new JavaBuiltInCacheSerializer();
+                break;
+            case "binary":
+                cacheSerializer = new BinaryCacheSerializer();
+                break;
+            case "binary+lz4":
+                cacheSerializer = new CompressingCacheSerializer(new BinaryCacheSerializer());
+                break;
+            case "binary+deflate":
+                cacheSerializer = new CompressingCacheSerializer(new BinaryCacheSerializer(),
+                        CompressingCacheSerializer.Algorithm.DEFLATE, 1024);
+                break;
+            default:
+                throw new IllegalArgumentException(serializer);
+        }
+        ServiceMethodInfo info = new ServiceMethodInfo(
+                Service.class.getDeclaredMethod("repos"), CachePolicy.PREFER_CACHE,
+                ReturnTypeAdapters.OBSERVABLE);
+        context = new CacheContext(info, new Object[0]);
+        repos = Repo.list(count);
+        out = new ByteArrayOutputStream();
+        cacheSerializer.writeToCache(out, context, repos);
+        serialized = out.toByteArray();
+    }
+
+    @Benchmark
+    public int write() throws Exception {
+        out.reset();
+        cacheSerializer.writeToCache(out, context, repos);
+        return out.size();
+    }
+
+    @Benchmark
+    public Object read() throws Exception {
+        return cacheSerializer.readFromCache(new ByteArrayInputStream(serialized), context);
+    }
+}
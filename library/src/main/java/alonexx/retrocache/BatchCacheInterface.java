@@ -0,0 +1,33 @@
+package alonexx.retrocache;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link CacheInterface} that reads and writes many records in one pass.
+ *
+ * <p>The proxy reads and writes batches when it prefetches calls and when it drains the
+ * write-behind queue. For the implementations that don't provide this interface, it falls
+ * back to one operation per key.
+ */
+public interface BatchCacheInterface extends CacheInterface {
+
+    /**
+     * Returns the entries of the keys that have a record. The keys without a record are
+     * left out of the result. The caller must close the entries.
+     *
+     * @throws IOException If an IO error occurs, throw an IOException.
+     */
+    Map<String, CacheEntry> getAll(Collection<String> keys) throws IOException;
+
+    /**
+     * Writes the contents of many records, keyed by their keys. The overhead of a write,
+     * such as taking a lock, should be paid once for the batch.
+     *
+     * @throws IOException If an IO error occurs, or a record can't be written, throw an
+     *                     IOException. The records of the batch may then have been
+     *                     written partially.
+     */
+    void putAll(Map<String, byte[]> contents) throws IOException;
+}
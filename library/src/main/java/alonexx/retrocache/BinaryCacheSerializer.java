@@ -0,0 +1,1162 @@
+package alonexx.retrocache;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A serializer that writes objects in a compact binary format, driven by the generic
+ * return type of the method.
+ *
+ * <p>A codec is built once for each {@link CacheContext#getGenericReturnType()} and cached.
+ * Fields are encoded directly, superclass fields first and then sorted by name, without
+ * class descriptors or field names. Integers are written as variable-length zigzag numbers, and a string that occurs
+ * more than once in a record is written once and referenced afterwards.
+ *
+ * <p>The supported types are primitives and their wrappers, {@code String}, enums, {@code
+ * Date}, arrays, {@code Collection}s, {@code Map}s and objects with a no-argument
+ * constructor, whose non-static and non-transient fields are written recursively. Types
+ * are resolved from the declared generic types, so a field holds exactly its declared
+ * class; the runtime class is only recorded for fields declared as {@code Object}, and writing
+ * an instance of a subclass of the declared class fails. Object graphs must be trees:
+ * shared references aren't preserved, and writing a cyclic graph fails.
+ *
+ * <p>Records are also read and written as {@code ByteBuffer}s. A heap buffer is decoded in
+ * place, and a direct buffer is copied in blocks without going through a stream.
+ *
+ * <p>The format depends on the fields of the classes. Change the app version of the cache
+ * when a cached class changes.
+ */
+public class BinaryCacheSerializer implements BufferCacheSerializer {
+
+    private static final int MAGIC = 0x52;
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ConcurrentMap<Type, Codec> codecs = new ConcurrentHashMap<>();
+
+    @Override
+    public Object readFromCache(InputStream in, CacheContext context) throws Exception {
+        return read(new BinaryReader(in), context);
+    }
+
+    @Override
+    public Object readFromBuffer(ByteBuffer buffer, CacheContext context) throws Exception {
+        return read(new BinaryReader(buffer), context);
+    }
+
+    @Override
+    public void writeToCache(OutputStream out, CacheContext context, Object obj) throws Exception {
+        BinaryWriter writer = new BinaryWriter(out);
+        write(writer, context, obj);
+        writer.flush();
+    }
+
+    @Override
+    public ByteBuffer writeToBuffer(CacheContext context, Object obj) throws Exception {
+        BinaryWriter writer = new BinaryWriter();
+        write(writer, context, obj);
+        return writer.toBuffer();
+    }
+
+    private Object read(BinaryReader reader, CacheContext context) throws IOException {
+        if (reader.readByte() != MAGIC || reader.readByte() != VERSION) {
+            throw new IOException("Unknown format.");
+        }
+        return codecFor(context.getGenericReturnType()).nullable().read(reader);
+    }
+
+    private void write(BinaryWriter writer, CacheContext context, Object obj) throws IOException {
+        writer.writeByte(MAGIC);
+        writer.writeByte(VERSION);
+        codecFor(context.getGenericReturnType()).nullable().write(writer, obj);
+    }
+
+    /**
+     * Returns the codec of {@code type}, creating it on the first use.
+     */
+    Codec codecFor(Type type) {
+        Codec codec = codecs.get(type);
+        if (codec == null) {
+            codec = createCodec(type);
+            Codec existing = codecs.putIfAbsent(type, codec);
+            if (existing != null) {
+                codec = existing;
+            }
+        }
+        return codec;
+    }
+
+    private Codec createCodec(Type type) {
+        if (type instanceof WildcardType) {
+            return codecFor(((WildcardType) type).getUpperBounds()[0]);
+        }
+        if (type instanceof TypeVariable) {
+            Type[] bounds = ((TypeVariable<?>) type).getBounds();
+            return codecFor(bounds.length > 0 ? bounds[0] : Object.class);
+        }
+        if (type instanceof GenericArrayType) {
+            Type componentType = ((GenericArrayType) type).getGenericComponentType();
+            return new ArrayCodec(rawType(componentType), codecFor(componentType));
+        }
+        Class<?> rawType = rawType(type);
+        Type[] typeArguments = type instanceof ParameterizedType
+                ? ((ParameterizedType) type).getActualTypeArguments()
+                : new Type[0];
+
+        Codec codec = PrimitiveCodec.forClass(rawType);
+        if (codec != null) {
+            return codec;
+        }
+        if (rawType == Object.class) {
+            return new DynamicCodec(this);
+        }
+        if (rawType == String.class) {
+            return StringCodec.INSTANCE;
+        }
+        if (rawType == byte[].class) {
+            return ByteArrayCodec.INSTANCE;
+        }
+        if (rawType == Date.class) {
+            return DateCodec.INSTANCE;
+        }
+        if (rawType.isEnum()) {
+            return new EnumCodec(rawType);
+        }
+        if (rawType.isArray()) {
+            Class<?> componentType = rawType.getComponentType();
+            return new ArrayCodec(componentType, codecFor(componentType));
+        }
+        if (Collection.class.isAssignableFrom(rawType)) {
+            Type elementType = typeArguments.length == 1 ? typeArguments[0] : Object.class;
+            return new CollectionCodec(rawType, codecFor(elementType));
+        }
+        if (Map.class.isAssignableFrom(rawType)) {
+            Type keyType = typeArguments.length == 2 ? typeArguments[0] : Object.class;
+            Type valueType = typeArguments.length == 2 ? typeArguments[1] : Object.class;
+            return new MapCodec(rawType, codecFor(keyType), codecFor(valueType));
+        }
+        if (rawType.isInterface() || Modifier.isAbstract(rawType.getModifiers())) {
+            throw new IllegalArgumentException("Can't instantiate " + type);
+        }
+        return new ObjectCodec(this, type, rawType);
+    }
+
+    private static Class<?> rawType(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        }
+        if (type instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        }
+        if (type instanceof GenericArrayType) {
+            Class<?> component = rawType(((GenericArrayType) type).getGenericComponentType());
+            return Array.newInstance(component, 0).getClass();
+        }
+        if (type instanceof WildcardType) {
+            return rawType(((WildcardType) type).getUpperBounds()[0]);
+        }
+        if (type instanceof TypeVariable) {
+            Type[] bounds = ((TypeVariable<?>) type).getBounds();
+            return bounds.length > 0 ? rawType(bounds[0]) : Object.class;
+        }
+        throw new IllegalArgumentException("Unsupported type " + type);
+    }
+
+    /**
+     * Replaces the type variables in {@code type} with their bindings.
+     */
+    private static Type resolve(Type type, Map<TypeVariable<?>, Type> bindings) {
+        if (type instanceof TypeVariable) {
+            Type bound = bindings.get(type);
+            return bound != null ? bound : type;
+        }
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterizedType = (ParameterizedType) type;
+            Type[] arguments = parameterizedType.getActualTypeArguments().clone();
+            boolean changed = false;
+            for (int i = 0; i < arguments.length; i++) {
+                Type resolved = resolve(arguments[i], bindings);
+                changed |= resolved != arguments[i];
+                arguments[i] = resolved;
+            }
+            return changed
+                    ? new ResolvedParameterizedType(parameterizedType.getRawType(), arguments)
+                    : type;
+        }
+        if (type instanceof GenericArrayType) {
+            Type component = ((GenericArrayType) type).getGenericComponentType();
+            Type resolved = resolve(component, bindings);
+            return resolved == component ? type : new ResolvedGenericArrayType(resolved);
+        }
+        if (type instanceof WildcardType) {
+            return resolve(((WildcardType) type).getUpperBounds()[0], bindings);
+        }
+        return type;
+    }
+
+    /**
+     * Encodes and decodes non-null values of a type.
+     */
+    abstract static class Codec {
+
+        private Codec nullable;
+
+        abstract void write(BinaryWriter writer, Object value) throws IOException;
+
+        abstract Object read(BinaryReader reader) throws IOException;
+
+        /**
+         * Returns a codec that also accepts null, at the cost of one byte per value.
+         */
+        final Codec nullable() {
+            if (nullable == null) {
+                nullable = new NullableCodec(this);
+            }
+            return nullable;
+        }
+    }
+
+    private static final class NullableCodec extends Codec {
+
+        final Codec delegate;
+
+        NullableCodec(Codec delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        void write(BinaryWriter writer, Object value) throws IOException {
+            if (value == null) {
+                writer.writeByte(0);
+            } else {
+                writer.writeByte(1);
+                delegate.write(writer, value);
+            }
+        }
+
+        @Override
+        Object read(BinaryReader reader) throws IOException {
+            return reader.readByte() == 0 ? null : delegate.read(reader);
+        }
+    }
+
+    private static final class PrimitiveCodec extends Codec {
+
+        static final PrimitiveCodec BOOLEAN = new PrimitiveCodec('Z');
+        static final PrimitiveCodec BYTE = new PrimitiveCodec('B');
+        static final PrimitiveCodec SHORT = new PrimitiveCodec('S');
+        static final PrimitiveCodec CHAR = new PrimitiveCodec('C');
+        static final PrimitiveCodec INT = new PrimitiveCodec('I');
+        static final PrimitiveCodec LONG = new PrimitiveCodec('J');
+        static final PrimitiveCodec FLOAT = new PrimitiveCodec('F');
+        static final PrimitiveCodec DOUBLE = new PrimitiveCodec('D');
+
+        /**
+         * The JVM descriptor of the primitive type.
+         */
+        final char kind;
+
+        private PrimitiveCodec(char kind) {
+            this.kind = kind;
+        }
+
+        static PrimitiveCodec forClass(Class<?> c) {
+            if (c == boolean.class || c == Boolean.class) {
+                return BOOLEAN;
+            } else if (c == byte.class || c == Byte.class) {
+                return BYTE;
+            } else if (c == short.class || c == Short.class) {
+                return SHORT;
+            } else if (c == char.class || c == Character.class) {
+                return CHAR;
+            } else if (c == int.class || c == Integer.class) {
+                return INT;
+            } else if (c == long.class || c == Long.class) {
+                return LONG;
+            } else if (c == float.class || c == Float.class) {
+                return FLOAT;
+            } else if (c == double.class || c == Double.class) {
+                return DOUBLE;
+            }
+            return null;
+        }
+
+        @Override
+        void write(BinaryWriter writer, Object value) throws IOException {
+            switch (kind) {
+                case 'Z':
+                    writer.writeByte((Boolean) value ? 1 : 0);
+                    break;
+                case 'B':
+                    writer.writeByte((Byte) value);
+                    break;
+                case 'S':
+                    writer.writeZigzag((Short) value);
+                    break;
+                case 'C':
+                    writer.writeVarint((Character) value);
+                    break;
+                case 'I':
+                    writer.writeZigzag((Integer) value);
+                    break;
+                case 'J':
+                    writer.writeZigzag((Long) value);
+                    break;
+                case 'F':
+                    writer.writeFixed32(Float.floatToIntBits((Float) value));
+                    break;
+                case 'D':
+                    writer.writeFixed64(Double.doubleToLongBits((Double) value));
+                    break;
+                default:
+                    throw new AssertionError(kind);
+            }
+        }
+
+        @Override
+        Object read(BinaryReader reader) throws IOException {
+            switch (kind) {
+                case 'Z':
+                    return reader.readByte() != 0;
+                case 'B':
+                    return (byte) reader.readByte();
+                case 'S':
+                    return (short) reader.readZigzag();
+                case 'C':
+                    return (char) reader.readVarint();
+                case 'I':
+                    return (int) reader.readZigzag();
+                case 'J':
+                    return reader.readZigzag();
+                case 'F':
+                    return Float.intBitsToFloat(reader.readFixed32());
+                case 'D':
+                    return Double.longBitsToDouble(reader.readFixed64());
+                default:
+                    throw new AssertionError(kind);
+            }
+        }
+
+        /**
+         * Writes a primitive field without boxing it.
+         */
+        void writeField(BinaryWriter writer, Field field, Object obj)
+                throws IOException, IllegalAccessException {
+            switch (kind) {
+                case 'Z':
+                    writer.writeByte(field.getBoolean(obj) ? 1 : 0);
+                    break;
+                case 'B':
+                    writer.writeByte(field.getByte(obj));
+                    break;
+                case 'S':
+                    writer.writeZigzag(field.getShort(obj));
+                    break;
+                case 'C':
+                    writer.writeVarint(field.getChar(obj));
+                    break;
+                case 'I':
+                    writer.writeZigzag(field.getInt(obj));
+                    break;
+                case 'J':
+                    writer.writeZigzag(field.getLong(obj));
+                    break;
+                case 'F':
+                    writer.writeFixed32(Float.floatToIntBits(field.getFloat(obj)));
+                    break;
+                case 'D':
+                    writer.writeFixed64(Double.doubleToLongBits(field.getDouble(obj)));
+                    break;
+                default:
+                    throw new AssertionError(kind);
+            }
+        }
+
+        /**
+         * Reads a primitive field without boxing it.
+         */
+        void readField(BinaryReader reader, Field field, Object obj)
+                throws IOException, IllegalAccessException {
+            switch (kind) {
+                case 'Z':
+                    field.setBoolean(obj, reader.readByte() != 0);
+                    break;
+                case 'B':
+                    field.setByte(obj, (byte) reader.readByte());
+                    break;
+                case 'S':
+                    field.setShort(obj, (short) reader.readZigzag());
+                    break;
+                case 'C':
+                    field.setChar(obj, (char) reader.readVarint());
+                    break;
+                case 'I':
+                    field.setInt(obj, (int) reader.readZigzag());
+                    break;
+                case 'J':
+                    field.setLong(obj, reader.readZigzag());
+                    break;
+                case 'F':
+                    field.setFloat(obj, Float.intBitsToFloat(reader.readFixed32()));
+                    break;
+                case 'D':
+                    field.setDouble(obj, Double.longBitsToDouble(reader.readFixed64()));
+                    break;
+                default:
+                    throw new AssertionError(kind);
+            }
+        }
+    }
+
+    private static final class StringCodec extends Codec {
+
+        static final StringCodec INSTANCE = new StringCodec();
+
+        @Override
+        void write(BinaryWriter writer, Object value) throws IOException {
+            writer.writeString((String) value);
+        }
+
+        @Override
+        Object read(BinaryReader reader) throws IOException {
+            return reader.readString();
+        }
+    }
+
+    private static final class ByteArrayCodec extends Codec {
+
+        static final ByteArrayCodec INSTANCE = new ByteArrayCodec();
+
+        @Override
+        void write(BinaryWriter writer, Object value) throws IOException {
+            byte[] bytes = (byte[]) value;
+            writer.writeVarint(bytes.length);
+            writer.writeBytes(bytes, 0, bytes.length);
+        }
+
+        @Override
+        Object read(BinaryReader reader) throws IOException {
+            byte[] bytes = new byte[reader.readLength()];
+            reader.readBytes(bytes, 0, bytes.length);
+            return bytes;
+        }
+    }
+
+    private static final class DateCodec extends Codec {
+
+        static final DateCodec INSTANCE = new DateCodec();
+
+        @Override
+        void write(BinaryWriter writer, Object value) throws IOException {
+            writer.writeZigzag(((Date) value).getTime());
+        }
+
+        @Override
+        Object read(BinaryReader reader) throws IOException {
+            return new Date(reader.readZigzag());
+        }
+    }
+
+    /**
+     * Writes enum constants by name, so that reordering the constants keeps the records valid.
+     */
+    private static final class EnumCodec extends Codec {
+
+        final Class<?> enumType;
+        final Map<String, Object> constants = new HashMap<>();
+
+        EnumCodec(Class<?> enumType) {
+            this.enumType = enumType;
+            for (Object constant : enumType.getEnumConstants()) {
+                constants.put(((Enum<?>) constant).name(), constant);
+            }
+        }
+
+        @Override
+        void write(BinaryWriter writer, Object value) throws IOException {
+            writer.writeString(((Enum<?>) value).name());
+        }
+
+        @Override
+        Object read(BinaryReader reader) throws IOException {
+            String name = reader.readString();
+            Object constant = constants.get(name);
+            if (constant == null) {
+                throw new IOException("No constant " + name + " in " + enumType.getName());
+            }
+            return constant;
+        }
+    }
+
+    private static final class ArrayCodec extends Codec {
+
+        final Class<?> componentType;
+        final Codec componentCodec;
+
+        ArrayCodec(Class<?> componentType, Codec componentCodec) {
+            this.componentType = componentType;
+            this.componentCodec = componentType.isPrimitive() ? componentCodec : componentCodec.nullable();
+        }
+
+        @Override
+        void write(BinaryWriter writer, Object value) throws IOException {
+            int length = Array.getLength(value);
+            writer.writeVarint(length);
+            if (componentType.isPrimitive()) {
+                for (int i = 0; i < length; i++) {
+                    componentCodec.write(writer, Array.get(value, i));
+                }
+                return;
+            }
+            writer.enter(value);
+            for (int i = 0; i < length; i++) {
+                componentCodec.write(writer, Array.get(value, i));
+            }
+            writer.exit(value);
+        }
+
+        @Override
+        Object read(BinaryReader reader) throws IOException {
+            int length = reader.readLength();
+            Object array = Array.newInstance(componentType, length);
+            for (int i = 0; i < length; i++) {
+                Array.set(array, i, componentCodec.read(reader));
+            }
+            return array;
+        }
+    }
+
+    private static final class CollectionCodec extends Codec {
+
+        final Constructor<?> constructor;
+        final Codec elementCodec;
+
+        CollectionCodec(Class<?> collectionType, Codec elementCodec) {
+            this.constructor = defaultConstructor(concreteCollectionType(collectionType));
+            this.elementCodec = elementCodec.nullable();
+        }
+
+        private static Class<?> concreteCollectionType(Class<?> type) {
+            if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+                return type;
+            }
+            if (SortedSet.class.isAssignableFrom(type)) {
+                return TreeSet.class;
+            }
+            if (Set.class.isAssignableFrom(type)) {
+                return LinkedHashSet.class;
+            }
+            if (Queue.class.isAssignableFrom(type) && !List.class.isAssignableFrom(type)) {
+                return ArrayDeque.class;
+            }
+            return ArrayList.class;
+        }
+
+        @Override
+        void write(BinaryWriter writer, Object value) throws IOException {
+            Collection<?> collection = (Collection<?>) value;
+            writer.writeVarint(collection.size());
+            writer.enter(value);
+            for (Object element : collection) {
+                elementCodec.write(writer, element);
+            }
+            writer.exit(value);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        Object read(BinaryReader reader) throws IOException {
+            int size = reader.readLength();
+            Collection<Object> collection = (Collection<Object>) newInstance(constructor);
+            for (int i = 0; i < size; i++) {
+                collection.add(elementCodec.read(reader));
+            }
+            return collection;
+        }
+    }
+
+    private static final class MapCodec extends Codec {
+
+        final Constructor<?> constructor;
+        final Codec keyCodec;
+        final Codec valueCodec;
+
+        MapCodec(Class<?> mapType, Codec keyCodec, Codec valueCodec) {
+            Class<?> concreteType = mapType;
+            if (mapType.isInterface() || Modifier.isAbstract(mapType.getModifiers())) {
+                concreteType = SortedMap.class.isAssignableFrom(mapType)
+                        ? TreeMap.class
+                        : LinkedHashMap.class;
+            }
+            this.constructor = defaultConstructor(concreteType);
+            this.keyCodec = keyCodec.nullable();
+            this.valueCodec = valueCodec.nullable();
+        }
+
+        @Override
+        void write(BinaryWriter writer, Object value) throws IOException {
+            Map<?, ?> map = (Map<?, ?>) value;
+            writer.writeVarint(map.size());
+            writer.enter(value);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                keyCodec.write(writer, entry.getKey());
+                valueCodec.write(writer, entry.getValue());
+            }
+            writer.exit(value);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        Object read(BinaryReader reader) throws IOException {
+            int size = reader.readLength();
+            Map<Object, Object> map = (Map<Object, Object>) newInstance(constructor);
+            for (int i = 0; i < size; i++) {
+                map.put(keyCodec.read(reader), valueCodec.read(reader));
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Writes the runtime class of a value declared as {@code Object} before the value.
+     */
+    private static final class DynamicCodec extends Codec {
+
+        final BinaryCacheSerializer serializer;
+
+        DynamicCodec(BinaryCacheSerializer serializer) {
+            this.serializer = serializer;
+        }
+
+        @Override
+        void write(BinaryWriter writer, Object value) throws IOException {
+            Class<?> type = value.getClass();
+            if (type == Object.class) {
+                throw new IOException("Can't write a plain Object.");
+            }
+            writer.writeString(type.getName());
+            serializer.codecFor(type).write(writer, value);
+        }
+
+        @Override
+        Object read(BinaryReader reader) throws IOException {
+            String className = reader.readString();
+            Class<?> type;
+            try {
+                type = Class.forName(className, false, BinaryCacheSerializer.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unknown class " + className, e);
+            }
+            return serializer.codecFor(type).read(reader);
+        }
+    }
+
+    private static final class ObjectCodec extends Codec {
+
+        private static final Comparator<Field> FIELD_ORDER = new Comparator<Field>() {
+            @Override
+            public int compare(Field a, Field b) {
+                return a.getName().compareTo(b.getName());
+            }
+        };
+
+        final BinaryCacheSerializer serializer;
+        final Type type;
+        final Class<?> rawType;
+        final Constructor<?> constructor;
+
+        /**
+         * The fields are bound on the first use, so that a class can refer to itself.
+         */
+        volatile FieldBinding[] bindings;
+
+        ObjectCodec(BinaryCacheSerializer serializer, Type type, Class<?> rawType) {
+            this.serializer = serializer;
+            this.type = type;
+            this.rawType = rawType;
+            this.constructor = defaultConstructor(rawType);
+        }
+
+        @Override
+        void write(BinaryWriter writer, Object value) throws IOException {
+            if (value.getClass() != rawType) {
+                // Only the fields of the declared class would be written, and read back as
+                // an instance of the declared class.
+                throw new IOException("Can't write a " + value.getClass().getName() + " as a "
+                        + rawType.getName() + ", declare it as Object to record its class.");
+            }
+            writer.enter(value);
+            try {
+                for (FieldBinding binding : bindings()) {
+                    if (binding.primitive != null) {
+                        binding.primitive.writeField(writer, binding.field, value);
+                    } else {
+                        binding.codec.write(writer, binding.field.get(value));
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+            writer.exit(value);
+        }
+
+        @Override
+        Object read(BinaryReader reader) throws IOException {
+            Object value = newInstance(constructor);
+            try {
+                for (FieldBinding binding : bindings()) {
+                    if (binding.primitive != null) {
+                        binding.primitive.readField(reader, binding.field, value);
+                    } else {
+                        binding.field.set(value, binding.codec.read(reader));
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+            return value;
+        }
+
+        private FieldBinding[] bindings() {
+            FieldBinding[] result = bindings;
+            if (result == null) {
+                result = bindFields();
+                bindings = result;
+            }
+            return result;
+        }
+
+        /**
+         * Binds the fields of the class and its superclasses, superclass fields first and
+         * then by name, resolving the type variables of the generic superclasses.
+         */
+        private FieldBinding[] bindFields() {
+            List<Type> hierarchy = new ArrayList<>();
+            for (Type t = type; t != null && rawType(t) != Object.class;
+                    t = rawType(t).getGenericSuperclass()) {
+                hierarchy.add(t);
+            }
+            Collections.reverse(hierarchy);
+
+            Map<TypeVariable<?>, Type> typeBindings = new HashMap<>();
+            List<FieldBinding> result = new ArrayList<>();
+            for (Type t : hierarchy) {
+                Class<?> c = rawType(t);
+                if (t instanceof ParameterizedType) {
+                    Type[] arguments = ((ParameterizedType) t).getActualTypeArguments();
+                    TypeVariable<?>[] variables = c.getTypeParameters();
+                    for (int i = 0; i < variables.length; i++) {
+                        typeBindings.put(variables[i], resolve(arguments[i], typeBindings));
+                    }
+                }
+                Field[] fields = c.getDeclaredFields();
+                Arrays.sort(fields, FIELD_ORDER);
+                for (Field field : fields) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+                            || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    Type fieldType = resolve(field.getGenericType(), typeBindings);
+                    result.add(new FieldBinding(field, field.getType().isPrimitive()
+                            ? serializer.codecFor(field.getType())
+                            : serializer.codecFor(fieldType).nullable()));
+                }
+            }
+            return result.toArray(new FieldBinding[result.size()]);
+        }
+    }
+
+    private static final class FieldBinding {
+
+        final Field field;
+        final Codec codec;
+        final PrimitiveCodec primitive;
+
+        FieldBinding(Field field, Codec codec) {
+            this.field = field;
+            this.codec = codec;
+            this.primitive = field.getType().isPrimitive() ? (PrimitiveCodec) codec : null;
+        }
+    }
+
+    private static Constructor<?> defaultConstructor(Class<?> type) {
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(type.getName() + " has no no-argument constructor.", e);
+        }
+    }
+
+    private static Object newInstance(Constructor<?> constructor) throws IOException {
+        try {
+            return constructor.newInstance();
+        } catch (Exception e) {
+            throw new IOException("Can't instantiate " + constructor.getDeclaringClass().getName(), e);
+        }
+    }
+
+    /**
+     * Writes to a stream through a fixed buffer, or to a growing buffer if there's no stream.
+     */
+    static final class BinaryWriter {
+
+        private final OutputStream out;
+        private byte[] buffer = new byte[8192];
+        private int position;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        /**
+         * The objects that are being written, from the root down to the current one.
+         */
+        private final Map<Object, Boolean> path = new IdentityHashMap<>();
+
+        BinaryWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        BinaryWriter() {
+            this.out = null;
+        }
+
+        /**
+         * Marks {@code value} as being written until {@link #exit(Object)}, and fails if it
+         * already is, since the graph would then be written endlessly.
+         */
+        void enter(Object value) throws IOException {
+            if (path.put(value, Boolean.TRUE) != null) {
+                throw new IOException("Can't write a cyclic reference to a "
+                        + value.getClass().getName() + ".");
+            }
+        }
+
+        void exit(Object value) {
+            path.remove(value);
+        }
+
+        void writeByte(int b) throws IOException {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) b;
+        }
+
+        void writeVarint(long value) throws IOException {
+            if (buffer.length - position < 10) {
+                flushBuffer();
+            }
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeZigzag(long value) throws IOException {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeFixed32(int value) throws IOException {
+            if (buffer.length - position < 4) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) (value >>> 24);
+            buffer[position++] = (byte) (value >>> 16);
+            buffer[position++] = (byte) (value >>> 8);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeFixed64(long value) throws IOException {
+            writeFixed32((int) (value >>> 32));
+            writeFixed32((int) value);
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+            if (length > buffer.length - position) {
+                flushBuffer();
+                if (length > buffer.length - position) {
+                    if (out == null) {
+                        grow(length);
+                    } else {
+                        out.write(bytes, offset, length);
+                        return;
+                    }
+                }
+            }
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+        }
+
+        /**
+         * Writes 0 followed by the string on its first occurrence, or the index of the
+         * first occurrence plus one afterwards.
+         */
+        void writeString(String value) throws IOException {
+            Integer index = strings.get(value);
+            if (index != null) {
+                writeVarint(index + 1);
+                return;
+            }
+            strings.put(value, strings.size());
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(0);
+            writeVarint(bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        /**
+         * Returns the bytes written to the growing buffer.
+         */
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(buffer, 0, position);
+        }
+
+        private void flushBuffer() throws IOException {
+            if (out == null) {
+                grow(buffer.length);
+                return;
+            }
+            if (position > 0) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+
+        private void grow(int minimumRoom) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + minimumRoom));
+        }
+    }
+
+    /**
+     * Reads from a stream or a direct buffer through a fixed buffer, or from the array of a
+     * heap buffer in place.
+     */
+    static final class BinaryReader {
+
+        private final InputStream in;
+        private final ByteBuffer source;
+        private final byte[] buffer;
+        private int position;
+        private int limit;
+        private final List<String> strings = new ArrayList<>();
+
+        BinaryReader(InputStream in) {
+            this.in = in;
+            this.source = null;
+            this.buffer = new byte[8192];
+        }
+
+        BinaryReader(ByteBuffer source) {
+            this.in = null;
+            if (source.hasArray()) {
+                this.source = null;
+                this.buffer = source.array();
+                this.position = source.arrayOffset() + source.position();
+                this.limit = source.arrayOffset() + source.limit();
+            } else {
+                this.source = source.duplicate();
+                this.buffer = new byte[Math.min(8192, Math.max(source.remaining(), 1))];
+            }
+        }
+
+        int readByte() throws IOException {
+            if (position == limit) {
+                fill();
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint.");
+        }
+
+        long readZigzag() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        int readFixed32() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        long readFixed64() throws IOException {
+            return ((long) readFixed32() << 32) | (readFixed32() & 0xFFFFFFFFL);
+        }
+
+        int readLength() throws IOException {
+            long length = readVarint();
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("Malformed length " + length);
+            }
+            return (int) length;
+        }
+
+        void readBytes(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (position == limit) {
+                    fill();
+                }
+                int count = Math.min(length, limit - position);
+                System.arraycopy(buffer, position, bytes, offset, count);
+                position += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        String readString() throws IOException {
+            int index = readLength();
+            if (index > 0) {
+                if (index > strings.size()) {
+                    throw new IOException("Malformed string reference " + index);
+                }
+                return strings.get(index - 1);
+            }
+            int length = readLength();
+            String value;
+            if (length <= limit - position) {
+                value = new String(buffer, position, length, UTF_8);
+                position += length;
+            } else {
+                byte[] bytes = new byte[length];
+                readBytes(bytes, 0, length);
+                value = new String(bytes, UTF_8);
+            }
+            strings.add(value);
+            return value;
+        }
+
+        private void fill() throws IOException {
+            int count;
+            if (in != null) {
+                count = in.read(buffer, 0, buffer.length);
+            } else if (source != null && source.hasRemaining()) {
+                count = Math.min(buffer.length, source.remaining());
+                source.get(buffer, 0, count);
+            } else {
+                count = -1;
+            }
+            if (count <= 0) {
+                throw new EOFException();
+            }
+            position = 0;
+            limit = count;
+        }
+    }
+
+    private static final class ResolvedParameterizedType implements ParameterizedType {
+
+        private final Type rawType;
+        private final Type[] arguments;
+
+        ResolvedParameterizedType(Type rawType, Type[] arguments) {
+            this.rawType = rawType;
+            this.arguments = arguments;
+        }
+
+        @Override
+        public Type[] getActualTypeArguments() {
+            return arguments.clone();
+        }
+
+        @Override
+        public Type getRawType() {
+            return rawType;
+        }
+
+        @Override
+        public Type getOwnerType() {
+            return null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ParameterizedType)) {
+                return false;
+            }
+            ParameterizedType other = (ParameterizedType) o;
+            return rawType.equals(other.getRawType())
+                    && Arrays.equals(arguments, other.getActualTypeArguments());
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(arguments) ^ rawType.hashCode();
+        }
+    }
+
+    private static final class ResolvedGenericArrayType implements GenericArrayType {
+
+        private final Type componentType;
+
+        ResolvedGenericArrayType(Type componentType) {
+            this.componentType = componentType;
+        }
+
+        @Override
+        public Type getGenericComponentType() {
+            return componentType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof GenericArrayType
+                    && componentType.equals(((GenericArrayType) o).getGenericComponentType());
+        }
+
+        @Override
+        public int hashCode() {
+            return componentType.hashCode();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package alonexx.retrocache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CacheEntry} whose content can be read in place as a {@code ByteBuffer}, such as
+ * a record of a memory-mapped file or of direct memory.
+ *
+ * @see BufferCacheInterface
+ */
+public interface BufferCacheEntry extends CacheEntry {
+
+    /**
+     * Returns a read-only buffer of the content, from its position to its limit, or null if
+     * the content isn't stored contiguously. The buffer is valid until the entry is closed.
+     */
+    ByteBuffer getBuffer() throws IOException;
+}
@@ -0,0 +1,30 @@
+package alonexx.retrocache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CacheInterface} that reads and writes records as {@code ByteBuffer}s, without
+ * the copies through the buffers of streams.
+ *
+ * <p>When the cache implements this interface and the serializer implements
+ * {@link BufferCacheSerializer}, the proxy passes the records between them as buffers.
+ * Otherwise it falls back to the streams.
+ */
+public interface BufferCacheInterface extends EntryCacheInterface {
+
+    /**
+     * Returns the entry for a specified key. The caller must close the entry.
+     *
+     * @throws IOException If an IO error occurs, throw an IOException.
+     * @throws KeyNotFoundException If the record does not exist, throw a KeyNotFoundException.
+     */
+    @Override
+    BufferCacheEntry getEntryForKey(String key) throws IOException;
+
+    /**
+     * Writes the remaining bytes of {@code content} as the record of {@code key}. The
+     * buffer is consumed, and isn't retained after the call.
+     */
+    void putBuffer(String key, ByteBuffer content) throws IOException;
+}
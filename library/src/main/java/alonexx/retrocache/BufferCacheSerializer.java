@@ -0,0 +1,28 @@
+package alonexx.retrocache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CacheSerializer} that also reads and writes objects from and to
+ * {@code ByteBuffer}s.
+ *
+ * @see BufferCacheInterface
+ */
+public interface BufferCacheSerializer extends CacheSerializer {
+
+    /**
+     * Reads an object from the remaining bytes of {@code buffer}, which may be a direct or
+     * a read-only buffer.
+     *
+     * @param context the context that contains method and object type information.
+     */
+    Object readFromBuffer(ByteBuffer buffer, CacheContext context) throws Exception;
+
+    /**
+     * Writes an object to a new buffer, whose remaining bytes are the content.
+     *
+     * @param context the context that contains method and object type information.
+     * @param obj     the object to write
+     */
+    ByteBuffer writeToBuffer(CacheContext context, Object obj) throws Exception;
+}
@@ -0,0 +1,59 @@
+package alonexx.retrocache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A {@code ByteArrayOutputStream} that exposes its internal array, so the written bytes
+ * can be used without the copy made by {@link #toByteArray()}.
+ */
+final class ByteArrayBuffer extends ByteArrayOutputStream {
+
+    ByteArrayBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * Returns the internal array, whose first {@link #size()} bytes are the written bytes.
+     */
+    byte[] array() {
+        return buf;
+    }
+
+    /**
+     * Makes sure the internal array holds at least {@code capacity} bytes, and returns it.
+     * The written bytes are discarded.
+     */
+    byte[] reset(int capacity) {
+        reset();
+        if (buf.length < capacity) {
+            buf = new byte[capacity];
+        }
+        return buf;
+    }
+
+    /**
+     * Reads exactly {@code length} bytes of {@code in} after the written bytes. The array
+     * grows with the bytes actually read, so a wrong length can't allocate more than the
+     * stream holds.
+     */
+    void readFully(InputStream in, int length) throws IOException {
+        long end = (long) count + length;
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("Length " + length + " is too large.");
+        }
+        while (count < end) {
+            if (count == buf.length) {
+                buf = Arrays.copyOf(buf, (int) Math.min(end, Math.max(buf.length * 2L, 8192)));
+            }
+            int n = in.read(buf, count, (int) Math.min(end, buf.length) - count);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            count += n;
+        }
+    }
+}
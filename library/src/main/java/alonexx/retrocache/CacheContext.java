@@ -1,5 +1,6 @@
 package alonexx.retrocache;
 
+import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.util.Arrays;
 
@@ -14,10 +15,21 @@ public class CacheContext {
         this.args = args == null ? EMPTY_ARRAY : Arrays.copyOf(args, args.length);
     }
 
+    /**
+     * Returns the service method being called.
+     */
+    public Method getMethod() {
+        return serviceMethodInfo.getMethod();
+    }
+
     public long getExpirationMillis() {
         return serviceMethodInfo.getExpirationMillis();
     }
 
+    public long getMaxStaleMillis() {
+        return serviceMethodInfo.getMaxStaleMillis();
+    }
+
     public boolean canReadFromCache() {
         return serviceMethodInfo.canReadFromCache();
     }
@@ -30,6 +42,10 @@ public class CacheContext {
         return serviceMethodInfo.canStoreData();
     }
 
+    public boolean canRevalidateInBackground() {
+        return serviceMethodInfo.canRevalidateInBackground();
+    }
+
     public Type getGenericReturnType() {
         return serviceMethodInfo.getGenericReturnType();
     }
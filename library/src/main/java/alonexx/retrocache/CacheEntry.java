@@ -0,0 +1,34 @@
+package alonexx.retrocache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A handle of a record found by a single lookup, holding its creation time, its length
+ * and its content.
+ *
+ * <p>The content stream is opened on the first call of {@link #getInputStream()}.
+ * Closing the entry releases all the resources associated with it, including the
+ * content stream.
+ *
+ * @see EntryCacheInterface
+ */
+public interface CacheEntry extends Closeable {
+
+    /**
+     * Returns the creation time of the record.
+     */
+    long getCreationTime();
+
+    /**
+     * Returns the length of the content in bytes, or -1 if it's unknown.
+     */
+    long getLength();
+
+    /**
+     * Returns a buffered InputStream of the content. It returns the same stream
+     * if it is called more than once.
+     */
+    InputStream getInputStream() throws IOException;
+}
@@ -0,0 +1,81 @@
+package alonexx.retrocache;
+
+/**
+ * Receives the events of the calls of a service created by {@code Retrocache}. Set it with
+ * {@link Retrocache#eventListener(CacheEventListener)}.
+ *
+ * <p>The methods do nothing by default, so subclasses only override the events they need.
+ * They are called synchronously on the threads that run the calls, the background
+ * refreshes and the saves, so they must be thread-safe and return quickly.
+ *
+ * @see CacheMetrics
+ */
+public abstract class CacheEventListener {
+
+    /**
+     * The stages of a call whose durations are reported.
+     */
+    public enum Stage {
+        /**
+         * Looking up a record in the memory tier or the cache, and reading its content.
+         */
+        DISK_READ,
+        /**
+         * Deserializing the content of a record that is emitted.
+         */
+        DECODE,
+        /**
+         * From the subscription to the source until its first item or error.
+         */
+        NETWORK,
+        /**
+         * Serializing and writing a record to the cache.
+         */
+        SAVE
+    }
+
+    /**
+     * A call is served from the memory tier or the cache.
+     */
+    public void onHit(CacheContext context, String key) {
+    }
+
+    /**
+     * A call that can read the cache found no usable record, and subscribes to the source.
+     */
+    public void onMiss(CacheContext context, String key) {
+    }
+
+    /**
+     * The source failed with {@code error}, and the call is served from an expired record.
+     */
+    public void onExpiredFallback(CacheContext context, String key, Throwable error) {
+    }
+
+    /**
+     * A call failed with {@code error}, or a background refresh did.
+     */
+    public void onError(CacheContext context, String key, Throwable error) {
+    }
+
+    /**
+     * A record exists but couldn't be read or deserialized. It's treated as a miss.
+     */
+    public void onReadFailed(CacheContext context, String key, Throwable error) {
+    }
+
+    /**
+     * A record couldn't be serialized or written.
+     */
+    public void onWriteFailed(CacheContext context, String key, Throwable error) {
+    }
+
+    public void onBytesRead(CacheContext context, String key, long bytes) {
+    }
+
+    public void onBytesWritten(CacheContext context, String key, long bytes) {
+    }
+
+    public void onStageCompleted(CacheContext context, String key, Stage stage, long durationNanos) {
+    }
+}
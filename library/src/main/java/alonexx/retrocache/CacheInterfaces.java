@@ -0,0 +1,215 @@
+package alonexx.retrocache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Implements the optional operations of a {@link CacheInterface} on top of the
+ * required ones, for the implementations that don't provide them.
+ */
+final class CacheInterfaces {
+
+    /**
+     * Returns the entry for {@code key}, with a single lookup if {@code cache} is an
+     * {@link EntryCacheInterface}.
+     */
+    static CacheEntry getEntry(CacheInterface cache, String key) throws IOException {
+        if (cache instanceof EntryCacheInterface) {
+            return ((EntryCacheInterface) cache).getEntryForKey(key);
+        }
+        return new LookupCacheEntry(cache, key, cache.getCreationTimeForKey(key));
+    }
+
+    /**
+     * Returns the entries of the keys that have a record, in one pass if {@code cache} is a
+     * {@link BatchCacheInterface}. The caller must close the entries.
+     */
+    static Map<String, CacheEntry> getAll(CacheInterface cache, Collection<String> keys)
+            throws IOException {
+        if (cache instanceof BatchCacheInterface) {
+            return ((BatchCacheInterface) cache).getAll(keys);
+        }
+        Map<String, CacheEntry> entries = new LinkedHashMap<>();
+        try {
+            for (String key : keys) {
+                try {
+                    entries.put(key, getEntry(cache, key));
+                } catch (KeyNotFoundException ignored) {
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (CacheEntry entry : entries.values()) {
+                closeQuietly(entry);
+            }
+            throw e;
+        }
+        return entries;
+    }
+
+    /**
+     * Writes the contents of many records, in one pass if {@code cache} is a
+     * {@link BatchCacheInterface}.
+     */
+    static void putAll(CacheInterface cache, Map<String, byte[]> contents) throws IOException {
+        if (cache instanceof BatchCacheInterface) {
+            ((BatchCacheInterface) cache).putAll(contents);
+            return;
+        }
+        for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+            OutputStream out = cache.newOutputStreamForKey(content.getKey());
+            try {
+                out.write(content.getValue());
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of {@code content} as the record of {@code key}, without
+     * copying them if {@code cache} is a {@link BufferCacheInterface}.
+     */
+    static void putBuffer(CacheInterface cache, String key, ByteBuffer content) throws IOException {
+        if (cache instanceof BufferCacheInterface) {
+            ((BufferCacheInterface) cache).putBuffer(key, content);
+            return;
+        }
+        OutputStream out = cache.newOutputStreamForKey(key);
+        try {
+            if (content.hasArray()) {
+                out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+                content.position(content.limit());
+            } else {
+                byte[] chunk = new byte[Math.min(content.remaining(), 8192)];
+                while (content.hasRemaining()) {
+                    int count = Math.min(chunk.length, content.remaining());
+                    content.get(chunk, 0, count);
+                    out.write(chunk, 0, count);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Sets the creation time of the record of {@code key} to the current time if
+     * {@code cache} is a {@link TouchableCacheInterface}. Returns false if the record
+     * wasn't touched, and must be written instead.
+     */
+    static boolean touch(CacheInterface cache, String key) throws IOException {
+        return cache instanceof TouchableCacheInterface && ((TouchableCacheInterface) cache).touch(key);
+    }
+
+    /**
+     * Removes the record of {@code key} if {@code cache} is a
+     * {@link RemovableCacheInterface}. Returns false if the record wasn't removed.
+     */
+    static boolean remove(CacheInterface cache, String key) throws IOException {
+        return cache instanceof RemovableCacheInterface && ((RemovableCacheInterface) cache).remove(key);
+    }
+
+    /**
+     * Removes the record of {@code key} if it was created at {@code creationTime}, if
+     * {@code cache} is a {@link RemovableCacheInterface}. Returns false if the record wasn't
+     * removed.
+     */
+    static boolean remove(CacheInterface cache, String key, long creationTime) throws IOException {
+        return cache instanceof RemovableCacheInterface
+                && ((RemovableCacheInterface) cache).remove(key, creationTime);
+    }
+
+    /**
+     * Returns {@code entry} as a {@link BufferCacheEntry}, whose buffer is null if the
+     * entry can't be read as a buffer.
+     */
+    static BufferCacheEntry asBufferEntry(final CacheEntry entry) {
+        if (entry instanceof BufferCacheEntry) {
+            return (BufferCacheEntry) entry;
+        }
+        return new BufferCacheEntry() {
+            @Override
+            public ByteBuffer getBuffer() {
+                return null;
+            }
+
+            @Override
+            public long getCreationTime() {
+                return entry.getCreationTime();
+            }
+
+            @Override
+            public long getLength() {
+                return entry.getLength();
+            }
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return entry.getInputStream();
+            }
+
+            @Override
+            public void close() throws IOException {
+                entry.close();
+            }
+        };
+    }
+
+    private static void closeQuietly(CacheEntry entry) {
+        try {
+            entry.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * An entry that opens the content stream with a second lookup.
+     */
+    private static final class LookupCacheEntry implements CacheEntry {
+
+        private final CacheInterface cache;
+        private final String key;
+        private final long creationTime;
+        private InputStream in;
+
+        LookupCacheEntry(CacheInterface cache, String key, long creationTime) {
+            this.cache = cache;
+            this.key = key;
+            this.creationTime = creationTime;
+        }
+
+        @Override
+        public long getCreationTime() {
+            return creationTime;
+        }
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = cache.getInputStreamForKey(key);
+            }
+            return in;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    private CacheInterfaces() {
+        throw new AssertionError();
+    }
+}
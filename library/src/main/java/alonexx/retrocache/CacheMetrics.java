@@ -0,0 +1,252 @@
+package alonexx.retrocache;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A listener that aggregates the events of each service method into counters and latency
+ * histograms.
+ * <code>
+ *     CacheMetrics metrics = new CacheMetrics();
+ *     SomeService service = Retrocache.cache(SomeService.class, target)
+ *             .cache(cache)
+ *             .eventListener(metrics)
+ *             .create();
+ *     ...
+ *     CacheMetrics.MethodMetrics m = metrics.get(SomeService.class.getMethod("doSomething"));
+ *     double hitRate = (double) m.getHits() / (m.getHits() + m.getMisses());
+ * </code>
+ *
+ * <p>The counters are updated with atomic operations, without locks.
+ */
+public final class CacheMetrics extends CacheEventListener {
+
+    private final ConcurrentMap<Method, MethodMetrics> methods = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the metrics of {@code method}, or null if it has no events yet.
+     */
+    public MethodMetrics get(Method method) {
+        return methods.get(method);
+    }
+
+    /**
+     * Returns the methods that have events.
+     */
+    public Set<Method> getMethods() {
+        return Collections.unmodifiableSet(methods.keySet());
+    }
+
+    @Override
+    public void onHit(CacheContext context, String key) {
+        metricsOf(context).hits.incrementAndGet();
+    }
+
+    @Override
+    public void onMiss(CacheContext context, String key) {
+        metricsOf(context).misses.incrementAndGet();
+    }
+
+    @Override
+    public void onExpiredFallback(CacheContext context, String key, Throwable error) {
+        metricsOf(context).expiredFallbacks.incrementAndGet();
+    }
+
+    @Override
+    public void onError(CacheContext context, String key, Throwable error) {
+        metricsOf(context).errors.incrementAndGet();
+    }
+
+    @Override
+    public void onReadFailed(CacheContext context, String key, Throwable error) {
+        metricsOf(context).readFailures.incrementAndGet();
+    }
+
+    @Override
+    public void onWriteFailed(CacheContext context, String key, Throwable error) {
+        metricsOf(context).writeFailures.incrementAndGet();
+    }
+
+    @Override
+    public void onBytesRead(CacheContext context, String key, long bytes) {
+        metricsOf(context).bytesRead.addAndGet(bytes);
+    }
+
+    @Override
+    public void onBytesWritten(CacheContext context, String key, long bytes) {
+        metricsOf(context).bytesWritten.addAndGet(bytes);
+    }
+
+    @Override
+    public void onStageCompleted(CacheContext context, String key, Stage stage, long durationNanos) {
+        metricsOf(context).latencies[stage.ordinal()].record(durationNanos);
+    }
+
+    private MethodMetrics metricsOf(CacheContext context) {
+        Method method = context.getMethod();
+        MethodMetrics metrics = methods.get(method);
+        if (metrics == null) {
+            MethodMetrics newMetrics = new MethodMetrics();
+            metrics = methods.putIfAbsent(method, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * The counters of a service method.
+     */
+    public static final class MethodMetrics {
+
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong expiredFallbacks = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong readFailures = new AtomicLong();
+        final AtomicLong writeFailures = new AtomicLong();
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong bytesWritten = new AtomicLong();
+        final Histogram[] latencies = new Histogram[Stage.values().length];
+
+        MethodMetrics() {
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new Histogram();
+            }
+        }
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public long getExpiredFallbacks() {
+            return expiredFallbacks.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * Returns the number of records that couldn't be read or deserialized.
+         */
+        public long getReadFailures() {
+            return readFailures.get();
+        }
+
+        public long getWriteFailures() {
+            return writeFailures.get();
+        }
+
+        public long getBytesRead() {
+            return bytesRead.get();
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten.get();
+        }
+
+        public Histogram getLatency(Stage stage) {
+            return latencies[stage.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            return "MethodMetrics{hits=" + getHits()
+                    + ", misses=" + getMisses()
+                    + ", expiredFallbacks=" + getExpiredFallbacks()
+                    + ", errors=" + getErrors()
+                    + ", readFailures=" + getReadFailures()
+                    + ", writeFailures=" + getWriteFailures()
+                    + ", bytesRead=" + getBytesRead()
+                    + ", bytesWritten=" + getBytesWritten()
+                    + ", diskRead=" + getLatency(Stage.DISK_READ)
+                    + ", decode=" + getLatency(Stage.DECODE)
+                    + ", network=" + getLatency(Stage.NETWORK)
+                    + ", save=" + getLatency(Stage.SAVE)
+                    + '}';
+        }
+    }
+
+    /**
+     * A latency histogram with power of two buckets, so a percentile is accurate within a
+     * factor of two.
+     */
+    public static final class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        Histogram() {
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanos));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getMeanNanos() {
+            long count = getCount();
+            return count == 0 ? 0 : getTotalNanos() / count;
+        }
+
+        /**
+         * Returns an upper bound of the {@code percentile} of the recorded durations, or 0
+         * if there's none.
+         *
+         * @param percentile between 0 and 100
+         */
+        public long getPercentileNanos(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+            long[] snapshot = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && seen > 0) {
+                    return i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + getCount()
+                    + ", meanMicros=" + TimeUnit.NANOSECONDS.toMicros(getMeanNanos())
+                    + ", p99Micros=" + TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(99))
+                    + '}';
+        }
+    }
+}
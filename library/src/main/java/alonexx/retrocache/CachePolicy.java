@@ -17,6 +17,11 @@ public enum CachePolicy {
         public boolean canStoreData() {
             return true;
         }
+
+        @Override
+        public boolean canRevalidateInBackground() {
+            return false;
+        }
     },
 
     PREFER_NETWORK {
@@ -34,6 +39,11 @@ public enum CachePolicy {
         public boolean canStoreData() {
             return true;
         }
+
+        @Override
+        public boolean canRevalidateInBackground() {
+            return false;
+        }
     },
 
     IGNORE_CACHE {
@@ -51,6 +61,38 @@ public enum CachePolicy {
         public boolean canStoreData() {
             return false;
         }
+
+        @Override
+        public boolean canRevalidateInBackground() {
+            return false;
+        }
+    },
+
+    /**
+     * Reads unexpired records like {@link #PREFER_CACHE}. If the record has expired but
+     * is still within its {@link MaxStale} period, it is emitted at once and the source
+     * is called in the background to refresh the record.
+     */
+    STALE_WHILE_REVALIDATE {
+        @Override
+        public boolean canReadFromCache() {
+            return true;
+        }
+
+        @Override
+        public boolean canReadFromExpiredCache() {
+            return true;
+        }
+
+        @Override
+        public boolean canStoreData() {
+            return true;
+        }
+
+        @Override
+        public boolean canRevalidateInBackground() {
+            return true;
+        }
     },
 
     STORE_ONLY {
@@ -68,6 +110,11 @@ public enum CachePolicy {
         public boolean canStoreData() {
             return true;
         }
+
+        @Override
+        public boolean canRevalidateInBackground() {
+            return false;
+        }
     },
 
     UNSPECIFIED {
@@ -85,6 +132,11 @@ public enum CachePolicy {
         public boolean canStoreData() {
             return IGNORE_CACHE.canStoreData();
         }
+
+        @Override
+        public boolean canRevalidateInBackground() {
+            return IGNORE_CACHE.canRevalidateInBackground();
+        }
     };
 
     public abstract boolean canReadFromCache();
@@ -92,4 +144,6 @@ public enum CachePolicy {
     public abstract boolean canReadFromExpiredCache();
 
     public abstract boolean canStoreData();
+
+    public abstract boolean canRevalidateInBackground();
 }
@@ -1,14 +1,40 @@
 package alonexx.retrocache;
 
 import java.io.Closeable;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import alonexx.retrocache.CacheEventListener.Stage;
+
+import rx.Notification;
 import rx.Observable;
+import rx.Scheduler;
 import rx.Subscriber;
+import rx.functions.Action0;
 import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
 
 import static alonexx.retrocache.internal.Preconditions.checkNotNull;
@@ -26,69 +52,228 @@ import static alonexx.retrocache.internal.Preconditions.checkNotNull;
  *             });
  * </code>
  *
+ * <p>The handler is shared by all the callers of a proxy, so it holds no per-call
+ * state. The method information is resolved once by {@link Retrocache#create()},
+ * and the key and arguments of a call are captured by the returned {@code Observable}.
+ *
+ * <p>A record found in the cache is read as bytes, and deserialized only once it wins
+ * over the source and is about to be emitted, on the decode scheduler if there's one.
+ *
+ * <p>A call of a method annotated with {@link StreamCache} caches and replays every item
+ * of the source instead of the first one, see {@link #streamCall}.
+ *
  * @see CachePolicy
  * @see InvocationHandler
  */
-final class CacheProxyHandler implements InvocationHandler {
+final class CacheProxyHandler implements InvocationHandler, Flushable, Closeable {
+
+    /**
+     * The number of calls a prefetch makes at a time.
+     */
+    private static final int MAX_CONCURRENT_PREFETCHES = 8;
+
+    private static final Func1<Object, Record> WRAP_OBJECT_TO_RECORD = new Func1<Object, Record>() {
+        @Override
+        public Record call(Object o) {
+            return new Record(o, Record.ORIGIN_NETWORK);
+        }
+    };
+
+    private static final Func1<Object, Object> IDENTITY = new Func1<Object, Object>() {
+        @Override
+        public Object call(Object o) {
+            return o;
+        }
+    };
 
     private final Object target;
+    private final Map<Method, ServiceMethodInfo> serviceMethods;
     private final CacheInterface cache;
-    private final CachePolicy cachePolicy;
     private final KeyTransformer keyTransformer;
     private final CacheSerializer cacheAdapter;
+    private final MemoryCache memoryCache;
+    private final InFlightCalls inFlightCalls;
+    private final Scheduler revalidationScheduler;
+    private final WriteBehindQueue writeBehindQueue;
+    private final CacheEventListener eventListener;
+    private final Scheduler decodeScheduler;
+    private final WarmUpRecorder warmUpRecorder;
+    private final ContentFingerprints fingerprints;
+    private final ExpirationSweeper expirationSweeper;
+    private final RecentFailures recentFailures = new RecentFailures();
+    private final Set<String> revalidatingKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-    private volatile ServiceMethodInfo serviceMethodInfo;
-    private volatile String key;
-    private volatile Throwable networkError;
-    private volatile Object[] args;
-
+    /**
+     * @param memoryCache           an optional in-heap tier in front of {@code cache}, may be null.
+     * @param inFlightCalls         the registry to coalesce concurrent identical calls, may be null.
+     * @param revalidationScheduler the scheduler to refresh stale records and prefetch on.
+     * @param writeBehindQueue      the queue to save records asynchronously, may be null.
+     * @param eventListener         the listener of the events of the calls, may be null.
+     * @param decodeScheduler       the scheduler to deserialize records on, may be null to
+     *                              deserialize on the thread that emits them.
+     * @param warmUpRecorder        the recorder of the hottest calls, may be null.
+     * @param fingerprints          the fingerprints of the records to touch unchanged
+     *                              records instead of rewriting them, may be null. It's
+     *                              given only if {@code cache} can touch records.
+     * @param expirationSweeper     the sweeper of the expired records, may be null. It's
+     *                              given only if {@code cache} can remove records.
+     */
     CacheProxyHandler(
             Object target,
-            CachePolicy cachePolicy,
+            Map<Method, ServiceMethodInfo> serviceMethods,
             CacheInterface cache,
             KeyTransformer keyTransformer,
-            CacheSerializer cacheAdapter) {
+            CacheSerializer cacheAdapter,
+            MemoryCache memoryCache,
+            InFlightCalls inFlightCalls,
+            Scheduler revalidationScheduler,
+            WriteBehindQueue writeBehindQueue,
+            CacheEventListener eventListener,
+            Scheduler decodeScheduler,
+            WarmUpRecorder warmUpRecorder,
+            ContentFingerprints fingerprints,
+            ExpirationSweeper expirationSweeper) {
         this.target = checkNotNull(target);
-        this.cachePolicy = cachePolicy;
+        this.serviceMethods = checkNotNull(serviceMethods);
         this.cache = checkNotNull(cache);
         this.keyTransformer = checkNotNull(keyTransformer);
         this.cacheAdapter = checkNotNull(cacheAdapter);
+        this.memoryCache = memoryCache;
+        this.inFlightCalls = inFlightCalls;
+        this.revalidationScheduler = checkNotNull(revalidationScheduler);
+        this.writeBehindQueue = writeBehindQueue;
+        this.eventListener = eventListener;
+        this.decodeScheduler = decodeScheduler;
+        this.warmUpRecorder = warmUpRecorder;
+        this.fingerprints = fingerprints;
+        this.expirationSweeper = expirationSweeper;
+    }
+
+    /**
+     * Starts the background threads of the handler. It's called once the handler is
+     * constructed, so that they never see a partially constructed handler.
+     */
+    void start() {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.start(new WriteBehindQueue.Writer() {
+                @Override
+                public void write(List<WriteBehindQueue.PendingWrite> writes) {
+                    writeRecords(writes);
+                }
+
+                @Override
+                public void onWriteFailed(List<WriteBehindQueue.PendingWrite> writes, Throwable e) {
+                    if (eventListener != null) {
+                        for (WriteBehindQueue.PendingWrite write : writes) {
+                            eventListener.onWriteFailed(write.context, write.key, e);
+                        }
+                    }
+                }
+            });
+        }
+        if (expirationSweeper != null) {
+            expirationSweeper.start(new ExpirationSweeper.Remover() {
+                @Override
+                public void removeExpired(String key, long creationTime, long lifetime) {
+                    removeExpiredRecord(key, creationTime, lifetime);
+                }
+            });
+        }
     }
 
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        logThreadInfo(method.getName());
-        Object retVal = method.invoke(target, args);
-        Class<?> retType = method.getReturnType();
-
-        if (Observable.class.isAssignableFrom(retType)) {
-            this.serviceMethodInfo = new ServiceMethodInfo(method, cachePolicy);
-            this.key = toKey(serviceMethodInfo, args);
-            this.args = args;
-            return Observable.concat(
-                    loadRecordFromDisk(),
-                    ((Observable<?>) retVal).map(wrapObjectToRecord()))
-                    .first()
-                    .doOnError(new Action1<Throwable>() {
-                        @Override
-                        public void call(Throwable e) {
-                            networkError = e;
-                        }
-                    })
-                    .onErrorResumeNext(loadExpiredRecord())
-                    .map(resolveAndSaveObject());
+        ServiceMethodInfo serviceMethodInfo = serviceMethods.get(method);
+        if (serviceMethodInfo == null) {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        CacheContext context = new CacheContext(serviceMethodInfo, args);
+        String key = keyTransformer.transform(context);
+        if (warmUpRecorder != null && serviceMethodInfo.canReadFromCache()) {
+            warmUpRecorder.record(key, serviceMethodInfo, context.getArgs());
+        }
+        ReturnTypeAdapter adapter = serviceMethodInfo.getReturnTypeAdapter();
+        Observable<?> source = sourceOf(context, key);
+        if (eventListener != null) {
+            source = timeSource(context, key, source);
+        }
+        if (serviceMethodInfo.isStreaming()) {
+            return adapter.adapt(streamCall(context, key, source));
         }
-        return retVal;
+        Observable<Object> call = Observable.concat(
+                loadRecordFromDisk(context, key, source),
+                source.map(WRAP_OBJECT_TO_RECORD))
+                .first()
+                .flatMap(decodeRecord(context, key, source))
+                .onErrorResumeNext(loadExpiredRecord(context, key))
+                .map(resolveAndSaveObject(context, key));
+        if (eventListener != null) {
+            call = call.doOnError(reportError(context, key));
+        }
+        if (inFlightCalls != null) {
+            call = inFlightCalls.coalesce(key, call);
+        }
+        return adapter.adapt(call);
     }
 
-    private Observable<Record> loadRecordFromDisk() {
+    /**
+     * Returns the source of a call, which calls the target when its return type adapter
+     * decides to, unless a failure of the source is remembered for {@code key}.
+     */
+    private Observable<?> sourceOf(CacheContext context, String key) throws Exception {
+        Observable<?> source = toSource(context);
+        if (context.getServiceMethodInfo().getNegativeTtlMillis() > 0) {
+            source = recentFailures.guard(context, key, source);
+        }
+        return source;
+    }
+
+    private Observable<?> toSource(final CacheContext context) throws Exception {
+        return context.getServiceMethodInfo().getReturnTypeAdapter().toSource(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                try {
+                    return context.getMethod().invoke(target, context.getArgs());
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw (Exception) cause;
+                }
+            }
+        });
+    }
+
+    private Observable<Record> loadRecordFromDisk(
+            final CacheContext context, final String key, final Observable<?> source) {
         return Observable.create(new Observable.OnSubscribe<Record>() {
             @Override
             public void call(Subscriber<? super Record> subscriber) {
-                if (serviceMethodInfo.canReadFromCache()) {
-                    Record storedRecord = CacheProxyHandler.this.restoreUnexpiredRecord();
+                if (context.canReadFromCache()) {
+                    long start = eventListener != null ? System.nanoTime() : 0L;
+                    Record storedRecord = restoreServableRecord(context, key, source);
+                    if (eventListener != null) {
+                        eventListener.onStageCompleted(
+                                context, key, Stage.DISK_READ, System.nanoTime() - start);
+                        if (storedRecord != null) {
+                            eventListener.onHit(context, key);
+                        } else {
+                            eventListener.onMiss(context, key);
+                        }
+                    }
                     if (storedRecord != null) {
-                        subscriber.onNext(storedRecord);
+                        if (subscriber.isUnsubscribed()) {
+                            storedRecord.release();
+                        } else {
+                            subscriber.onNext(storedRecord);
+                        }
                     }
                 }
                 subscriber.onCompleted();
@@ -96,107 +281,1156 @@ final class CacheProxyHandler implements InvocationHandler {
         });
     }
 
-    private Func1<Object, Record> wrapObjectToRecord() {
-        return new Func1<Object, Record>() {
+    /**
+     * Returns a call of a method annotated with {@link StreamCache}. A complete sequence
+     * record is replayed item by item; otherwise the items of the source are emitted and
+     * saved as they come.
+     */
+    private Observable<Object> streamCall(
+            final CacheContext context, final String key, final Observable<?> source) {
+        Observable<Object> call = Observable.defer(new Func0<Observable<Object>>() {
             @Override
-            public Record call(Object o) {
-                return new Record(o, Record.ORIGIN_NETWORK);
+            public Observable<Object> call() {
+                if (context.canReadFromCache()) {
+                    Observable<Object> replay = replaySequence(context, key, source);
+                    if (eventListener != null) {
+                        if (replay != null) {
+                            eventListener.onHit(context, key);
+                        } else {
+                            eventListener.onMiss(context, key);
+                        }
+                    }
+                    if (replay != null) {
+                        return replay;
+                    }
+                }
+                Observable<Object> live = context.canStoreData()
+                        ? saveSequence(context, key, source)
+                        : source.map(IDENTITY);
+                if (context.canReadFromExpiredCache()) {
+                    live = fallBackToSequence(context, key, live);
+                }
+                return live;
             }
-        };
+        });
+        if (eventListener != null) {
+            call = call.doOnError(reportError(context, key));
+        }
+        return call;
     }
 
-    private Observable<Record> loadExpiredRecord() {
-        return Observable.create(new Observable.OnSubscribe<Record>() {
+    /**
+     * Returns the replay of the sequence record of {@code key} if it's unexpired, or if
+     * it's stale and refreshed in the background. Returns null otherwise.
+     */
+    private Observable<Object> replaySequence(CacheContext context, String key, Observable<?> source) {
+        CacheEntry entry = openSequence(context, key);
+        if (entry == null) {
+            return null;
+        }
+        long creationTime = entry.getCreationTime();
+        if (!isExpired(context, creationTime)) {
+            return RecordStream.replay(entry, cacheAdapter, context);
+        }
+        if (context.canRevalidateInBackground() && !isTooStale(context, creationTime)) {
+            revalidateSequence(context, key, source);
+            return RecordStream.replay(entry, cacheAdapter, context);
+        }
+        closeQuietly(entry);
+        return null;
+    }
+
+    /**
+     * Returns the entry of the last complete sequence record of {@code key}, or null. The
+     * pointer record and the sequence record are both scheduled to be swept.
+     */
+    private CacheEntry openSequence(CacheContext context, String key) {
+        CacheEntry pointer = null;
+        try {
+            pointer = CacheInterfaces.getEntry(cache, key);
+            String generationKey = RecordStream.generationKey(key, RecordStream.readPointer(pointer));
+            CacheEntry entry = CacheInterfaces.getEntry(cache, generationKey);
+            scheduleSweep(context, key, pointer.getCreationTime());
+            scheduleSweep(context, generationKey, entry.getCreationTime());
+            return entry;
+        } catch (Throwable e) {
+            reportReadFailure(context, key, e);
+            return null;
+        } finally {
+            closeQuietly(pointer);
+        }
+    }
+
+    /**
+     * Returns the generation of the last complete sequence record of {@code key}, or -1.
+     */
+    private long readGeneration(String key) {
+        CacheEntry pointer = null;
+        try {
+            pointer = CacheInterfaces.getEntry(cache, key);
+            return RecordStream.readPointer(pointer);
+        } catch (IOException e) {
+            return -1L;
+        } finally {
+            closeQuietly(pointer);
+        }
+    }
+
+    private void revalidateSequence(final CacheContext context, final String key, Observable<?> source) {
+        if (!revalidatingKeys.add(key)) {
+            return;
+        }
+        Action0 release = new Action0() {
             @Override
-            public void call(Subscriber<? super Record> subscriber) {
-                if (!serviceMethodInfo.canReadFromExpiredCache()) {
-                    subscriber.onError(networkError);
-                } else {
-                    Record record = CacheProxyHandler.this.restoreExpiredRecord();
-                    if (record != null) {
-                        subscriber.onNext(record);
-                    } else {
-                        subscriber.onError(networkError);
+            public void call() {
+                revalidatingKeys.remove(key);
+            }
+        };
+        saveSequence(context, key, source)
+                .subscribeOn(revalidationScheduler)
+                .doOnTerminate(release)
+                .doOnUnsubscribe(release)
+                .subscribe(new Action1<Object>() {
+                    @Override
+                    public void call(Object o) {
+                    }
+                }, new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable e) {
+                        if (eventListener != null) {
+                            eventListener.onError(context, key, e);
+                        }
                     }
+                });
+    }
+
+    /**
+     * Emits the items of {@code source} and writes them to a new sequence record of
+     * {@code key} as they come. The record of {@code key} only points to it once the
+     * source completes, so a source that fails leaves the previous record in place.
+     */
+    private Observable<Object> saveSequence(
+            final CacheContext context, final String key, final Observable<?> source) {
+        return Observable.defer(new Func0<Observable<Object>>() {
+            @Override
+            public Observable<Object> call() {
+                final SequenceSave save = new SequenceSave(context, key);
+                return source.map(IDENTITY)
+                        .doOnNext(new Action1<Object>() {
+                            @Override
+                            public void call(Object o) {
+                                save.write(o);
+                            }
+                        })
+                        .doOnCompleted(new Action0() {
+                            @Override
+                            public void call() {
+                                save.complete();
+                            }
+                        })
+                        .doOnError(new Action1<Throwable>() {
+                            @Override
+                            public void call(Throwable e) {
+                                save.abort();
+                            }
+                        })
+                        .doOnUnsubscribe(new Action0() {
+                            @Override
+                            public void call() {
+                                save.abort();
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * The sequence record being written by a subscription, under a generation key of its
+     * own. Once a write fails, the rest of the items are only emitted.
+     */
+    private final class SequenceSave {
+
+        private final CacheContext context;
+        private final String key;
+        private final long generation = RecordStream.newGeneration();
+        private final String generationKey;
+        private final long start = System.nanoTime();
+        private RecordStream.Writer writer;
+        private boolean failed;
+        private boolean completed;
+
+        SequenceSave(CacheContext context, String key) {
+            this.context = context;
+            this.key = key;
+            this.generationKey = RecordStream.generationKey(key, generation);
+        }
+
+        synchronized void write(Object item) {
+            if (failed) {
+                return;
+            }
+            try {
+                if (writer == null) {
+                    writer = newWriter();
                 }
-                subscriber.onCompleted();
+                writer.write(item);
+            } catch (Throwable e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Ends the sequence record, and points the record of the key to it. The sequence
+         * record it pointed to before is removed.
+         */
+        synchronized void complete() {
+            if (failed) {
+                return;
+            }
+            try {
+                if (writer == null) {
+                    writer = newWriter();
+                }
+                long length = writer.complete();
+                long previous = readGeneration(key);
+                RecordStream.writePointer(cache, key, generation);
+                completed = true;
+                long now = System.currentTimeMillis();
+                scheduleSweep(context, key, now);
+                scheduleSweep(context, generationKey, now);
+                if (previous >= 0 && previous != generation) {
+                    removeQuietly(RecordStream.generationKey(key, previous));
+                }
+                if (eventListener != null) {
+                    eventListener.onBytesWritten(context, key, length);
+                    eventListener.onStageCompleted(context, key, Stage.SAVE, System.nanoTime() - start);
+                }
+            } catch (Throwable e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Ends and removes the sequence record, unless the record of the key points to it.
+         */
+        synchronized void abort() {
+            if (writer == null || completed) {
+                return;
+            }
+            writer.abort();
+            removeQuietly(generationKey);
+        }
+
+        private RecordStream.Writer newWriter() throws IOException {
+            return new RecordStream.Writer(cache.newOutputStreamForKey(generationKey), cacheAdapter, context);
+        }
+
+        private void fail(Throwable e) {
+            failed = true;
+            abort();
+            if (eventListener != null) {
+                eventListener.onWriteFailed(context, key, e);
+            }
+        }
+    }
+
+    /**
+     * Removes the record of {@code key} if the cache supports it. A record that can't be
+     * removed is left to the eviction of the cache.
+     */
+    private void removeQuietly(String key) {
+        try {
+            CacheInterfaces.remove(cache, key);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Replays the sequence record of any age when {@code live} fails before its first item.
+     * A source that fails after that isn't replayed, since its items have been emitted.
+     */
+    private Observable<Object> fallBackToSequence(
+            final CacheContext context, final String key, final Observable<Object> live) {
+        return Observable.defer(new Func0<Observable<Object>>() {
+            @Override
+            public Observable<Object> call() {
+                final AtomicBoolean emitted = new AtomicBoolean();
+                return live.doOnNext(new Action1<Object>() {
+                    @Override
+                    public void call(Object o) {
+                        emitted.set(true);
+                    }
+                }).onErrorResumeNext(new Func1<Throwable, Observable<Object>>() {
+                    @Override
+                    public Observable<Object> call(Throwable e) {
+                        CacheEntry entry = emitted.get() ? null : openSequence(context, key);
+                        if (entry == null) {
+                            return Observable.error(e);
+                        }
+                        if (eventListener != null) {
+                            eventListener.onExpiredFallback(context, key, e);
+                        }
+                        return RecordStream.replay(entry, cacheAdapter, context);
+                    }
+                });
             }
         });
     }
 
-    private Func1<Record, Object> resolveAndSaveObject() {
+    /**
+     * Calls the source in the background and saves its result, unless the record of
+     * {@code key} is already being refreshed.
+     */
+    private void revalidate(final CacheContext context, final String key, Observable<?> source) {
+        if (!revalidatingKeys.add(key)) {
+            return;
+        }
+        Action0 release = new Action0() {
+            @Override
+            public void call() {
+                revalidatingKeys.remove(key);
+            }
+        };
+        source.first()
+                .subscribeOn(revalidationScheduler)
+                .doOnTerminate(release)
+                .doOnUnsubscribe(release)
+                .subscribe(new Action1<Object>() {
+                    @Override
+                    public void call(Object o) {
+                        saveRecord(context, key, new Record(o, Record.ORIGIN_NETWORK));
+                    }
+                }, new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable e) {
+                        if (eventListener != null) {
+                            eventListener.onError(context, key, e);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Reports the time from the subscription to {@code source} until its first item or error.
+     */
+    private <T> Observable<T> timeSource(
+            final CacheContext context, final String key, final Observable<T> source) {
+        return Observable.defer(new Func0<Observable<T>>() {
+            @Override
+            public Observable<T> call() {
+                final long start = System.nanoTime();
+                return source.doOnEach(new Action1<Notification<? super T>>() {
+                    private boolean reported;
+
+                    @Override
+                    public void call(Notification<? super T> notification) {
+                        if (!reported) {
+                            reported = true;
+                            eventListener.onStageCompleted(
+                                    context, key, Stage.NETWORK, System.nanoTime() - start);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private Action1<Throwable> reportError(final CacheContext context, final String key) {
+        return new Action1<Throwable>() {
+            @Override
+            public void call(Throwable e) {
+                eventListener.onError(context, key, e);
+            }
+        };
+    }
+
+    private Func1<Throwable, Observable<Record>> loadExpiredRecord(
+            final CacheContext context, final String key) {
+        return new Func1<Throwable, Observable<Record>>() {
+            @Override
+            public Observable<Record> call(final Throwable networkError) {
+                return Observable.create(new Observable.OnSubscribe<Record>() {
+                    @Override
+                    public void call(Subscriber<? super Record> subscriber) {
+                        if (!context.canReadFromExpiredCache()) {
+                            subscriber.onError(networkError);
+                        } else {
+                            long start = eventListener != null ? System.nanoTime() : 0L;
+                            Record record = restoreExpiredRecord(context, key);
+                            if (eventListener != null) {
+                                eventListener.onStageCompleted(
+                                        context, key, Stage.DISK_READ, System.nanoTime() - start);
+                                if (record != null) {
+                                    eventListener.onExpiredFallback(context, key, networkError);
+                                }
+                            }
+                            if (record != null) {
+                                subscriber.onNext(record);
+                            } else {
+                                subscriber.onError(networkError);
+                            }
+                        }
+                        subscriber.onCompleted();
+                    }
+                });
+            }
+        };
+    }
+
+    private Func1<Record, Object> resolveAndSaveObject(final CacheContext context, final String key) {
         return new Func1<Record, Object>() {
             @Override
             public Object call(Record record) {
-                if (record.origin == Record.ORIGIN_NETWORK && serviceMethodInfo.canStoreData()) {
-                    CacheProxyHandler.this.saveRecord(record);
+                if (record.origin == Record.ORIGIN_NETWORK && context.canStoreData()) {
+                    saveRecord(context, key, record);
                 }
                 return record.object;
             }
         };
     }
 
-    private Record restoreUnexpiredRecord() {
-        logThreadInfo("Restore Unexpired Record");
+    /**
+     * Restores the record of {@code key} if it hasn't expired, or an expired record that is
+     * still within the max stale period of the method if it can be revalidated in the
+     * background, in which case the revalidation is started. Both ages are checked on the
+     * same entry, so the record is looked up once. Returns null if there's no record to serve.
+     */
+    private Record restoreServableRecord(CacheContext context, String key, Observable<?> source) {
+        boolean staleAllowed = context.canRevalidateInBackground();
+        MemoryCache.Entry heapEntry = getHeapEntry(key);
+        if (heapEntry != null) {
+            if (!isExpired(context, heapEntry.creationTime)) {
+                return new Record(heapEntry.value, Record.ORIGIN_CACHE);
+            } else if (staleAllowed && !isTooStale(context, heapEntry.creationTime)) {
+                revalidate(context, key, source);
+                return new Record(heapEntry.value, Record.ORIGIN_CACHE);
+            }
+        }
+        CacheEntry entry = null;
         try {
-            long time = cache.getCreationTimeForKey(key);
-            if (!isExpired(serviceMethodInfo, time)) {
-                return restoreRecord();
+            entry = CacheInterfaces.getEntry(cache, key);
+            long creationTime = entry.getCreationTime();
+            if (!isExpired(context, creationTime)) {
+                Record record = readRecord(context, key, entry);
+                entry = null;
+                return record;
+            } else if (staleAllowed && !isTooStale(context, creationTime)) {
+                Record record = readRecord(context, key, entry);
+                entry = null;
+                if (fingerprints != null && !fingerprints.isVersioned()) {
+                    // The revalidation that follows only touches the record if it's unchanged.
+                    try {
+                        fingerprints.putIfAbsent(key, fingerprints.fingerprintOf(context, null, record.content));
+                    } catch (RuntimeException e) {
+                        record.release();
+                        throw e;
+                    }
+                }
+                revalidate(context, key, source);
+                return record;
             } else {
                 return null;
             }
         } catch (Throwable e) {
-            logExceptionInfo(e);
+            reportReadFailure(context, key, e);
             return null;
+        } finally {
+            closeQuietly(entry);
         }
     }
 
-    private Record restoreExpiredRecord() {
-        logThreadInfo("Restore Expired Record");
-        return restoreRecord();
+    private Record restoreExpiredRecord(CacheContext context, String key) {
+        MemoryCache.Entry heapEntry = getHeapEntry(key);
+        if (heapEntry != null) {
+            return new Record(heapEntry.value, Record.ORIGIN_CACHE);
+        }
+        return restoreRecord(context, key);
     }
 
-    private Record restoreRecord() {
+    private Record restoreRecord(CacheContext context, String key) {
         InputStream is = null;
         try {
             is = cache.getInputStreamForKey(key);
-            Object obj = cacheAdapter.readFromCache(is, new CacheContext(serviceMethodInfo, args));
+            Object obj = readFromCache(context, key, is);
             return new Record(obj, Record.ORIGIN_CACHE);
         } catch (Throwable e) {
-            logExceptionInfo(e);
+            reportReadFailure(context, key, e);
         } finally {
             closeQuietly(is);
         }
         return null;
     }
 
-    private void saveRecord(Record record) {
-        logThreadInfo("Save Record");
+    /**
+     * Reads the content of {@code entry} into a record to deserialize later, and takes
+     * over the entry unless it throws.
+     *
+     * <p>The content of an entry that can be read as a buffer isn't copied: the record
+     * keeps the entry open, and is released once it's deserialized or unsubscribed from.
+     * The content of another entry is read into the heap, and the entry is closed.
+     */
+    private Record readRecord(CacheContext context, String key, CacheEntry entry) throws IOException {
+        long creationTime = entry.getCreationTime();
+        ByteBuffer buffer = null;
+        if (entry instanceof BufferCacheEntry) {
+            buffer = ((BufferCacheEntry) entry).getBuffer();
+        }
+        Record record;
+        if (buffer != null) {
+            record = new Record(buffer, creationTime, entry);
+        } else {
+            buffer = ByteBuffer.wrap(readFully(entry));
+            closeQuietly(entry);
+            record = new Record(buffer, creationTime);
+        }
+        if (eventListener != null) {
+            eventListener.onBytesRead(context, key, buffer.remaining());
+        }
+        scheduleSweep(context, key, creationTime);
+        return record;
+    }
+
+    /**
+     * Reads the content of {@code entry} without keeping it, so that its pages are in
+     * memory for the next read.
+     */
+    private void readThrough(CacheContext context, String key, CacheEntry entry) throws IOException {
+        ByteBuffer buffer = CacheInterfaces.asBufferEntry(entry).getBuffer();
+        long length;
+        if (buffer != null) {
+            length = buffer.remaining();
+            for (int i = buffer.position(); i < buffer.limit(); i += 4096) {
+                buffer.get(i);
+            }
+        } else {
+            length = readFully(entry).length;
+        }
+        if (eventListener != null) {
+            eventListener.onBytesRead(context, key, length);
+        }
+        scheduleSweep(context, key, entry.getCreationTime());
+    }
+
+    private static byte[] readFully(CacheEntry entry) throws IOException {
+        InputStream in = entry.getInputStream();
+        long length = entry.getLength();
+        if (length >= 0 && length <= Integer.MAX_VALUE) {
+            byte[] content = new byte[(int) length];
+            int offset = 0;
+            while (offset < content.length) {
+                int count = in.read(content, offset, content.length - offset);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                offset += count;
+            }
+            return content;
+        }
+        ByteArrayBuffer out = new ByteArrayBuffer(8192);
+        byte[] chunk = new byte[8192];
+        int count;
+        while ((count = in.read(chunk)) != -1) {
+            out.write(chunk, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Deserializes the content of a record from cache, on the decode scheduler if there's
+     * one. If it can't be deserialized, the source is called instead.
+     *
+     * <p>The record is released exactly once: by the decoder once it's done, or by the
+     * unsubscription if the decoder hasn't claimed the record yet. A record decoded after
+     * the call is unsubscribed from isn't kept in the memory tier.
+     */
+    private Func1<Record, Observable<Record>> decodeRecord(
+            final CacheContext context, final String key, final Observable<?> source) {
+        return new Func1<Record, Observable<Record>>() {
+            @Override
+            public Observable<Record> call(final Record record) {
+                if (record.content == null) {
+                    return Observable.just(record);
+                }
+                final AtomicBoolean claimed = new AtomicBoolean();
+                final AtomicBoolean unsubscribed = new AtomicBoolean();
+                Observable<Record> decoded = Observable.defer(new Func0<Observable<Record>>() {
+                    @Override
+                    public Observable<Record> call() {
+                        if (!claimed.compareAndSet(false, true)) {
+                            // Unsubscribed from before decoding, the record is released.
+                            return Observable.empty();
+                        }
+                        try {
+                            return Observable.just(decode(context, key, record, unsubscribed));
+                        } catch (Throwable e) {
+                            reportReadFailure(context, key, e);
+                            return source.map(WRAP_OBJECT_TO_RECORD).first();
+                        } finally {
+                            record.release();
+                        }
+                    }
+                });
+                if (decodeScheduler != null) {
+                    decoded = decoded.subscribeOn(decodeScheduler);
+                }
+                return decoded.doOnUnsubscribe(new Action0() {
+                    @Override
+                    public void call() {
+                        unsubscribed.set(true);
+                        if (claimed.compareAndSet(false, true)) {
+                            record.release();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    private Record decode(CacheContext context, String key, Record record, AtomicBoolean unsubscribed)
+            throws Exception {
+        long start = eventListener != null ? System.nanoTime() : 0L;
+        Object obj = CacheSerializers.readFromBuffer(cacheAdapter, record.content.duplicate(), context);
+        if (eventListener != null) {
+            eventListener.onStageCompleted(context, key, Stage.DECODE, System.nanoTime() - start);
+        }
+        if (memoryCache != null && !unsubscribed.get()) {
+            memoryCache.put(key, obj, record.creationTime);
+        }
+        rememberVersion(context, key, obj);
+        return new Record(obj, Record.ORIGIN_CACHE);
+    }
+
+    /**
+     * Deserializes the content of {@code entry} and keeps the result in the memory tier.
+     */
+    private Record restoreRecord(CacheContext context, String key, CacheEntry entry) throws Exception {
+        Object obj = readFromEntry(context, key, entry);
+        if (memoryCache != null) {
+            memoryCache.put(key, obj, entry.getCreationTime());
+        }
+        rememberVersion(context, key, obj);
+        scheduleSweep(context, key, entry.getCreationTime());
+        return new Record(obj, Record.ORIGIN_CACHE);
+    }
+
+    /**
+     * Remembers the version of a record read back from the cache, if the fingerprints are
+     * versions. A hash of the content is only remembered for a stale record, which is
+     * about to be revalidated, since it takes a pass over the bytes.
+     */
+    private void rememberVersion(CacheContext context, String key, Object obj) {
+        if (fingerprints != null && fingerprints.isVersioned()) {
+            fingerprints.putIfAbsent(key, fingerprints.fingerprintOf(context, obj, null));
+        }
+    }
+
+    /**
+     * Reads the content of {@code entry} in place if it's a buffer, or else through its
+     * stream.
+     */
+    private Object readFromEntry(CacheContext context, String key, CacheEntry entry) throws Exception {
+        if (entry instanceof BufferCacheEntry) {
+            ByteBuffer buffer = ((BufferCacheEntry) entry).getBuffer();
+            if (buffer != null) {
+                int length = buffer.remaining();
+                Object obj = CacheSerializers.readFromBuffer(cacheAdapter, buffer, context);
+                if (eventListener != null) {
+                    eventListener.onBytesRead(context, key, length);
+                }
+                return obj;
+            }
+        }
+        return readFromCache(context, key, entry.getInputStream());
+    }
+
+    private Object readFromCache(CacheContext context, String key, InputStream in) throws Exception {
+        if (eventListener == null) {
+            return cacheAdapter.readFromCache(in, context);
+        }
+        CountingInputStream counting = new CountingInputStream(in);
+        Object obj = cacheAdapter.readFromCache(counting, context);
+        eventListener.onBytesRead(context, key, counting.getCount());
+        return obj;
+    }
+
+    /**
+     * Reports a record that couldn't be read. A missing record is a miss, not a failure.
+     */
+    private void reportReadFailure(CacheContext context, String key, Throwable e) {
+        if (eventListener != null && !(e instanceof KeyNotFoundException)) {
+            eventListener.onReadFailed(context, key, e);
+        }
+    }
+
+    /**
+     * Returns the newest record of {@code key} that is held in heap, either a save that
+     * hasn't been written yet or an entry of the memory tier.
+     */
+    private MemoryCache.Entry getHeapEntry(String key) {
+        if (writeBehindQueue != null) {
+            WriteBehindQueue.PendingWrite write = writeBehindQueue.get(key);
+            if (write != null) {
+                return new MemoryCache.Entry(write.object, write.creationTime, 0);
+            }
+        }
+        return memoryCache != null ? memoryCache.get(key) : null;
+    }
+
+    private void saveRecord(CacheContext context, String key, Record record) {
+        long now = System.currentTimeMillis();
+        if (memoryCache != null) {
+            memoryCache.put(key, record.object, now);
+        }
+        if (writeBehindQueue != null) {
+            writeBehindQueue.enqueue(key, context, record.object, now);
+        } else {
+            writeRecord(context, key, record.object);
+        }
+    }
+
+    private void writeRecord(CacheContext context, String key, Object object) {
+        long start = eventListener != null ? System.nanoTime() : 0L;
+        long length;
+        try {
+            length = writeToCache(context, key, object);
+        } catch (Throwable e) {
+            if (eventListener != null) {
+                eventListener.onWriteFailed(context, key, e);
+            }
+            return;
+        }
+        scheduleSweep(context, key, System.currentTimeMillis());
+        if (eventListener != null) {
+            eventListener.onBytesWritten(context, key, length);
+            eventListener.onStageCompleted(context, key, Stage.SAVE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Writes {@code object} as a buffer if the cache takes buffers, or else through a
+     * stream. Returns the number of bytes written if there's a listener to report it to.
+     */
+    private long writeToCache(CacheContext context, String key, Object object) throws Exception {
+        if (fingerprints != null) {
+            return writeOrTouch(context, key, object);
+        }
+        if (cache instanceof BufferCacheInterface) {
+            ByteBuffer content = CacheSerializers.writeToBuffer(cacheAdapter, context, object);
+            int length = content.remaining();
+            ((BufferCacheInterface) cache).putBuffer(key, content);
+            return length;
+        }
         OutputStream os = null;
         try {
             os = cache.newOutputStreamForKey(key);
-            cacheAdapter.writeToCache(os, new CacheContext(serviceMethodInfo, args), record.object);
-        } catch (Throwable e) {
-            logExceptionInfo(e);
+            if (eventListener == null) {
+                cacheAdapter.writeToCache(os, context, object);
+                return -1;
+            }
+            CountingOutputStream counting = new CountingOutputStream(os);
+            cacheAdapter.writeToCache(counting, context, object);
+            os.close();
+            return counting.getCount();
         } finally {
             closeQuietly(os);
         }
     }
 
-    private static boolean isExpired(ServiceMethodInfo serviceMethodInfo, long lastTime) {
-        long currentTime = System.currentTimeMillis();
-        long expireTimeMillis = serviceMethodInfo.getExpirationMillis();
-        return (currentTime - lastTime >= expireTimeMillis) || (lastTime > currentTime);
+    /**
+     * Touches the record of {@code key} if it has the fingerprint of {@code object}, or else
+     * writes {@code object} as a buffer and remembers its fingerprint. Returns the number
+     * of bytes written, 0 if the record is touched.
+     */
+    private long writeOrTouch(CacheContext context, String key, Object object) throws Exception {
+        ByteBuffer content = fingerprints.isVersioned()
+                ? null : CacheSerializers.writeToBuffer(cacheAdapter, context, object);
+        Object fingerprint = fingerprints.fingerprintOf(context, object, content);
+        if (touchIfUnchanged(key, fingerprint)) {
+            return 0;
+        }
+        if (content == null) {
+            content = CacheSerializers.writeToBuffer(cacheAdapter, context, object);
+        }
+        int length = content.remaining();
+        ContentFingerprints.Write write = fingerprints.beginWrite(key);
+        boolean written = false;
+        try {
+            CacheInterfaces.putBuffer(cache, key, content);
+            written = true;
+        } finally {
+            fingerprints.endWrite(key, write, written ? fingerprint : null);
+        }
+        return length;
     }
 
-    private String toKey(ServiceMethodInfo serviceMethodInfo, Object[] args) {
-        return keyTransformer.transform(new CacheContext(serviceMethodInfo, args));
+    /**
+     * Touches the record of {@code key} if its content has {@code fingerprint}. Returns
+     * false if it has another content, or if it can't be touched, so that it's written.
+     */
+    private boolean touchIfUnchanged(String key, Object fingerprint) {
+        if (!fingerprints.matches(key, fingerprint)) {
+            return false;
+        }
+        try {
+            return CacheInterfaces.touch(cache, key);
+        } catch (IOException e) {
+            return false;
+        }
     }
 
-    private static void logThreadInfo(String info) {
+    /**
+     * Schedules the removal of the record of {@code key}, created at {@code creationTime},
+     * once it's past its expiration, if expired records are swept.
+     */
+    private void scheduleSweep(CacheContext context, String key, long creationTime) {
+        if (expirationSweeper != null) {
+            expirationSweeper.schedule(context, key, creationTime);
+        }
     }
 
-    private static void logExceptionInfo(Throwable e) {
+    /**
+     * Removes the record of {@code key} from the cache and the memory tier, unless it has
+     * been written since it was scheduled to be removed {@code lifetime} after
+     * {@code creationTime}, in which case its removal is scheduled again. A record whose
+     * save hasn't been written yet is left alone, since the save schedules it again.
+     */
+    private void removeExpiredRecord(String key, long creationTime, long lifetime) {
+        if (writeBehindQueue != null && writeBehindQueue.get(key) != null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expectedTime = creationTime;
+        try {
+            // Removed only if its creation time is still the expected one, so that a
+            // record written since the sweep was scheduled stays.
+            while (!CacheInterfaces.remove(cache, key, expectedTime)) {
+                long lastTime = cache.getCreationTimeForKey(key);
+                if (lastTime == expectedTime) {
+                    // It can't be removed right now, such as while it's being written.
+                    return;
+                }
+                if (now - lastTime < lifetime) {
+                    expirationSweeper.reschedule(key, lastTime, lifetime);
+                    return;
+                }
+                expectedTime = lastTime;
+            }
+        } catch (KeyNotFoundException ignored) {
+        } catch (IOException e) {
+            return;
+        }
+        if (memoryCache != null) {
+            memoryCache.removeIfCreatedBefore(key, now - lifetime);
+        }
+    }
+
+    /**
+     * Writes many records with a single batch write to the cache. The records that are
+     * unchanged are touched instead.
+     */
+    private void writeRecords(List<WriteBehindQueue.PendingWrite> writes) {
+        if (writes.size() == 1) {
+            WriteBehindQueue.PendingWrite write = writes.get(0);
+            writeRecord(write.context, write.key, write.object);
+            return;
+        }
+        long start = eventListener != null ? System.nanoTime() : 0L;
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        Map<String, Object> writtenFingerprints = new HashMap<>();
+        for (WriteBehindQueue.PendingWrite write : writes) {
+            ByteArrayBuffer buffer = new ByteArrayBuffer(512);
+            try {
+                cacheAdapter.writeToCache(buffer, write.context, write.object);
+                byte[] content = buffer.toByteArray();
+                if (fingerprints != null) {
+                    Object fingerprint = fingerprints.fingerprintOf(
+                            write.context, write.object, ByteBuffer.wrap(content));
+                    if (touchIfUnchanged(write.key, fingerprint)) {
+                        scheduleSweep(write.context, write.key, System.currentTimeMillis());
+                        continue;
+                    }
+                    writtenFingerprints.put(write.key, fingerprint);
+                }
+                contents.put(write.key, content);
+            } catch (Throwable e) {
+                if (eventListener != null) {
+                    eventListener.onWriteFailed(write.context, write.key, e);
+                }
+            }
+        }
+        if (contents.isEmpty()) {
+            return;
+        }
+        Map<String, ContentFingerprints.Write> fingerprintWrites = new HashMap<>();
+        if (fingerprints != null) {
+            for (String key : contents.keySet()) {
+                fingerprintWrites.put(key, fingerprints.beginWrite(key));
+            }
+        }
+        boolean written = false;
+        try {
+            CacheInterfaces.putAll(cache, contents);
+            written = true;
+        } catch (Throwable e) {
+            if (eventListener != null) {
+                for (WriteBehindQueue.PendingWrite write : writes) {
+                    if (contents.containsKey(write.key)) {
+                        eventListener.onWriteFailed(write.context, write.key, e);
+                    }
+                }
+            }
+            return;
+        } finally {
+            for (Map.Entry<String, ContentFingerprints.Write> write : fingerprintWrites.entrySet()) {
+                fingerprints.endWrite(write.getKey(), write.getValue(),
+                        written ? writtenFingerprints.get(write.getKey()) : null);
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (WriteBehindQueue.PendingWrite write : writes) {
+            if (contents.containsKey(write.key)) {
+                scheduleSweep(write.context, write.key, now);
+            }
+        }
+        if (eventListener != null) {
+            long durationNanos = (System.nanoTime() - start) / contents.size();
+            for (WriteBehindQueue.PendingWrite write : writes) {
+                byte[] content = contents.get(write.key);
+                if (content != null) {
+                    eventListener.onBytesWritten(write.context, write.key, content.length);
+                    eventListener.onStageCompleted(write.context, write.key, Stage.SAVE, durationNanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the records of {@code calls} ahead of time. The records in the cache are read
+     * with a single batch read and kept in the memory tier, if there's one. The other calls
+     * are made concurrently, {@link #MAX_CONCURRENT_PREFETCHES} at a time, and their results
+     * are saved with a single batch write.
+     * Returns when all the calls are done. A failed call is skipped.
+     *
+     * @throws IllegalArgumentException if a call isn't a call of a method of the service.
+     */
+    void prefetch(List<ServiceCall> calls) throws IOException {
+        Map<String, CacheContext> contexts = new LinkedHashMap<>();
+        for (ServiceCall call : calls) {
+            ServiceMethodInfo serviceMethodInfo = serviceMethods.get(call.getMethod());
+            if (serviceMethodInfo == null) {
+                // The methods that don't use the cache aren't resolved.
+                if (!call.getMethod().getDeclaringClass().isInstance(target)) {
+                    throw new IllegalArgumentException("Method " + call.getMethod()
+                            + " isn't a method of the service.");
+                }
+                continue;
+            }
+            if (serviceMethodInfo.canStoreData() && !serviceMethodInfo.isStreaming()) {
+                CacheContext context = new CacheContext(serviceMethodInfo, call.getArgs());
+                contexts.put(keyTransformer.transform(context), context);
+            }
+        }
+        if (contexts.isEmpty()) {
+            return;
+        }
+
+        Map<String, CacheContext> misses = new LinkedHashMap<>(contexts);
+        Map<String, CacheEntry> entries = CacheInterfaces.getAll(cache, contexts.keySet());
+        for (Map.Entry<String, CacheEntry> cached : entries.entrySet()) {
+            String key = cached.getKey();
+            CacheContext context = contexts.get(key);
+            CacheEntry entry = cached.getValue();
+            try {
+                if (!isExpired(context, entry.getCreationTime())) {
+                    if (memoryCache != null && memoryCache.get(key) == null) {
+                        restoreRecord(context, key, entry);
+                    }
+                    misses.remove(key);
+                }
+            } catch (Throwable e) {
+                reportReadFailure(context, key, e);
+            } finally {
+                closeQuietly(entry);
+            }
+        }
+
+        List<Observable<WriteBehindQueue.PendingWrite>> loads = new ArrayList<>(misses.size());
+        for (Map.Entry<String, CacheContext> miss : misses.entrySet()) {
+            loads.add(load(miss.getValue(), miss.getKey()));
+        }
+        List<WriteBehindQueue.PendingWrite> loaded = Observable.merge(loads, MAX_CONCURRENT_PREFETCHES)
+                .toList()
+                .toBlocking()
+                .single();
+        for (WriteBehindQueue.PendingWrite write : loaded) {
+            if (memoryCache != null) {
+                memoryCache.put(write.key, write.object, write.creationTime);
+            }
+        }
+        if (!loaded.isEmpty()) {
+            writeRecords(loaded);
+        }
+    }
+
+    /**
+     * Calls the source of {@code context} on the revalidation scheduler, and emits its first
+     * item as a record to save. Emits nothing if the call fails.
+     */
+    private Observable<WriteBehindQueue.PendingWrite> load(final CacheContext context, final String key) {
+        Observable<?> source;
+        try {
+            source = sourceOf(context, key);
+        } catch (Exception e) {
+            if (eventListener != null) {
+                eventListener.onError(context, key, e);
+            }
+            return Observable.empty();
+        }
+        if (eventListener != null) {
+            source = timeSource(context, key, source);
+        }
+        return source.first()
+                .subscribeOn(revalidationScheduler)
+                .map(new Func1<Object, WriteBehindQueue.PendingWrite>() {
+                    @Override
+                    public WriteBehindQueue.PendingWrite call(Object o) {
+                        return new WriteBehindQueue.PendingWrite(
+                                key, context, o, System.currentTimeMillis());
+                    }
+                })
+                .onErrorResumeNext(new Func1<Throwable, Observable<WriteBehindQueue.PendingWrite>>() {
+                    @Override
+                    public Observable<WriteBehindQueue.PendingWrite> call(Throwable e) {
+                        if (eventListener != null) {
+                            eventListener.onError(context, key, e);
+                        }
+                        return Observable.empty();
+                    }
+                });
+    }
+
+    /**
+     * Loads the records of the calls saved by the warm-up recorder, hottest first, with a
+     * pool of {@code threads} threads. Gives up on the records not loaded yet once
+     * {@code timeoutNanos} elapses. Returns the number of records loaded.
+     */
+    int warmUp(long timeoutNanos, int threads) throws IOException {
+        if (warmUpRecorder == null) {
+            throw new IllegalStateException("The service has no warm-up recorder.");
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        Map<String, ServiceMethodInfo> methodsBySignature = new HashMap<>();
+        for (ServiceMethodInfo serviceMethodInfo : serviceMethods.values()) {
+            methodsBySignature.put(serviceMethodInfo.getSignature(), serviceMethodInfo);
+        }
+        final AtomicInteger loaded = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Retrocache-WarmUp");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        try {
+            for (WarmUpRecorder.HotCall call : warmUpRecorder.load()) {
+                // The method may have been changed or removed since the calls were saved.
+                ServiceMethodInfo serviceMethodInfo = methodsBySignature.get(call.signature);
+                if (serviceMethodInfo == null || !serviceMethodInfo.canReadFromCache()) {
+                    continue;
+                }
+                final CacheContext context = new CacheContext(serviceMethodInfo, call.args);
+                final String key = keyTransformer.transform(context);
+                warmUpRecorder.restore(key, call);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (warmUp(context, key)) {
+                            loaded.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        return loaded.get();
+    }
+
+    /**
+     * Loads the record of {@code key} into the memory tier, or reads it through if there's
+     * no memory tier or it's a sequence record. Returns false if there's no record that a
+     * call could use.
+     */
+    private boolean warmUp(CacheContext context, String key) {
+        if (memoryCache != null && memoryCache.get(key) != null) {
+            return false;
+        }
+        CacheEntry entry = null;
+        try {
+            entry = CacheInterfaces.getEntry(cache, key);
+            long creationTime = entry.getCreationTime();
+            if (isExpired(context, creationTime) && !context.canReadFromExpiredCache()
+                    && (!context.canRevalidateInBackground() || isTooStale(context, creationTime))) {
+                return false;
+            }
+            // A sequence record is never kept in the memory tier.
+            if (memoryCache != null && !context.getServiceMethodInfo().isStreaming()) {
+                restoreRecord(context, key, entry);
+            } else {
+                readThrough(context, key, entry);
+            }
+            return true;
+        } catch (Throwable e) {
+            reportReadFailure(context, key, e);
+            return false;
+        } finally {
+            closeQuietly(entry);
+        }
+    }
+
+    /**
+     * Blocks until the saves queued for write-behind have been written.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.flush();
+        }
+    }
+
+    /**
+     * Writes the queued saves, stops the write-behind thread and saves the hottest calls.
+     * Later saves are written synchronously. The {@link CacheInterface} is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.close();
+        }
+        if (expirationSweeper != null) {
+            expirationSweeper.close();
+        }
+        if (warmUpRecorder != null) {
+            warmUpRecorder.save();
+        }
+    }
+
+    private static boolean isExpired(CacheContext context, long lastTime) {
+        long currentTime = System.currentTimeMillis();
+        long expireTimeMillis = context.getExpirationMillis();
+        return (currentTime - lastTime >= expireTimeMillis) || (lastTime > currentTime);
+    }
+
+    private static boolean isTooStale(CacheContext context, long lastTime) {
+        long currentTime = System.currentTimeMillis();
+        long staleMillis = currentTime - lastTime - context.getExpirationMillis();
+        return (staleMillis >= context.getMaxStaleMillis()) || (lastTime > currentTime);
     }
 
     /**
@@ -212,4 +1446,4 @@ final class CacheProxyHandler implements InvocationHandler {
             }
         }
     }
-}
\ No newline at end of file
+}
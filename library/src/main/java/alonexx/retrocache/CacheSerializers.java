@@ -0,0 +1,40 @@
+package alonexx.retrocache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Adapts the {@code ByteBuffer} operations of a {@link BufferCacheSerializer} to the
+ * serializers that only work with streams.
+ */
+final class CacheSerializers {
+
+    /**
+     * Reads an object from {@code buffer}, through a stream if {@code serializer} isn't a
+     * {@link BufferCacheSerializer}.
+     */
+    static Object readFromBuffer(CacheSerializer serializer, ByteBuffer buffer, CacheContext context)
+            throws Exception {
+        if (serializer instanceof BufferCacheSerializer) {
+            return ((BufferCacheSerializer) serializer).readFromBuffer(buffer, context);
+        }
+        return serializer.readFromCache(new ByteBufferInputStream(buffer), context);
+    }
+
+    /**
+     * Writes an object to a buffer, through a stream if {@code serializer} isn't a
+     * {@link BufferCacheSerializer}.
+     */
+    static ByteBuffer writeToBuffer(CacheSerializer serializer, CacheContext context, Object obj)
+            throws Exception {
+        if (serializer instanceof BufferCacheSerializer) {
+            return ((BufferCacheSerializer) serializer).writeToBuffer(context, obj);
+        }
+        ByteArrayBuffer out = new ByteArrayBuffer(512);
+        serializer.writeToCache(out, context, obj);
+        return ByteBuffer.wrap(out.array(), 0, out.size());
+    }
+
+    private CacheSerializers() {
+        throw new AssertionError();
+    }
+}
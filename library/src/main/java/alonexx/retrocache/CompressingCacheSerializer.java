@@ -0,0 +1,267 @@
+package alonexx.retrocache;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static alonexx.retrocache.internal.Preconditions.checkNotNull;
+
+/**
+ * A serializer that compresses the output of another serializer.
+ *
+ * <p>Records smaller than a threshold, or that don't get smaller, are stored as they are.
+ * Every record starts with a small header naming the compression algorithm, so records
+ * written with any algorithm, or without compression, are read back transparently.
+ *
+ * <p>{@link Algorithm#LZ4} is a pure Java implementation of the LZ4 block format. It is
+ * very fast and works well on the repetitive structure of serialized object graphs.
+ * {@link Algorithm#DEFLATE} compresses better at a higher CPU cost. The buffers and
+ * compressors are reused per thread.
+ */
+public class CompressingCacheSerializer implements CacheSerializer {
+
+    public enum Algorithm {
+        LZ4,
+        DEFLATE
+    }
+
+    private static final int DEFAULT_THRESHOLD = 1024;
+
+    private static final int MAGIC = 0x43;
+    private static final int STORED = 0;
+    private static final int LZ4 = 1;
+    private static final int DEFLATE = 2;
+
+    /**
+     * The largest number of bytes a compressed byte expands to, in an LZ4 block and in a
+     * deflate stream.
+     */
+    private static final int LZ4_MAX_RATIO = 255;
+    private static final int DEFLATE_MAX_RATIO = 1032;
+
+    /**
+     * Buffers larger than this are not kept for reuse after a call.
+     */
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private final CacheSerializer delegate;
+    private final Algorithm algorithm;
+    private final int threshold;
+
+    /**
+     * Compresses records of at least 1 KiB with LZ4.
+     */
+    public CompressingCacheSerializer(CacheSerializer delegate) {
+        this(delegate, Algorithm.LZ4, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold the minimum size in bytes of a record to compress
+     */
+    public CompressingCacheSerializer(CacheSerializer delegate, Algorithm algorithm, int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold < 0");
+        }
+        this.delegate = checkNotNull(delegate);
+        this.algorithm = checkNotNull(algorithm);
+        this.threshold = threshold;
+    }
+
+    @Override
+    public Object readFromCache(InputStream in, CacheContext context) throws Exception {
+        if (in.read() != MAGIC) {
+            throw new IOException("Unknown format.");
+        }
+        int method = in.read();
+        if (method == STORED) {
+            return delegate.readFromCache(in, context);
+        }
+        if (method != LZ4 && method != DEFLATE) {
+            throw new IOException("Unknown compression method " + method);
+        }
+        int rawLength = readVarint(in);
+        int compressedLength = readVarint(in);
+        long maxRawLength = (long) compressedLength * (method == LZ4 ? LZ4_MAX_RATIO : DEFLATE_MAX_RATIO);
+        if (rawLength > maxRawLength) {
+            throw new IOException("Malformed length " + rawLength);
+        }
+        Buffers buffers = BUFFERS.get();
+        try {
+            buffers.compressed.reset();
+            buffers.compressed.readFully(in, compressedLength);
+            byte[] compressed = buffers.compressed.array();
+            byte[] raw = buffers.raw.reset(rawLength);
+            if (method == LZ4) {
+                Lz4BlockCodec.decompress(compressed, compressedLength, raw, rawLength);
+            } else {
+                inflate(buffers.inflater(), compressed, compressedLength, raw, rawLength);
+            }
+            return delegate.readFromCache(new ByteArrayInputStream(raw, 0, rawLength), context);
+        } finally {
+            buffers.trim();
+        }
+    }
+
+    @Override
+    public void writeToCache(OutputStream out, CacheContext context, Object obj) throws Exception {
+        Buffers buffers = BUFFERS.get();
+        try {
+            ByteArrayBuffer raw = buffers.raw;
+            raw.reset();
+            delegate.writeToCache(raw, context, obj);
+            int rawLength = raw.size();
+
+            int compressedLength = -1;
+            if (rawLength >= threshold && rawLength > 0) {
+                compressedLength = algorithm == Algorithm.LZ4
+                        ? compressLz4(buffers, raw.array(), rawLength)
+                        : deflate(buffers, raw.array(), rawLength);
+            }
+            out.write(MAGIC);
+            if (compressedLength < 0 || compressedLength >= rawLength) {
+                out.write(STORED);
+                out.write(raw.array(), 0, rawLength);
+            } else {
+                out.write(algorithm == Algorithm.LZ4 ? LZ4 : DEFLATE);
+                writeVarint(out, rawLength);
+                writeVarint(out, compressedLength);
+                out.write(buffers.compressed.array(), 0, compressedLength);
+            }
+            out.flush();
+        } finally {
+            buffers.trim();
+        }
+    }
+
+    private static int compressLz4(Buffers buffers, byte[] raw, int rawLength) {
+        byte[] compressed = buffers.compressed.reset(Lz4BlockCodec.maxCompressedLength(rawLength));
+        return Lz4BlockCodec.compress(raw, rawLength, compressed, buffers.hashTable());
+    }
+
+    /**
+     * Deflates into a buffer no larger than the input, and returns -1 if it doesn't fit.
+     */
+    private static int deflate(Buffers buffers, byte[] raw, int rawLength) {
+        byte[] compressed = buffers.compressed.reset(rawLength);
+        Deflater deflater = buffers.deflater();
+        deflater.setInput(raw, 0, rawLength);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished() && length < rawLength) {
+            length += deflater.deflate(compressed, length, rawLength - length);
+        }
+        return deflater.finished() ? length : -1;
+    }
+
+    private static void inflate(Inflater inflater, byte[] compressed, int compressedLength,
+            byte[] raw, int rawLength) throws IOException {
+        inflater.setInput(compressed, 0, compressedLength);
+        int length = 0;
+        try {
+            while (length < rawLength) {
+                int remaining = inflater.getRemaining();
+                int count = inflater.inflate(raw, length, rawLength - length);
+                if (inflater.needsDictionary()) {
+                    throw new IOException("Deflate data with a preset dictionary.");
+                }
+                if (count == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.getRemaining() == remaining)) {
+                    break;
+                }
+                length += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed deflate data.", e);
+        }
+        if (length != rawLength) {
+            throw new IOException("Malformed deflate data.");
+        }
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (result < 0) {
+                    throw new IOException("Malformed length " + result);
+                }
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    /**
+     * The buffers and compressors of a thread.
+     */
+    private static final class Buffers {
+
+        ByteArrayBuffer raw = new ByteArrayBuffer(8192);
+        ByteArrayBuffer compressed = new ByteArrayBuffer(8192);
+        private int[] hashTable;
+        private Deflater deflater;
+        private Inflater inflater;
+
+        int[] hashTable() {
+            if (hashTable == null) {
+                hashTable = new int[Lz4BlockCodec.HASH_TABLE_SIZE];
+            }
+            return hashTable;
+        }
+
+        Deflater deflater() {
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            } else {
+                deflater.reset();
+            }
+            return deflater;
+        }
+
+        Inflater inflater() {
+            if (inflater == null) {
+                inflater = new Inflater();
+            } else {
+                inflater.reset();
+            }
+            return inflater;
+        }
+
+        /**
+         * Drops the buffers that have grown too large to keep.
+         */
+        void trim() {
+            if (raw.array().length > MAX_RETAINED_SIZE) {
+                raw = new ByteArrayBuffer(8192);
+            }
+            if (compressed.array().length > MAX_RETAINED_SIZE) {
+                compressed = new ByteArrayBuffer(8192);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package alonexx.retrocache;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the fingerprints of the contents of the records, so that a save of the
+ * content a record already holds only touches it.
+ *
+ * <p>The fingerprint of a result is its version if there's a {@link VersionExtractor},
+ * or else the 128-bit MurmurHash3 of its serialized content. The fingerprint of a record
+ * is known once it's written, or once it's read back, and only the fingerprints of the
+ * {@link #MAX_FINGERPRINTS} most recently used records are kept.
+ *
+ * <p>A record written by overlapping saves may hold the content of either of them, so
+ * its fingerprint is unknown until it's written again.
+ */
+final class ContentFingerprints {
+
+    private static final int MAX_FINGERPRINTS = 4096;
+
+    /**
+     * The fingerprint of a record whose content is unknown.
+     */
+    private static final Object UNKNOWN = new Object();
+
+    private final VersionExtractor versionExtractor;
+
+    /**
+     * The fingerprint of each record, {@link #UNKNOWN}, or the {@link Write} in progress.
+     * Guarded by {@code this}.
+     */
+    private final Map<String, Object> fingerprints = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > MAX_FINGERPRINTS;
+        }
+    };
+
+    /**
+     * @param versionExtractor the extractor of the versions of the results, may be null
+     *                         to hash their serialized contents.
+     */
+    ContentFingerprints(VersionExtractor versionExtractor) {
+        this.versionExtractor = versionExtractor;
+    }
+
+    /**
+     * Returns true if the fingerprints are versions, which don't need the serialized
+     * content.
+     */
+    boolean isVersioned() {
+        return versionExtractor != null;
+    }
+
+    /**
+     * Returns the fingerprint of {@code result}, whose serialized content is {@code content},
+     * or null if it's unknown. {@code content} isn't consumed, and may be null if the
+     * fingerprints are versions.
+     */
+    Object fingerprintOf(CacheContext context, Object result, ByteBuffer content) {
+        if (versionExtractor != null) {
+            return versionExtractor.versionOf(context, result);
+        }
+        return new Murmur3Hasher().putBytes(content.duplicate()).hashHex();
+    }
+
+    /**
+     * Returns true if the record of {@code key} is known to have {@code fingerprint}.
+     */
+    synchronized boolean matches(String key, Object fingerprint) {
+        return fingerprint != null && fingerprint.equals(fingerprints.get(key));
+    }
+
+    /**
+     * Remembers the fingerprint of a record read back from the cache, unless the record
+     * has been written since it was read.
+     */
+    synchronized void putIfAbsent(String key, Object fingerprint) {
+        if (fingerprint != null && !fingerprints.containsKey(key)) {
+            fingerprints.put(key, fingerprint);
+        }
+    }
+
+    /**
+     * Marks the start of a write of the record of {@code key}, which the returned write
+     * must end.
+     */
+    synchronized Write beginWrite(String key) {
+        Write write = new Write();
+        Object current = fingerprints.put(key, write);
+        if (current instanceof Write) {
+            ((Write) current).overlapped = true;
+            write.overlapped = true;
+        }
+        return write;
+    }
+
+    /**
+     * Marks the end of {@code write}, which wrote content of {@code fingerprint}, or null
+     * if it failed.
+     */
+    synchronized void endWrite(String key, Write write, Object fingerprint) {
+        if (fingerprints.get(key) != write) {
+            return;
+        }
+        fingerprints.put(key, fingerprint != null && !write.overlapped ? fingerprint : UNKNOWN);
+    }
+
+    static final class Write {
+
+        /**
+         * Whether another write of the key overlaps this one. Guarded by the
+         * {@code ContentFingerprints}.
+         */
+        boolean overlapped;
+    }
+}
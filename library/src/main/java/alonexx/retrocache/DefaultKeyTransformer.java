@@ -1,20 +1,329 @@
 package alonexx.retrocache;
 
-import java.util.Arrays;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
 
+/**
+ * Derives a key from a 128-bit MurmurHash3 of the method signature and the arguments.
+ *
+ * <p>The key is 32 lowercase hexadecimal digits, which is a valid key for any cache
+ * interface. The arguments are streamed into the hash with a canonical encoding: each
+ * value is prefixed by a type tag, and variable length values by their length, so two
+ * different argument lists don't produce the same input. Equal sets and maps hash the same
+ * regardless of their iteration order.
+ *
+ * <p>Primitive wrappers, strings and other char sequences, enums, dates, arrays,
+ * collections and maps are encoded by value. Other objects have no canonical encoding: a
+ * method with a parameter that can't hold a supported value is rejected when the service
+ * is created, and an argument of an unsupported class fails the call. Use a custom
+ * {@link KeyTransformer} for such methods.
+ *
+ * <p>The hashers are reused per thread, so the only allocation of a call is the key itself.
+ */
 final class DefaultKeyTransformer implements KeyTransformer {
 
+    private static final int TAG_NULL = 0;
+    private static final int TAG_BOOLEAN = 1;
+    private static final int TAG_BYTE = 2;
+    private static final int TAG_SHORT = 3;
+    private static final int TAG_CHAR = 4;
+    private static final int TAG_INT = 5;
+    private static final int TAG_LONG = 6;
+    private static final int TAG_FLOAT = 7;
+    private static final int TAG_DOUBLE = 8;
+    private static final int TAG_STRING = 9;
+    private static final int TAG_ENUM = 10;
+    private static final int TAG_DATE = 11;
+    private static final int TAG_BOOLEAN_ARRAY = 12;
+    private static final int TAG_BYTE_ARRAY = 13;
+    private static final int TAG_SHORT_ARRAY = 14;
+    private static final int TAG_CHAR_ARRAY = 15;
+    private static final int TAG_INT_ARRAY = 16;
+    private static final int TAG_LONG_ARRAY = 17;
+    private static final int TAG_FLOAT_ARRAY = 18;
+    private static final int TAG_DOUBLE_ARRAY = 19;
+    private static final int TAG_OBJECT_ARRAY = 20;
+    private static final int TAG_LIST = 21;
+    private static final int TAG_SET = 22;
+    private static final int TAG_MAP = 23;
+
+    /**
+     * The classes of the values that are encoded, besides primitives and arrays.
+     */
+    private static final Class<?>[] SUPPORTED_CLASSES = {
+            Boolean.class, Byte.class, Short.class, Character.class, Integer.class, Long.class,
+            Float.class, Double.class, CharSequence.class, Enum.class, Date.class,
+            Collection.class, Map.class
+    };
+
     private static final DefaultKeyTransformer INSTANCE = new DefaultKeyTransformer();
 
+    private static final ThreadLocal<Hashers> HASHERS = new ThreadLocal<Hashers>() {
+        @Override
+        protected Hashers initialValue() {
+            return new Hashers();
+        }
+    };
+
     static DefaultKeyTransformer instance() {
         return INSTANCE;
     }
 
     private DefaultKeyTransformer() {}
 
+    /**
+     * Checks that every parameter of {@code method} can hold values that are encoded.
+     * Parameters declared as a supertype of a supported class, such as {@code Object}, are
+     * checked when the method is called.
+     *
+     * @throws IllegalArgumentException if a parameter can't.
+     */
+    static void checkParameters(Method method) {
+        for (Type type : method.getGenericParameterTypes()) {
+            if (!isSupported(type)) {
+                throw new IllegalArgumentException("Can't derive a key from a parameter of type "
+                        + type + " of " + method + ", use a custom KeyTransformer.");
+            }
+        }
+    }
+
+    private static boolean isSupported(Type type) {
+        if (type instanceof WildcardType) {
+            return isSupported(((WildcardType) type).getUpperBounds()[0]);
+        }
+        if (type instanceof TypeVariable) {
+            Type[] bounds = ((TypeVariable<?>) type).getBounds();
+            return bounds.length == 0 || isSupported(bounds[0]);
+        }
+        if (type instanceof GenericArrayType) {
+            return isSupported(((GenericArrayType) type).getGenericComponentType());
+        }
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterizedType = (ParameterizedType) type;
+            if (!isSupported(parameterizedType.getRawType())) {
+                return false;
+            }
+            Class<?> rawType = (Class<?>) parameterizedType.getRawType();
+            if (Collection.class.isAssignableFrom(rawType) || Map.class.isAssignableFrom(rawType)) {
+                for (Type argument : parameterizedType.getActualTypeArguments()) {
+                    if (!isSupported(argument)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        if (!(type instanceof Class)) {
+            return false;
+        }
+        Class<?> c = (Class<?>) type;
+        if (c.isPrimitive()) {
+            return true;
+        }
+        if (c.isArray()) {
+            return isSupported(c.getComponentType());
+        }
+        for (Class<?> supported : SUPPORTED_CLASSES) {
+            if (supported.isAssignableFrom(c) || c.isAssignableFrom(supported)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public String transform(CacheContext context) {
-        return String.valueOf(context.getServiceMethodInfo().getMethod().hashCode())
-                + Arrays.hashCode(context.getArgs());
+        Murmur3Hasher hasher = HASHERS.get().root.reset();
+        hasher.putChars(context.getServiceMethodInfo().getSignature());
+        Object[] args = context.getArgs();
+        if (args != null) {
+            for (Object arg : args) {
+                encode(hasher, arg);
+            }
+        }
+        return hasher.hashHex();
+    }
+
+    private static void encode(Murmur3Hasher hasher, Object value) {
+        if (value == null) {
+            hasher.putByte(TAG_NULL);
+        } else if (value instanceof String) {
+            encodeChars(hasher, (String) value);
+        } else if (value instanceof Integer) {
+            hasher.putByte(TAG_INT).putInt((Integer) value);
+        } else if (value instanceof Long) {
+            hasher.putByte(TAG_LONG).putLong((Long) value);
+        } else if (value instanceof Boolean) {
+            hasher.putByte(TAG_BOOLEAN).putByte((Boolean) value ? 1 : 0);
+        } else if (value instanceof Enum) {
+            Enum<?> e = (Enum<?>) value;
+            hasher.putByte(TAG_ENUM);
+            encodeChars(hasher, e.getDeclaringClass().getName());
+            encodeChars(hasher, e.name());
+        } else if (value instanceof Double) {
+            hasher.putByte(TAG_DOUBLE).putLong(Double.doubleToLongBits((Double) value));
+        } else if (value instanceof Float) {
+            hasher.putByte(TAG_FLOAT).putInt(Float.floatToIntBits((Float) value));
+        } else if (value instanceof Short) {
+            hasher.putByte(TAG_SHORT).putShort((Short) value);
+        } else if (value instanceof Byte) {
+            hasher.putByte(TAG_BYTE).putByte((Byte) value);
+        } else if (value instanceof Character) {
+            hasher.putByte(TAG_CHAR).putShort((Character) value);
+        } else if (value instanceof CharSequence) {
+            encodeChars(hasher, (CharSequence) value);
+        } else if (value instanceof Date) {
+            hasher.putByte(TAG_DATE).putLong(((Date) value).getTime());
+        } else if (value.getClass().isArray()) {
+            encodeArray(hasher, value);
+        } else if (value instanceof List || value instanceof SortedSet) {
+            Collection<?> collection = (Collection<?>) value;
+            hasher.putByte(TAG_LIST).putInt(collection.size());
+            for (Object element : collection) {
+                encode(hasher, element);
+            }
+        } else if (value instanceof Set) {
+            encodeUnordered(hasher, TAG_SET, (Set<?>) value);
+        } else if (value instanceof SortedMap) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            hasher.putByte(TAG_MAP).putInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                encode(hasher, entry.getKey());
+                encode(hasher, entry.getValue());
+            }
+        } else if (value instanceof Map) {
+            encodeUnordered(hasher, TAG_MAP, ((Map<?, ?>) value).entrySet());
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            hasher.putByte(TAG_LIST).putInt(collection.size());
+            for (Object element : collection) {
+                encode(hasher, element);
+            }
+        } else {
+            throw new IllegalArgumentException("Can't derive a key from a "
+                    + value.getClass().getName() + ", use a custom KeyTransformer.");
+        }
+    }
+
+    private static void encodeChars(Murmur3Hasher hasher, CharSequence s) {
+        hasher.putByte(TAG_STRING).putInt(s.length()).putChars(s);
+    }
+
+    /**
+     * Encodes the elements of {@code collection}, or the entries of a map, so that the
+     * result doesn't depend on the iteration order: each element is hashed on its own, and
+     * the hashes are summed.
+     */
+    private static void encodeUnordered(Murmur3Hasher hasher, int tag, Collection<?> collection) {
+        Hashers hashers = HASHERS.get();
+        Murmur3Hasher elementHasher = hashers.acquire();
+        long low = 0;
+        long high = 0;
+        try {
+            for (Object element : collection) {
+                elementHasher.reset();
+                if (element instanceof Map.Entry) {
+                    Map.Entry<?, ?> entry = (Map.Entry<?, ?>) element;
+                    encode(elementHasher, entry.getKey());
+                    encode(elementHasher, entry.getValue());
+                } else {
+                    encode(elementHasher, element);
+                }
+                low += elementHasher.hashLow();
+                high += elementHasher.hashHigh();
+            }
+        } finally {
+            hashers.release();
+        }
+        hasher.putByte(tag).putInt(collection.size()).putLong(low).putLong(high);
+    }
+
+    private static void encodeArray(Murmur3Hasher hasher, Object array) {
+        if (array instanceof byte[]) {
+            byte[] a = (byte[]) array;
+            hasher.putByte(TAG_BYTE_ARRAY).putInt(a.length).putBytes(a, 0, a.length);
+        } else if (array instanceof int[]) {
+            int[] a = (int[]) array;
+            hasher.putByte(TAG_INT_ARRAY).putInt(a.length);
+            for (int v : a) {
+                hasher.putInt(v);
+            }
+        } else if (array instanceof long[]) {
+            long[] a = (long[]) array;
+            hasher.putByte(TAG_LONG_ARRAY).putInt(a.length);
+            for (long v : a) {
+                hasher.putLong(v);
+            }
+        } else if (array instanceof char[]) {
+            char[] a = (char[]) array;
+            hasher.putByte(TAG_CHAR_ARRAY).putInt(a.length);
+            for (char v : a) {
+                hasher.putShort(v);
+            }
+        } else if (array instanceof boolean[]) {
+            boolean[] a = (boolean[]) array;
+            hasher.putByte(TAG_BOOLEAN_ARRAY).putInt(a.length);
+            for (boolean v : a) {
+                hasher.putByte(v ? 1 : 0);
+            }
+        } else if (array instanceof short[]) {
+            short[] a = (short[]) array;
+            hasher.putByte(TAG_SHORT_ARRAY).putInt(a.length);
+            for (short v : a) {
+                hasher.putShort(v);
+            }
+        } else if (array instanceof float[]) {
+            float[] a = (float[]) array;
+            hasher.putByte(TAG_FLOAT_ARRAY).putInt(a.length);
+            for (float v : a) {
+                hasher.putInt(Float.floatToIntBits(v));
+            }
+        } else if (array instanceof double[]) {
+            double[] a = (double[]) array;
+            hasher.putByte(TAG_DOUBLE_ARRAY).putInt(a.length);
+            for (double v : a) {
+                hasher.putLong(Double.doubleToLongBits(v));
+            }
+        } else {
+            Object[] a = (Object[]) array;
+            hasher.putByte(TAG_OBJECT_ARRAY).putInt(a.length);
+            for (Object v : a) {
+                encode(hasher, v);
+            }
+        }
+    }
+
+    /**
+     * The hashers of a thread: one for the key, and one for the elements of each level of
+     * nested sets and maps.
+     */
+    private static final class Hashers {
+
+        final Murmur3Hasher root = new Murmur3Hasher();
+        final List<Murmur3Hasher> elementHashers = new ArrayList<>();
+        int depth;
+
+        Murmur3Hasher acquire() {
+            if (depth == elementHashers.size()) {
+                elementHashers.add(new Murmur3Hasher());
+            }
+            return elementHashers.get(depth++);
+        }
+
+        void release() {
+            depth--;
+        }
     }
 }
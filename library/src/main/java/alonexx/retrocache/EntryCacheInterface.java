@@ -0,0 +1,23 @@
+package alonexx.retrocache;
+
+import java.io.IOException;
+
+/**
+ * A {@link CacheInterface} that finds the metadata and the content of a record with
+ * a single lookup.
+ *
+ * <p>Reading a record from a plain {@code CacheInterface} takes two lookups, one by
+ * {@link #getCreationTimeForKey(String)} and another by {@link #getInputStreamForKey(String)}.
+ * Implementations that can serve both at once should implement this interface. The
+ * proxy falls back to the two lookups for the other implementations.
+ */
+public interface EntryCacheInterface extends CacheInterface {
+
+    /**
+     * Returns the entry for a specified key. The caller must close the entry.
+     *
+     * @throws IOException If an IO error occurs, throw an IOException.
+     * @throws KeyNotFoundException If the record does not exist, throw a KeyNotFoundException.
+     */
+    CacheEntry getEntryForKey(String key) throws IOException;
+}
@@ -0,0 +1,164 @@
+package alonexx.retrocache;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes the records that are past their expiration and a grace period in the
+ * background, so that they don't take the room of live records until the cache evicts
+ * them.
+ *
+ * <p>The deadline of a record is scheduled in a {@link TimerWheel} when the record is
+ * written or read, so the records written by an earlier process are only swept once
+ * they have been read. Up to {@link #MAX_KEYS} records are tracked; the others are left
+ * to the eviction of the cache.
+ *
+ * <p>The sweeper thread runs at the lowest priority. It advances the wheel once per tick,
+ * and hands the records that are due to the remover one at a time, so that a sweep never
+ * holds a lock of the cache for long. The remover removes a record only if its creation
+ * time is still the scheduled one, with {@link RemovableCacheInterface#remove(String, long)},
+ * since it may have been written again since it was scheduled.
+ */
+final class ExpirationSweeper implements Closeable {
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int MAX_KEYS = 65536;
+
+    private final long staleGraceMillis;
+
+    /**
+     * Guarded by {@code this}.
+     */
+    private final TimerWheel wheel = new TimerWheel(System.currentTimeMillis());
+    private Remover remover;
+    private Thread sweeperThread;
+    private boolean closed;
+
+    ExpirationSweeper(long staleGraceMillis) {
+        if (staleGraceMillis < 0) {
+            throw new IllegalArgumentException("staleGraceMillis < 0");
+        }
+        this.staleGraceMillis = staleGraceMillis;
+    }
+
+    /**
+     * Starts the sweeper thread that removes the records that are due with {@code remover}.
+     */
+    synchronized void start(Remover remover) {
+        if (this.remover != null) {
+            throw new IllegalStateException("The sweeper has already been started.");
+        }
+        this.remover = remover;
+        sweeperThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, "Retrocache-ExpirationSweeper");
+        sweeperThread.setDaemon(true);
+        sweeperThread.setPriority(Thread.MIN_PRIORITY);
+        sweeperThread.start();
+    }
+
+    /**
+     * Schedules the removal of the record of {@code key}, created at {@code creationTime}.
+     * A record is removed once it's past its expiration and the grace period, or its max
+     * stale period if it's longer and the record is revalidated in the background. A
+     * record whose max stale period is unbounded is never removed.
+     */
+    void schedule(CacheContext context, String key, long creationTime) {
+        long lifetime = context.getExpirationMillis();
+        long grace = staleGraceMillis;
+        if (context.canRevalidateInBackground()) {
+            grace = Math.max(grace, context.getMaxStaleMillis());
+        }
+        if (grace > Long.MAX_VALUE - lifetime || lifetime + grace > Long.MAX_VALUE - creationTime) {
+            unschedule(key);
+            return;
+        }
+        long deadline = creationTime + lifetime + grace;
+        synchronized (this) {
+            if (!closed && (wheel.size() < MAX_KEYS || wheel.contains(key))) {
+                wheel.schedule(key, creationTime, deadline);
+            }
+        }
+    }
+
+    /**
+     * Schedules the removal of the record of {@code key} again, after it was found to be
+     * created at {@code creationTime} instead of the time it was scheduled with.
+     */
+    void reschedule(String key, long creationTime, long lifetime) {
+        synchronized (this) {
+            if (!closed) {
+                wheel.schedule(key, creationTime, creationTime + lifetime);
+            }
+        }
+    }
+
+    synchronized void unschedule(String key) {
+        wheel.unschedule(key);
+    }
+
+    /**
+     * Stops the sweeper thread. The records that are due are left in the cache.
+     */
+    @Override
+    public void close() {
+        Thread sweeperThread;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            sweeperThread = this.sweeperThread;
+        }
+        if (sweeperThread != null) {
+            sweeperThread.interrupt();
+        }
+    }
+
+    private void sweep() {
+        Remover remover;
+        synchronized (this) {
+            remover = this.remover;
+        }
+        List<TimerWheel.Node> expired = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                try {
+                    if (!closed) {
+                        wait(TICK_MILLIS);
+                    }
+                } catch (InterruptedException ignored) {
+                }
+                if (closed) {
+                    return;
+                }
+                wheel.advance(System.currentTimeMillis(), expired);
+            }
+            for (TimerWheel.Node node : expired) {
+                if (isClosed()) {
+                    return;
+                }
+                try {
+                    remover.removeExpired(node.key, node.creationTime, node.deadline - node.creationTime);
+                } catch (Throwable ignored) {
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    interface Remover {
+
+        /**
+         * Removes the record of {@code key}, scheduled to be removed {@code lifetime}
+         * after {@code creationTime}, unless it has been written since.
+         */
+        void removeExpired(String key, long creationTime, long lifetime);
+    }
+}
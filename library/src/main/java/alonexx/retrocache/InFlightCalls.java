@@ -0,0 +1,59 @@
+package alonexx.retrocache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Func0;
+
+/**
+ * A registry of the cached calls that are in progress, keyed by the cache key.
+ *
+ * <p>When a call is subscribed while another call with the same key is running, it
+ * attaches to the running one instead of reading the cache and calling the source
+ * again. All the attached subscribers receive the same result or error, and the
+ * result is saved only once. The call is removed from the registry as soon as it
+ * terminates or all of its subscribers unsubscribe.
+ */
+final class InFlightCalls {
+
+    private final ConcurrentMap<String, Observable<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * Returns an {@code Observable} that subscribes to {@code call}, unless a call with the
+     * same key is already in flight at the time of subscription.
+     */
+    Observable<Object> coalesce(final String key, final Observable<Object> call) {
+        return Observable.defer(new Func0<Observable<Object>>() {
+            @Override
+            public Observable<Object> call() {
+                Observable<Object> inFlight = calls.get(key);
+                if (inFlight != null) {
+                    return inFlight;
+                }
+                Observable<Object> shared = share(key, call);
+                inFlight = calls.putIfAbsent(key, shared);
+                return inFlight != null ? inFlight : shared;
+            }
+        });
+    }
+
+    private Observable<Object> share(final String key, Observable<Object> call) {
+        final AtomicReference<Observable<Object>> self = new AtomicReference<>();
+        Action0 unregister = new Action0() {
+            @Override
+            public void call() {
+                calls.remove(key, self.get());
+            }
+        };
+        Observable<Object> shared = call
+                .doOnTerminate(unregister)
+                .doOnUnsubscribe(unregister)
+                .replay(1)
+                .refCount();
+        self.set(shared);
+        return shared;
+    }
+}
@@ -0,0 +1,397 @@
+package alonexx.retrocache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static alonexx.retrocache.internal.Preconditions.checkNotNull;
+
+/**
+ * A {@code CacheInterface} that lets a single writer at a time write the record of a key
+ * to another cache, so that concurrent saves of the same key don't fail in caches that
+ * allow a single editor per key, such as {@code DiskLruCache}.
+ * <code>
+ *     CacheInterface cache = new KeyLockingCache(new DiskLruCacheJakeWhartonImpl(dir, 1, maxSize));
+ * </code>
+ *
+ * <p>A key is locked from the opening of its output stream to its close. A writer of a
+ * locked key either waits for the lock, up to a timeout, or, by default, doesn't wait:
+ * its content is buffered, and written when the lock holder closes its stream. Only the
+ * last content closed is kept, since it replaces the earlier ones anyway: a buffered
+ * content closed before the stream of the holder is dropped.
+ *
+ * <p>Each key has its own lock, created when the key is first written and dropped when
+ * it's released, so writers of different keys never contend.
+ */
+public class KeyLockingCache
+        implements BufferCacheInterface, BatchCacheInterface, TouchableCacheInterface,
+        RemovableCacheInterface, Flushable, Closeable {
+
+    private final CacheInterface cache;
+    private final long timeoutNanos;
+    private final ConcurrentMap<String, KeyLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache whose writers never wait: the last content closed is written.
+     */
+    public KeyLockingCache(CacheInterface cache) {
+        this.cache = checkNotNull(cache);
+        this.timeoutNanos = -1;
+    }
+
+    /**
+     * Creates a cache whose writers wait for the lock of a key up to {@code timeout}.
+     * A writer that times out fails with an {@code IOException}.
+     */
+    public KeyLockingCache(CacheInterface cache, long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout < 0");
+        }
+        this.cache = checkNotNull(cache);
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    @Override
+    public OutputStream newOutputStreamForKey(String key) throws IOException {
+        KeyLock lock = acquire(key);
+        if (lock == null) {
+            return new PendingOutputStream(key);
+        }
+        OutputStream out;
+        try {
+            out = cache.newOutputStreamForKey(key);
+        } catch (IOException | RuntimeException e) {
+            release(key, lock);
+            throw e;
+        }
+        return new LockedOutputStream(out, key, lock);
+    }
+
+    @Override
+    public InputStream getInputStreamForKey(String key) throws IOException {
+        return cache.getInputStreamForKey(key);
+    }
+
+    @Override
+    public long getCreationTimeForKey(String key) throws IOException {
+        return cache.getCreationTimeForKey(key);
+    }
+
+    @Override
+    public BufferCacheEntry getEntryForKey(String key) throws IOException {
+        return CacheInterfaces.asBufferEntry(CacheInterfaces.getEntry(cache, key));
+    }
+
+    @Override
+    public Map<String, CacheEntry> getAll(Collection<String> keys) throws IOException {
+        return CacheInterfaces.getAll(cache, keys);
+    }
+
+    @Override
+    public void putBuffer(String key, ByteBuffer content) throws IOException {
+        KeyLock lock = acquire(key);
+        if (lock == null) {
+            setPending(key, copyOf(content));
+            return;
+        }
+        try {
+            CacheInterfaces.putBuffer(cache, key, content);
+        } finally {
+            release(key, lock);
+        }
+    }
+
+    /**
+     * Locks the keys in their natural order, so that concurrent batches can't deadlock,
+     * and writes the records with a single batch write.
+     */
+    @Override
+    public void putAll(Map<String, byte[]> contents) throws IOException {
+        Map<String, byte[]> locked = new TreeMap<>();
+        List<KeyLock> held = new ArrayList<>(contents.size());
+        boolean written = false;
+        try {
+            for (Map.Entry<String, byte[]> content : new TreeMap<>(contents).entrySet()) {
+                String key = content.getKey();
+                KeyLock lock = acquire(key);
+                if (lock == null) {
+                    setPending(key, ByteBuffer.wrap(content.getValue()));
+                } else {
+                    held.add(lock);
+                    locked.put(key, content.getValue());
+                }
+            }
+            CacheInterfaces.putAll(cache, locked);
+            written = true;
+        } finally {
+            IOException failure = null;
+            for (KeyLock lock : held) {
+                try {
+                    release(lock.key, lock);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (written && failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Touches the record of {@code key} without taking its lock. A write in progress
+     * replaces the record anyway.
+     */
+    @Override
+    public boolean touch(String key) throws IOException {
+        return CacheInterfaces.touch(cache, key);
+    }
+
+    /**
+     * Removes the record of {@code key} without taking its lock. A write in progress
+     * writes the record again.
+     */
+    @Override
+    public boolean remove(String key) throws IOException {
+        return CacheInterfaces.remove(cache, key);
+    }
+
+    @Override
+    public boolean remove(String key, long creationTime) throws IOException {
+        return CacheInterfaces.remove(cache, key, creationTime);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (cache instanceof Flushable) {
+            ((Flushable) cache).flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.close();
+    }
+
+    /**
+     * Locks {@code key}. Returns null if the key is locked and writers don't wait.
+     *
+     * @throws IOException if the lock isn't acquired within the timeout.
+     */
+    private KeyLock acquire(String key) throws IOException {
+        checkNotNull(key);
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            KeyLock lock = new KeyLock(key);
+            KeyLock existing = locks.putIfAbsent(key, lock);
+            if (existing == null) {
+                return lock;
+            }
+            synchronized (existing) {
+                if (timeoutNanos < 0) {
+                    if (!existing.released) {
+                        return null;
+                    }
+                    continue;
+                }
+                while (!existing.released) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new IOException("Timed out waiting to write key : " + key);
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(existing, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting to write key : " + key, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives the content of a writer that didn't wait to the holder of the lock of
+     * {@code key}, replacing the content of an earlier one. Takes the lock instead if it
+     * has been released meanwhile.
+     */
+    private void setPending(String key, ByteBuffer content) throws IOException {
+        while (true) {
+            KeyLock existing = locks.get(key);
+            if (existing != null) {
+                synchronized (existing) {
+                    if (!existing.released) {
+                        existing.pending = content;
+                        existing.pendingCount++;
+                        return;
+                    }
+                }
+                continue;
+            }
+            KeyLock lock = new KeyLock(key);
+            if (locks.putIfAbsent(key, lock) == null) {
+                try {
+                    CacheInterfaces.putBuffer(cache, key, content);
+                } finally {
+                    release(key, lock);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the pending content of {@code lock}, if any, then unlocks the key and wakes
+     * up the waiting writers.
+     *
+     * @throws IOException if the pending content can't be written.
+     */
+    private void release(String key, KeyLock lock) throws IOException {
+        while (true) {
+            ByteBuffer pending;
+            synchronized (lock) {
+                pending = lock.pending;
+                lock.pending = null;
+                if (pending == null) {
+                    lock.released = true;
+                    locks.remove(key, lock);
+                    lock.notifyAll();
+                    return;
+                }
+            }
+            try {
+                CacheInterfaces.putBuffer(cache, key, pending);
+            } catch (IOException | RuntimeException e) {
+                synchronized (lock) {
+                    // A newer content may have come meanwhile; it's dropped with the lock.
+                    lock.pending = null;
+                    lock.released = true;
+                    locks.remove(key, lock);
+                    lock.notifyAll();
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer content) {
+        ByteBuffer copy = ByteBuffer.allocate(content.remaining());
+        copy.put(content);
+        copy.flip();
+        return copy;
+    }
+
+    private static final class KeyLock {
+
+        final String key;
+
+        /**
+         * Whether the key has been unlocked. Guarded by {@code this}.
+         */
+        boolean released;
+
+        /**
+         * The last content given by a writer that didn't wait. Guarded by {@code this}.
+         */
+        ByteBuffer pending;
+
+        /**
+         * The number of contents given by writers that didn't wait. Guarded by {@code this}.
+         */
+        int pendingCount;
+
+        KeyLock(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Drops the pending content if no content has been given since {@code count}
+         * contents, as the holder then closed last.
+         */
+        synchronized void dropPendingOlderThan(int count) {
+            if (pendingCount == count) {
+                pending = null;
+            }
+        }
+    }
+
+    /**
+     * A stream of the lock holder, which unlocks the key when it's closed.
+     */
+    private final class LockedOutputStream extends FilterOutputStream {
+
+        private final String key;
+        private final KeyLock lock;
+        private boolean closed;
+
+        LockedOutputStream(OutputStream out, String key, KeyLock lock) {
+            super(out);
+            this.key = key;
+            this.lock = lock;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            int pendingCount;
+            synchronized (lock) {
+                pendingCount = lock.pendingCount;
+            }
+            boolean committed = false;
+            try {
+                out.close();
+                committed = true;
+            } finally {
+                if (committed) {
+                    lock.dropPendingOlderThan(pendingCount);
+                }
+                release(key, lock);
+            }
+        }
+    }
+
+    /**
+     * A stream of a writer that didn't wait for the lock, whose content is buffered until
+     * it's closed.
+     */
+    private final class PendingOutputStream extends ByteArrayOutputStream {
+
+        private final String key;
+        private boolean closed;
+
+        PendingOutputStream(String key) {
+            super(512);
+            this.key = key;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            setPending(key, ByteBuffer.wrap(buf, 0, count));
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package alonexx.retrocache;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure Java implementation of the LZ4 block format.
+ *
+ * <p>The compressor is a greedy single-pass matcher with a 4096-entry hash table, which
+ * trades some compression ratio for speed, like the fast mode of the reference
+ * implementation. Its output can be decoded by any LZ4 block decoder.
+ */
+final class Lz4BlockCodec {
+
+    private static final int HASH_LOG = 12;
+
+    static final int HASH_TABLE_SIZE = 1 << HASH_LOG;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int SKIP_TRIGGER = 6;
+
+    /**
+     * Returns the size of the largest output {@link #compress} can produce for an input
+     * of {@code length} bytes.
+     */
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses {@code src[0, length)} into {@code dst} and returns the compressed length.
+     *
+     * @param dst       at least {@link #maxCompressedLength(int)} bytes
+     * @param hashTable a scratch table of {@link #HASH_TABLE_SIZE} entries
+     */
+    static int compress(byte[] src, int length, byte[] dst, int[] hashTable) {
+        Arrays.fill(hashTable, -1);
+        int anchor = 0;
+        int op = 0;
+        if (length > MF_LIMIT) {
+            int matchLimit = length - LAST_LITERALS;
+            int searchLimit = length - MF_LIMIT;
+            int ip = 0;
+            int misses = 0;
+            while (ip < searchLimit) {
+                int sequence = readInt(src, ip);
+                int hash = hash(sequence);
+                int ref = hashTable[hash];
+                hashTable[hash] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip += 1 + (misses++ >>> SKIP_TRIGGER);
+                    continue;
+                }
+                misses = 0;
+                while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+                ip += matchLength;
+                anchor = ip;
+                if (ip - 2 < searchLimit) {
+                    hashTable[hash(readInt(src, ip - 2))] = ip - 2;
+                }
+            }
+        }
+        return writeLiterals(src, anchor, length - anchor, dst, op);
+    }
+
+    /**
+     * Decompresses {@code src[0, length)} into {@code dst}, which must hold exactly
+     * {@code decompressedLength} bytes of output. The bytes of {@code src} after
+     * {@code length} are never read.
+     *
+     * @throws IOException if the input is malformed.
+     */
+    static void decompress(byte[] src, int length, byte[] dst, int decompressedLength)
+            throws IOException {
+        if (length <= 0 || length > src.length || decompressedLength > dst.length) {
+            throw malformedBlock();
+        }
+        int ip = 0;
+        int op = 0;
+        while (true) {
+            if (ip == length) {
+                // The last sequence has literals only, and ends the block.
+                throw malformedBlock();
+            }
+            int token = src[ip++] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (ip == length) {
+                        throw malformedBlock();
+                    }
+                    b = src[ip++] & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            // A length that overflowed is negative.
+            if (literalLength < 0 || literalLength > length - ip
+                    || literalLength > decompressedLength - op) {
+                throw malformedBlock();
+            }
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip == length) {
+                break;
+            }
+            if (length - ip < 2) {
+                throw malformedBlock();
+            }
+            int offset = (src[ip++] & 0xFF) | ((src[ip++] & 0xFF) << 8);
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip == length) {
+                        throw malformedBlock();
+                    }
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int ref = op - offset;
+            if (offset == 0 || ref < 0 || matchLength < 0 || matchLength > decompressedLength - op) {
+                throw malformedBlock();
+            }
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+        if (op != decompressedLength) {
+            throw malformedBlock();
+        }
+    }
+
+    private static IOException malformedBlock() {
+        return new IOException("Malformed LZ4 block.");
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literalLength,
+            byte[] dst, int op, int offset, int matchLength) {
+        int tokenPosition = op++;
+        int token;
+        if (literalLength >= 15) {
+            token = 15 << 4;
+            op = writeLength(dst, op, literalLength - 15);
+        } else {
+            token = literalLength << 4;
+        }
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        int extraMatchLength = matchLength - MIN_MATCH;
+        if (extraMatchLength >= 15) {
+            token |= 15;
+            op = writeLength(dst, op, extraMatchLength - 15);
+        } else {
+            token |= extraMatchLength;
+        }
+        dst[tokenPosition] = (byte) token;
+        return op;
+    }
+
+    private static int writeLiterals(byte[] src, int start, int length, byte[] dst, int op) {
+        if (length >= 15) {
+            dst[op++] = (byte) (15 << 4);
+            op = writeLength(dst, op, length - 15);
+        } else {
+            dst[op++] = (byte) (length << 4);
+        }
+        System.arraycopy(src, start, dst, op, length);
+        return op + length;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | (b[i + 3] << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private Lz4BlockCodec() {
+        throw new AssertionError();
+    }
+}
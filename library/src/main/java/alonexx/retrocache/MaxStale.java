@@ -0,0 +1,22 @@
+package alonexx.retrocache;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An annotation that represents how long a record may still be served after its
+ * {@link Expiration} while it is refreshed in the background. It only takes effect
+ * with {@link CachePolicy#STALE_WHILE_REVALIDATE}. Methods without this annotation
+ * serve expired records for up to a day.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MaxStale {
+
+    int value() default 0;
+
+    TimeUnit timeUnit() default TimeUnit.SECONDS;
+}
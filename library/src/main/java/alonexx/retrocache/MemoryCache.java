@@ -0,0 +1,311 @@
+package alonexx.retrocache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static alonexx.retrocache.internal.Preconditions.checkNotNull;
+
+/**
+ * A bounded in-heap cache that holds decoded objects in front of a {@link CacheInterface}.
+ *
+ * <p>Entries are keyed by the key generated by the {@link KeyTransformer} and remember
+ * their creation time, so the proxy applies the same {@link Expiration} checks as it
+ * does for records on disk. A hit skips both the disk IO and the deserialization.
+ *
+ * <p>The eviction policy is a segmented LRU. New entries are admitted to a probation
+ * segment and promoted to a protected segment when they are read again, so a burst of
+ * keys that are read only once can't flush the hot entries out of the cache. The
+ * protected segment takes up to 80 percent of the maximum weight.
+ *
+ * <p>A hit doesn't take the lock of the cache: the entries are looked up in a concurrent
+ * map, and the hits are recorded in a buffer that is replayed on the segments under the
+ * lock, when it fills up or before a write. The buffer drops hits when it's contended,
+ * so the order of the segments is an approximation of the recent use.
+ *
+ * <p>Note that the same object instance is returned to every caller that hits the
+ * cache. The cached objects should be immutable, or at least never modified by clients.
+ */
+public final class MemoryCache {
+
+    private static final int PROTECTED_PERCENTAGE = 80;
+
+    /**
+     * The number of hits recorded before they are replayed, a power of two.
+     */
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    /**
+     * The number of hits after which a reader tries to replay the buffer.
+     */
+    private static final int DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    private static final Weigher SINGLETON_WEIGHER = new Weigher() {
+        @Override
+        public int weigh(String key, Object value) {
+            return 1;
+        }
+    };
+
+    private final long maxWeight;
+    private final long maxProtectedWeight;
+    private final Weigher weigher;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<Entry> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+    private final AtomicLong readCount = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The segments, from the least recently used entry to the most recently used one.
+     * Guarded by {@code lock}, as are their weights.
+     */
+    private final Entry probation = new Entry(null, null, 0, 0);
+    private final Entry protectedSegment = new Entry(null, null, 0, 0);
+    private long probationWeight;
+    private long protectedWeight;
+
+    /**
+     * Creates a cache that holds at most {@code maxEntries} objects.
+     */
+    public MemoryCache(long maxEntries) {
+        this(maxEntries, SINGLETON_WEIGHER);
+    }
+
+    /**
+     * Creates a cache whose entries are weighed by {@code weigher}, with a total
+     * weight of at most {@code maxWeight}.
+     */
+    public MemoryCache(long maxWeight, Weigher weigher) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight <= 0");
+        }
+        this.maxWeight = maxWeight;
+        this.maxProtectedWeight = maxWeight * PROTECTED_PERCENTAGE / 100;
+        this.weigher = checkNotNull(weigher);
+    }
+
+    /**
+     * Returns the entry for {@code key}, or null if there's no such entry. An entry
+     * found in the probation segment is promoted to the protected segment when the hit
+     * is replayed.
+     */
+    Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            recordHit(entry);
+        }
+        return entry;
+    }
+
+    void put(String key, Object value, long creationTime) {
+        int weight = weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalStateException("Negative weight: " + weight);
+        }
+        lock.lock();
+        try {
+            drainHits();
+            removeEntry(entries.get(key));
+            if (weight > maxWeight) {
+                return;
+            }
+            Entry entry = new Entry(key, value, creationTime, weight);
+            entries.put(key, entry);
+            entry.linkBefore(probation);
+            probationWeight += weight;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(String key) {
+        lock.lock();
+        try {
+            removeEntry(entries.get(key));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the entry for {@code key} if it was created at or before {@code time}.
+     */
+    void removeIfCreatedBefore(String key, long time) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.creationTime <= time) {
+                removeEntry(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards all the entries.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            drainHits();
+            for (Entry segment : new Entry[]{probation, protectedSegment}) {
+                while (segment.next != segment) {
+                    removeEntry(segment.next);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the sum of the weights of the entries in this cache.
+     */
+    public long weight() {
+        lock.lock();
+        try {
+            return probationWeight + protectedWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Records a hit of {@code entry} in the buffer, overwriting the oldest one if it
+     * hasn't been replayed yet, and replays the buffer if it's due and the lock is free.
+     */
+    private void recordHit(Entry entry) {
+        long count = readCount.getAndIncrement();
+        readBuffer.lazySet((int) (count & READ_BUFFER_MASK), entry);
+        if ((count + 1) % DRAIN_THRESHOLD == 0 && lock.tryLock()) {
+            try {
+                drainHits();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays the recorded hits: an entry in probation is promoted, and a protected entry
+     * becomes the most recently used one. The entries removed since their hit are skipped.
+     */
+    private void drainHits() {
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            Entry entry = readBuffer.getAndSet(i, null);
+            if (entry == null || entry.next == null) {
+                continue;
+            }
+            entry.unlink();
+            if (entry.isProtected) {
+                entry.linkBefore(protectedSegment);
+            } else {
+                probationWeight -= entry.weight;
+                entry.isProtected = true;
+                entry.linkBefore(protectedSegment);
+                protectedWeight += entry.weight;
+                demoteProtected();
+            }
+        }
+    }
+
+    private void removeEntry(Entry entry) {
+        if (entry == null || entry.next == null) {
+            return;
+        }
+        entries.remove(entry.key, entry);
+        entry.unlink();
+        if (entry.isProtected) {
+            protectedWeight -= entry.weight;
+        } else {
+            probationWeight -= entry.weight;
+        }
+    }
+
+    /**
+     * Moves the least recently used protected entries back to probation until the
+     * protected segment fits its share of the maximum weight.
+     */
+    private void demoteProtected() {
+        while (protectedWeight > maxProtectedWeight && protectedSegment.next != protectedSegment) {
+            Entry eldest = protectedSegment.next;
+            eldest.unlink();
+            protectedWeight -= eldest.weight;
+            eldest.isProtected = false;
+            eldest.linkBefore(probation);
+            probationWeight += eldest.weight;
+        }
+        evict();
+    }
+
+    private void evict() {
+        while (probationWeight + protectedWeight > maxWeight && probation.next != probation) {
+            removeEntry(probation.next);
+        }
+        while (probationWeight + protectedWeight > maxWeight && protectedSegment.next != protectedSegment) {
+            removeEntry(protectedSegment.next);
+        }
+    }
+
+    /**
+     * Calculates the weight of a cached object, such as its approximate size in bytes.
+     */
+    public interface Weigher {
+
+        int weigh(String key, Object value);
+    }
+
+    static final class Entry {
+
+        final String key;
+
+        final Object value;
+
+        final long creationTime;
+
+        final int weight;
+
+        /**
+         * The neighbours of the entry in its segment, null once it's removed, and whether
+         * the segment is the protected one. Guarded by the lock of the cache.
+         */
+        Entry previous = this;
+        Entry next = this;
+        boolean isProtected;
+
+        Entry(Object value, long creationTime, int weight) {
+            this(null, value, creationTime, weight);
+        }
+
+        Entry(String key, Object value, long creationTime, int weight) {
+            this.key = key;
+            this.value = value;
+            this.creationTime = creationTime;
+            this.weight = weight;
+        }
+
+        void linkBefore(Entry sentinel) {
+            previous = sentinel.previous;
+            next = sentinel;
+            previous.next = this;
+            sentinel.previous = this;
+        }
+
+        void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = null;
+            next = null;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package alonexx.retrocache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A streaming implementation of the 128-bit x64 variant of MurmurHash3.
+ *
+ * <p>The bytes are hashed as they are put, so the input is never buffered as a whole. A
+ * hasher is not thread-safe, and can be reused after {@link #reset()}.
+ */
+final class Murmur3Hasher {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private long h1;
+    private long h2;
+    private long k1;
+    private long k2;
+    private int bufferLength;
+    private long length;
+
+    Murmur3Hasher() {
+        reset();
+    }
+
+    Murmur3Hasher reset() {
+        h1 = 0;
+        h2 = 0;
+        k1 = 0;
+        k2 = 0;
+        bufferLength = 0;
+        length = 0;
+        return this;
+    }
+
+    Murmur3Hasher putByte(int b) {
+        long value = b & 0xFFL;
+        if (bufferLength < 8) {
+            k1 |= value << (bufferLength << 3);
+        } else {
+            k2 |= value << ((bufferLength - 8) << 3);
+        }
+        if (++bufferLength == 16) {
+            mixBlock();
+        }
+        length++;
+        return this;
+    }
+
+    Murmur3Hasher putBytes(byte[] b, int off, int len) {
+        for (int i = off, end = off + len; i < end; i++) {
+            putByte(b[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Puts the remaining bytes of {@code buffer}, and consumes them.
+     */
+    Murmur3Hasher putBytes(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            putBytes(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            while (buffer.hasRemaining()) {
+                putByte(buffer.get());
+            }
+        }
+        return this;
+    }
+
+    Murmur3Hasher putShort(int value) {
+        putByte(value);
+        return putByte(value >>> 8);
+    }
+
+    Murmur3Hasher putInt(int value) {
+        putByte(value);
+        putByte(value >>> 8);
+        putByte(value >>> 16);
+        return putByte(value >>> 24);
+    }
+
+    Murmur3Hasher putLong(long value) {
+        putInt((int) value);
+        return putInt((int) (value >>> 32));
+    }
+
+    /**
+     * Puts the UTF-16 code units of {@code s}, without encoding it to bytes first.
+     */
+    Murmur3Hasher putChars(CharSequence s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            putShort(s.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Finishes the hash and returns its low 64 bits. The hasher must be reset before it is
+     * reused.
+     */
+    long hashLow() {
+        finish();
+        return h1;
+    }
+
+    /**
+     * Returns the high 64 bits of a hash finished by {@link #hashLow()}.
+     */
+    long hashHigh() {
+        return h2;
+    }
+
+    /**
+     * Returns the hash as 32 lowercase hexadecimal digits. The hasher must be reset before
+     * it is reused.
+     */
+    String hashHex() {
+        finish();
+        char[] chars = new char[32];
+        writeHex(h1, chars, 0);
+        writeHex(h2, chars, 16);
+        return new String(chars);
+    }
+
+    private void finish() {
+        if (bufferLength > 0) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            k1 = 0;
+            k2 = 0;
+            bufferLength = 0;
+        }
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+    }
+
+    private void mixBlock() {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+
+        k1 = 0;
+        k2 = 0;
+        bufferLength = 0;
+    }
+
+    /**
+     * Mixes the bits of {@code k} so that every bit of the input affects every bit of
+     * the result. This is the finalizer of the hash.
+     */
+    static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * Writes the bytes of {@code value} in little-endian order, as the reference
+     * implementation lays out the hash.
+     */
+    private static void writeHex(long value, char[] chars, int offset) {
+        for (int i = 0; i < 8; i++) {
+            int b = (int) (value >>> (i << 3)) & 0xFF;
+            chars[offset + (i << 1)] = HEX_DIGITS[b >>> 4];
+            chars[offset + (i << 1) + 1] = HEX_DIGITS[b & 0x0F];
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package alonexx.retrocache;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An annotation that represents how long a failure of the source of a method is
+ * remembered. Until then, the calls with the same key fail with the same error without
+ * calling the source, so that retries don't pile up on a failing backend. A record in
+ * the cache is still served as the cache policy allows.
+ *
+ * <p>Only the errors that are instances of one of {@link #errors()} are remembered, and
+ * a success of the source forgets the failure. Every call that fails with a remembered
+ * failure gets the same {@code Throwable} instance, which should therefore not be
+ * modified, such as by adding suppressed exceptions to it.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface NegativeCache {
+
+    /**
+     * How long a failure is remembered, in {@link #timeUnit()}. Must be at least a
+     * millisecond.
+     */
+    int value();
+
+    TimeUnit timeUnit() default TimeUnit.SECONDS;
+
+    Class<? extends Throwable>[] errors() default Throwable.class;
+}
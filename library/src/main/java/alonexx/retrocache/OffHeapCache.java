@@ -0,0 +1,616 @@
+package alonexx.retrocache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory implementation of {@code CacheInterface} that stores the records in direct
+ * {@code ByteBuffer}s, out of the Java heap, so that large records don't add to the
+ * garbage collection work.
+ *
+ * <p>Memory is allocated in slabs of a fixed size, up to a fixed budget. Each slab is
+ * divided into chunks of one size class, from 64 bytes up to the slab size in powers of
+ * two, and all the chunks of a record are of the same size class. A record whose length
+ * is known up front, written by {@link #putBuffer} or {@link #putAll}, gets chunks large
+ * enough to hold it, so that records up to the slab size are contiguous and can be read
+ * as a single buffer. A record written to a stream gets a chain of 4 KB chunks, so that a
+ * stream only ever takes slabs of one size class, whatever its length.
+ *
+ * <p>A slab whose chunks are all free goes back to a shared pool and can be reused for
+ * any size class. When there's no room for a chunk, the least recently used record is
+ * evicted if it's of the size class that needs the chunk. Otherwise all the records of
+ * the slab of the least recently used record are evicted, so that the slab moves to the
+ * size class that needs it. This way the slabs follow the sizes of the records that are
+ * written, and the records of one size class never take all the budget for good.
+ *
+ * <p>The streams read and write the direct memory without intermediate copies. The memory
+ * of an overwritten or evicted record is reused only after its readers are closed.
+ *
+ * <p>The records don't survive the process. This cache is meant for tests and short-lived
+ * caches.
+ */
+public class OffHeapCache
+        implements BufferCacheInterface, BatchCacheInterface, TouchableCacheInterface,
+        RemovableCacheInterface, Closeable {
+
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    private static final int STREAM_CHUNK_SIZE = 4096;
+
+    private final int slabSize;
+    private final int maxSlabs;
+    private final SizeClass[] sizeClasses;
+    private final int streamSizeClass;
+    private final ArrayDeque<ByteBuffer> freeSlabMemory = new ArrayDeque<>();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int allocatedSlabs;
+    private long size;
+    private boolean closed;
+
+    public OffHeapCache(long maxSize) {
+        this(maxSize, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param maxSize  the maximum number of bytes of direct memory to allocate
+     * @param slabSize the size of a slab, a power of two of at least 64 bytes, which is
+     *                 also the largest chunk size
+     */
+    public OffHeapCache(long maxSize, int slabSize) {
+        if (slabSize < MIN_CHUNK_SIZE || Integer.bitCount(slabSize) != 1) {
+            throw new IllegalArgumentException("slabSize must be a power of two >= " + MIN_CHUNK_SIZE);
+        }
+        if (maxSize < slabSize) {
+            throw new IllegalArgumentException("maxSize < slabSize");
+        }
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, maxSize / slabSize);
+        int classCount = Integer.numberOfTrailingZeros(slabSize)
+                - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE) + 1;
+        this.sizeClasses = new SizeClass[classCount];
+        for (int i = 0; i < classCount; i++) {
+            sizeClasses[i] = new SizeClass(MIN_CHUNK_SIZE << i);
+        }
+        this.streamSizeClass = sizeClassFor(STREAM_CHUNK_SIZE);
+    }
+
+    @Override
+    public OutputStream newOutputStreamForKey(String key) throws IOException {
+        synchronized (this) {
+            checkNotClosed();
+        }
+        return new ChunkOutputStream(key, streamSizeClass);
+    }
+
+    @Override
+    public InputStream getInputStreamForKey(String key) throws IOException {
+        return getEntryForKey(key).getInputStream();
+    }
+
+    @Override
+    public synchronized long getCreationTimeForKey(String key) throws IOException {
+        return getEntry(key).creationTime;
+    }
+
+    @Override
+    public synchronized BufferCacheEntry getEntryForKey(String key) throws IOException {
+        Entry entry = getEntry(key);
+        entry.refCount++;
+        return new OffHeapCacheEntry(entry);
+    }
+
+    @Override
+    public synchronized Map<String, CacheEntry> getAll(Collection<String> keys) throws IOException {
+        checkNotClosed();
+        Map<String, CacheEntry> result = new LinkedHashMap<>();
+        for (String key : keys) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.refCount++;
+                result.put(key, new OffHeapCacheEntry(entry));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the records while holding the lock, so the batch takes it only once.
+     */
+    @Override
+    public synchronized void putAll(Map<String, byte[]> contents) throws IOException {
+        checkNotClosed();
+        for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+            putBuffer(content.getKey(), ByteBuffer.wrap(content.getValue()));
+        }
+    }
+
+    @Override
+    public void putBuffer(String key, ByteBuffer content) throws IOException {
+        synchronized (this) {
+            checkNotClosed();
+        }
+        ChunkOutputStream out = new ChunkOutputStream(key, sizeClassFor(content.remaining()));
+        out.write(content);
+        out.close();
+    }
+
+    /**
+     * Sets the creation time of the record of {@code key} in place, which also makes it
+     * the most recently used record.
+     */
+    @Override
+    public synchronized boolean touch(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        entry.creationTime = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Removes the record of {@code key}, if there's one.
+     *
+     * @return true if a record was removed.
+     */
+    @Override
+    public synchronized boolean remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        size -= entry.length;
+        release(entry);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(String key, long creationTime) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.creationTime == creationTime && remove(key);
+    }
+
+    /**
+     * Returns the number of bytes of the records, excluding the unused part of their chunks.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory allocated in slabs.
+     */
+    public synchronized long allocatedSize() {
+        return (long) allocatedSlabs * slabSize;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Entry entry : entries.values()) {
+            release(entry);
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    private Entry getEntry(String key) throws IOException {
+        checkNotClosed();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            throw new KeyNotFoundException("key : " + key);
+        }
+        return entry;
+    }
+
+    private synchronized void commit(String key, Entry entry) throws IOException {
+        if (closed) {
+            release(entry);
+            checkNotClosed();
+        }
+        Entry old = entries.put(key, entry);
+        size += entry.length;
+        if (old != null) {
+            size -= old.length;
+            release(old);
+        }
+    }
+
+    /**
+     * Allocates a chunk of the size class {@code index}, evicting the least recently used
+     * records if needed.
+     */
+    private synchronized Chunk allocate(int index) throws IOException {
+        checkNotClosed();
+        SizeClass sizeClass = sizeClasses[index];
+        while (true) {
+            Slab slab = sizeClass.partialSlabs.peekFirst();
+            if (slab == null) {
+                slab = newSlab(sizeClass);
+            }
+            if (slab != null) {
+                Chunk chunk = slab.allocate();
+                if (slab.freeCount == 0) {
+                    sizeClass.partialSlabs.removeFirst();
+                }
+                return chunk;
+            }
+            Iterator<Entry> eldest = entries.values().iterator();
+            if (!eldest.hasNext()) {
+                throw new IOException("Off-heap cache is full.");
+            }
+            Entry victim = eldest.next();
+            if (victim.chunks.isEmpty() || victim.chunks.get(0).slab.sizeClass == sizeClass) {
+                eldest.remove();
+                size -= victim.length;
+                release(victim);
+            } else {
+                evictSlab(victim.chunks.get(0).slab);
+            }
+        }
+    }
+
+    /**
+     * Evicts all the records that have a chunk in {@code slab}, so that the slab goes back
+     * to the pool once its readers are closed.
+     */
+    private void evictSlab(Slab slab) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.isIn(slab)) {
+                iterator.remove();
+                size -= entry.length;
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the smallest size class that holds {@code length} bytes, or of
+     * the largest one.
+     */
+    private int sizeClassFor(int length) {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (sizeClasses[i].chunkSize >= length) {
+                return i;
+            }
+        }
+        return sizeClasses.length - 1;
+    }
+
+    private Slab newSlab(SizeClass sizeClass) {
+        ByteBuffer memory = freeSlabMemory.pollFirst();
+        if (memory == null) {
+            if (allocatedSlabs >= maxSlabs) {
+                return null;
+            }
+            memory = ByteBuffer.allocateDirect(slabSize);
+            allocatedSlabs++;
+        }
+        Slab slab = new Slab(sizeClass, memory, slabSize / sizeClass.chunkSize);
+        sizeClass.partialSlabs.addFirst(slab);
+        return slab;
+    }
+
+    private synchronized void free(List<Chunk> chunks) {
+        for (Chunk chunk : chunks) {
+            Slab slab = chunk.slab;
+            slab.free(chunk.index);
+            if (slab.freeCount == 1) {
+                slab.sizeClass.partialSlabs.addLast(slab);
+            }
+            if (slab.freeCount == slab.chunkCount) {
+                slab.sizeClass.partialSlabs.remove(slab);
+                freeSlabMemory.addLast(slab.memory);
+            }
+        }
+    }
+
+    private synchronized void release(Entry entry) {
+        if (--entry.refCount == 0) {
+            free(entry.chunks);
+        }
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Cache is closed.");
+        }
+    }
+
+    private static final class SizeClass {
+
+        final int chunkSize;
+        final ArrayDeque<Slab> partialSlabs = new ArrayDeque<>();
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    private static final class Slab {
+
+        final SizeClass sizeClass;
+        final ByteBuffer memory;
+        final int chunkCount;
+        final int[] freeIndexes;
+        int freeCount;
+
+        Slab(SizeClass sizeClass, ByteBuffer memory, int chunkCount) {
+            this.sizeClass = sizeClass;
+            this.memory = memory;
+            this.chunkCount = chunkCount;
+            this.freeIndexes = new int[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                freeIndexes[i] = chunkCount - 1 - i;
+            }
+            this.freeCount = chunkCount;
+        }
+
+        Chunk allocate() {
+            int index = freeIndexes[--freeCount];
+            ByteBuffer buffer = memory.duplicate();
+            int start = index * sizeClass.chunkSize;
+            buffer.limit(start + sizeClass.chunkSize).position(start);
+            return new Chunk(this, index, buffer.slice());
+        }
+
+        void free(int index) {
+            freeIndexes[freeCount++] = index;
+        }
+    }
+
+    private static final class Chunk {
+
+        final Slab slab;
+        final int index;
+        final ByteBuffer buffer;
+
+        Chunk(Slab slab, int index, ByteBuffer buffer) {
+            this.slab = slab;
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A committed record. It holds one reference for being in the cache and one for each
+     * open reader, and its chunks are freed when the last reference is released.
+     */
+    private static final class Entry {
+
+        final List<Chunk> chunks;
+        final int length;
+        volatile long creationTime;
+        int refCount = 1;
+
+        Entry(List<Chunk> chunks, int length, long creationTime) {
+            this.chunks = chunks;
+            this.length = length;
+            this.creationTime = creationTime;
+        }
+
+        boolean isIn(Slab slab) {
+            if (chunks.isEmpty() || chunks.get(0).slab.sizeClass != slab.sizeClass) {
+                return false;
+            }
+            for (Chunk chunk : chunks) {
+                if (chunk.slab == slab) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final class OffHeapCacheEntry implements BufferCacheEntry {
+
+        final Entry entry;
+        ChunkInputStream in;
+        boolean closed = false;
+
+        private OffHeapCacheEntry(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public long getCreationTime() {
+            return entry.creationTime;
+        }
+
+        @Override
+        public long getLength() {
+            return entry.length;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            if (in == null) {
+                in = new ChunkInputStream(this);
+            }
+            return in;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            if (entry.chunks.size() > 1) {
+                return null;
+            }
+            if (entry.chunks.isEmpty()) {
+                return ByteBuffer.allocate(0).asReadOnlyBuffer();
+            }
+            ByteBuffer buffer = entry.chunks.get(0).buffer.asReadOnlyBuffer();
+            buffer.clear().limit(entry.length);
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            synchronized (OffHeapCache.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * Reads the chunks of a record in place. Closing the stream closes its entry.
+     */
+    private static final class ChunkInputStream extends InputStream {
+
+        final OffHeapCacheEntry cacheEntry;
+        int remaining;
+        int chunkIndex = -1;
+        ByteBuffer current;
+
+        ChunkInputStream(OffHeapCacheEntry cacheEntry) {
+            this.cacheEntry = cacheEntry;
+            this.remaining = cacheEntry.entry.length;
+        }
+
+        @Override
+        public int read() {
+            if (!ensureCurrent()) {
+                return -1;
+            }
+            remaining--;
+            return current.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureCurrent()) {
+                return -1;
+            }
+            int count = Math.min(len, current.remaining());
+            current.get(b, off, count);
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return remaining;
+        }
+
+        @Override
+        public void close() {
+            cacheEntry.close();
+        }
+
+        private boolean ensureCurrent() {
+            if (remaining == 0) {
+                return false;
+            }
+            if (current == null || !current.hasRemaining()) {
+                ByteBuffer next = cacheEntry.entry.chunks.get(++chunkIndex).buffer.duplicate();
+                next.clear();
+                next.limit(Math.min(next.capacity(), remaining));
+                current = next;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes a record to a chain of chunks of one size class, and commits it when closed.
+     */
+    private final class ChunkOutputStream extends OutputStream {
+
+        final String key;
+        final int sizeClass;
+        final List<Chunk> chunks = new ArrayList<>();
+        ByteBuffer current;
+        int length;
+        boolean closed = false;
+
+        /**
+         * @param sizeClass the size class of the chunks
+         */
+        private ChunkOutputStream(String key, int sizeClass) {
+            this.key = key;
+            this.sizeClass = sizeClass;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureCapacity();
+            current.put((byte) b);
+            length++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                ensureCapacity();
+                int count = Math.min(len, current.remaining());
+                current.put(b, off, count);
+                off += count;
+                len -= count;
+                length += count;
+            }
+        }
+
+        /**
+         * Writes the remaining bytes of {@code src}, and consumes them.
+         */
+        void write(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                ensureCapacity();
+                int count = Math.min(src.remaining(), current.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + count);
+                current.put(slice);
+                src.position(src.position() + count);
+                length += count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            commit(key, new Entry(chunks, length, System.currentTimeMillis()));
+        }
+
+        private void ensureCapacity() throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed.");
+            }
+            if (current != null && current.hasRemaining()) {
+                return;
+            }
+            try {
+                Chunk chunk = allocate(sizeClass);
+                chunks.add(chunk);
+                current = chunk.buffer.duplicate();
+            } catch (IOException e) {
+                closed = true;
+                free(chunks);
+                throw e;
+            }
+        }
+    }
+}
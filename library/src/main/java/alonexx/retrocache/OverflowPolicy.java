@@ -0,0 +1,24 @@
+package alonexx.retrocache;
+
+/**
+ * Decides what happens to a save when the write-behind queue is full.
+ *
+ * @see Retrocache#writeBehind(int, int, OverflowPolicy)
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The caller waits until the queue has room for the save.
+     */
+    BLOCK,
+
+    /**
+     * The new save is discarded.
+     */
+    DROP_NEWEST,
+
+    /**
+     * The oldest queued save is discarded to make room for the new one.
+     */
+    DROP_OLDEST
+}
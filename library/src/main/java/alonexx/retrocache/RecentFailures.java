@@ -0,0 +1,85 @@
+package alonexx.retrocache;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import rx.Observable;
+import rx.functions.Action1;
+import rx.functions.Func0;
+
+/**
+ * Remembers the failures of the sources of the methods annotated with
+ * {@link NegativeCache}, by key, until their time to live elapses.
+ */
+final class RecentFailures {
+
+    /**
+     * The number of failures above which the expired ones are purged, and new ones are
+     * not remembered if there's still no room.
+     */
+    private static final int MAX_FAILURES = 4096;
+
+    private final ConcurrentMap<String, Failure> failures = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a source that fails at once with the remembered failure of {@code key}, or
+     * else subscribes to {@code source} and remembers its failure. The remembered
+     * {@code Throwable} itself is given to every call, so that its type is kept.
+     */
+    <T> Observable<T> guard(final CacheContext context, final String key, final Observable<T> source) {
+        return Observable.defer(new Func0<Observable<T>>() {
+            @Override
+            public Observable<T> call() {
+                Failure failure = failures.get(key);
+                if (failure != null) {
+                    if (System.currentTimeMillis() < failure.expirationTime) {
+                        return Observable.error(failure.error);
+                    }
+                    failures.remove(key, failure);
+                }
+                return source.doOnNext(new Action1<T>() {
+                    @Override
+                    public void call(T o) {
+                        failures.remove(key);
+                    }
+                }).doOnError(new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable e) {
+                        remember(context, key, e);
+                    }
+                });
+            }
+        });
+    }
+
+    private void remember(CacheContext context, String key, Throwable error) {
+        ServiceMethodInfo serviceMethodInfo = context.getServiceMethodInfo();
+        if (!serviceMethodInfo.isNegativelyCached(error)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (failures.size() >= MAX_FAILURES) {
+            for (Iterator<Failure> it = failures.values().iterator(); it.hasNext(); ) {
+                if (it.next().expirationTime <= now) {
+                    it.remove();
+                }
+            }
+            if (failures.size() >= MAX_FAILURES) {
+                return;
+            }
+        }
+        failures.put(key, new Failure(error, now + serviceMethodInfo.getNegativeTtlMillis()));
+    }
+
+    private static final class Failure {
+
+        final Throwable error;
+        final long expirationTime;
+
+        Failure(Throwable error, long expirationTime) {
+            this.error = error;
+            this.expirationTime = expirationTime;
+        }
+    }
+}
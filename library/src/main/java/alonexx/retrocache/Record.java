@@ -1,11 +1,18 @@
 package alonexx.retrocache;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * A holder that contains the result object and where it is from.
  *
  * <p>If the object is from cache, there is no need to store the object again.
  * If the object is from network, it should be considered that the object
  * should be stored to cache.
+ *
+ * <p>A record read from the cache may hold the serialized content instead of the object,
+ * so that it's only deserialized if it's actually emitted. The content may be a view of
+ * the memory of a cache entry, which the record then keeps open until it's released.
  */
 final class Record {
 
@@ -17,6 +24,21 @@ final class Record {
 
     final int origin;
 
+    /**
+     * The serialized content of a record from cache that isn't deserialized yet, or null.
+     */
+    final ByteBuffer content;
+
+    /**
+     * The creation time of {@code content}.
+     */
+    final long creationTime;
+
+    /**
+     * The entry whose memory {@code content} is a view of, or null. Guarded by {@code this}.
+     */
+    private CacheEntry entry;
+
     Record(Object obj, int origin) {
         if (origin != ORIGIN_NETWORK && origin != ORIGIN_CACHE) {
             throw new IllegalArgumentException("Origin must be either ORIGIN_NETWORK" +
@@ -24,5 +46,44 @@ final class Record {
         }
         this.object = obj;
         this.origin = origin;
+        this.content = null;
+        this.creationTime = 0L;
+    }
+
+    /**
+     * Creates a record from cache whose object is deserialized from {@code content} later.
+     */
+    Record(ByteBuffer content, long creationTime) {
+        this(content, creationTime, null);
+    }
+
+    /**
+     * Creates a record from cache whose content is a view of the memory of {@code entry},
+     * which is closed when the record is released.
+     */
+    Record(ByteBuffer content, long creationTime, CacheEntry entry) {
+        this.object = null;
+        this.origin = ORIGIN_CACHE;
+        this.content = content;
+        this.creationTime = creationTime;
+        this.entry = entry;
+    }
+
+    /**
+     * Closes the entry the content is a view of, if there's one. The content must not be
+     * read afterwards. Releasing a record more than once does nothing.
+     */
+    void release() {
+        CacheEntry entry;
+        synchronized (this) {
+            entry = this.entry;
+            this.entry = null;
+        }
+        if (entry != null) {
+            try {
+                entry.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,225 @@
+package alonexx.retrocache;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Observable;
+import rx.Observer;
+import rx.functions.Action1;
+import rx.functions.Action2;
+import rx.functions.Func0;
+import rx.observables.SyncOnSubscribe;
+
+/**
+ * Reads and writes the records of the methods annotated with {@link StreamCache}, which
+ * hold a sequence of items instead of a single one.
+ *
+ * <p>A sequence record starts with a magic number, followed by a frame per item: the
+ * length of the serialized item and the item. It ends with a marker frame, whose length
+ * is {@link #END} if the sequence completed, or {@link #ABORTED} if it failed or was
+ * unsubscribed.
+ *
+ * <p>Each save writes its sequence record under a key of its own, see
+ * {@link #generationKey}. The record of the key itself is a pointer to the generation of
+ * the last complete sequence, which is only written once the sequence has ended with
+ * {@code END}. So a sequence that fails or is unsubscribed leaves the previous one in
+ * place.
+ */
+final class RecordStream {
+
+    private static final int MAGIC = 0x52435331;
+
+    private static final int POINTER_MAGIC = 0x52435350;
+
+    private static final int END = -1;
+    private static final int ABORTED = -2;
+
+    private static final AtomicLong GENERATIONS = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * Returns a new generation. The generations of a run are greater than those of the
+     * previous runs, as long as the clock doesn't go back.
+     */
+    static long newGeneration() {
+        return GENERATIONS.incrementAndGet();
+    }
+
+    /**
+     * Returns the key of the sequence record of {@code generation} of {@code key}.
+     */
+    static String generationKey(String key, long generation) {
+        return key + "-" + Long.toString(generation, 36);
+    }
+
+    /**
+     * Writes the record of {@code key} as a pointer to its sequence of {@code generation}.
+     */
+    static void writePointer(CacheInterface cache, String key, long generation) throws IOException {
+        ByteBuffer pointer = ByteBuffer.allocate(12);
+        pointer.putInt(POINTER_MAGIC);
+        pointer.putLong(generation);
+        pointer.flip();
+        CacheInterfaces.putBuffer(cache, key, pointer);
+    }
+
+    /**
+     * Returns the generation that the pointer record of {@code entry} points to.
+     *
+     * @throws IOException if it isn't a pointer record.
+     */
+    static long readPointer(CacheEntry entry) throws IOException {
+        DataInputStream in = new DataInputStream(entry.getInputStream());
+        if (in.readInt() != POINTER_MAGIC) {
+            throw new IOException("Not a sequence pointer record.");
+        }
+        return in.readLong();
+    }
+
+    /**
+     * Returns an {@code Observable} that deserializes and emits the items of {@code entry}
+     * one at a time, as they are requested, and closes the entry when it terminates or
+     * is unsubscribed.
+     */
+    static Observable<Object> replay(
+            final CacheEntry entry, final CacheSerializer serializer, final CacheContext context) {
+        return Observable.create(SyncOnSubscribe.createSingleState(
+                new Func0<Reader>() {
+                    @Override
+                    public Reader call() {
+                        return new Reader(entry, serializer, context);
+                    }
+                },
+                new Action2<Reader, Observer<? super Object>>() {
+                    @Override
+                    public void call(Reader reader, Observer<? super Object> observer) {
+                        reader.next(observer);
+                    }
+                },
+                new Action1<Reader>() {
+                    @Override
+                    public void call(Reader reader) {
+                        closeQuietly(entry);
+                    }
+                }));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * The state of a replay, which reads the frames of an entry one at a time.
+     */
+    private static final class Reader {
+
+        private final CacheEntry entry;
+        private final CacheSerializer serializer;
+        private final CacheContext context;
+        private DataInputStream in;
+        private byte[] frame = new byte[512];
+
+        Reader(CacheEntry entry, CacheSerializer serializer, CacheContext context) {
+            this.entry = entry;
+            this.serializer = serializer;
+            this.context = context;
+        }
+
+        void next(Observer<? super Object> observer) {
+            Object item;
+            try {
+                if (in == null) {
+                    in = new DataInputStream(entry.getInputStream());
+                    if (in.readInt() != MAGIC) {
+                        throw new IOException("Not a sequence record.");
+                    }
+                }
+                int length = in.readInt();
+                if (length < 0) {
+                    if (length != END) {
+                        throw new IOException("Incomplete sequence record.");
+                    }
+                    observer.onCompleted();
+                    return;
+                }
+                if (length > frame.length) {
+                    frame = new byte[Math.max(length, frame.length * 2)];
+                }
+                in.readFully(frame, 0, length);
+                item = CacheSerializers.readFromBuffer(serializer, ByteBuffer.wrap(frame, 0, length), context);
+            } catch (Throwable e) {
+                observer.onError(e);
+                return;
+            }
+            observer.onNext(item);
+        }
+    }
+
+    /**
+     * Writes the items of a sequence to a record as they are emitted.
+     */
+    static final class Writer {
+
+        private final DataOutputStream out;
+        private final CacheSerializer serializer;
+        private final CacheContext context;
+        private final ByteArrayBuffer buffer = new ByteArrayBuffer(512);
+        private boolean closed;
+
+        Writer(OutputStream out, CacheSerializer serializer, CacheContext context) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.serializer = serializer;
+            this.context = context;
+            this.out.writeInt(MAGIC);
+        }
+
+        void write(Object item) throws Exception {
+            buffer.reset();
+            serializer.writeToCache(buffer, context, item);
+            out.writeInt(buffer.size());
+            out.write(buffer.array(), 0, buffer.size());
+        }
+
+        /**
+         * Ends the record as a complete sequence, and returns the number of bytes written.
+         */
+        long complete() throws IOException {
+            return close(END);
+        }
+
+        /**
+         * Ends the record as a sequence that must not be replayed. Does nothing if the
+         * record has already been ended.
+         */
+        void abort() {
+            try {
+                close(ABORTED);
+            } catch (IOException ignored) {
+            }
+        }
+
+        private long close(int marker) throws IOException {
+            if (closed) {
+                return out.size();
+            }
+            closed = true;
+            try {
+                out.writeInt(marker);
+            } finally {
+                out.close();
+            }
+            return out.size();
+        }
+    }
+
+    private RecordStream() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,31 @@
+package alonexx.retrocache;
+
+import java.io.IOException;
+
+/**
+ * A {@link CacheInterface} that removes records.
+ *
+ * <p>The proxy removes the records that are past their expiration when it sweeps them,
+ * see {@link Retrocache#sweepExpired}. For the implementations that don't provide this
+ * interface, the expired records are left to the eviction of the cache.
+ */
+public interface RemovableCacheInterface extends CacheInterface {
+
+    /**
+     * Removes the record of {@code key}. Returns false if there's no record of
+     * {@code key}, or if it can't be removed right now, such as while it's being written.
+     *
+     * @throws IOException If an IO error occurs, throw an IOException.
+     */
+    boolean remove(String key) throws IOException;
+
+    /**
+     * Removes the record of {@code key} if it was created at {@code creationTime}, as
+     * {@link #remove(String)} does. The record must be checked and removed atomically, so
+     * that a record written meanwhile isn't removed. Returns false if the record wasn't
+     * removed.
+     *
+     * @throws IOException If an IO error occurs, throw an IOException.
+     */
+    boolean remove(String key, long creationTime) throws IOException;
+}
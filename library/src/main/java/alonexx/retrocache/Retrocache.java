@@ -1,6 +1,18 @@
 package alonexx.retrocache;
 
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
 
 import static alonexx.retrocache.internal.Preconditions.checkNotNull;
 
@@ -12,6 +24,18 @@ public class Retrocache<T> {
     private CacheInterface cache;
     private CachePolicy overrideCachePolicy;
     private CacheSerializer cacheSerializer;
+    private MemoryCache memoryCache;
+    private boolean coalesceCalls = true;
+    private Scheduler revalidationScheduler;
+    private int writeBehindCapacity;
+    private int writeBehindBatchSize;
+    private OverflowPolicy overflowPolicy;
+    private CacheEventListener eventListener;
+    private Scheduler decodeScheduler;
+    private WarmUpRecorder warmUpRecorder;
+    private VersionExtractor versionExtractor;
+    private long staleGraceMillis = -1;
+    private final List<ReturnTypeAdapter> returnTypeAdapters = new ArrayList<>();
 
     public static <T> Retrocache<T> cache(Class<T> service, T target) {
         return new Retrocache<>(service, target);
@@ -22,26 +46,151 @@ public class Retrocache<T> {
         this.target = target;
     }
 
-    public Retrocache keyTransformer(KeyTransformer transformer) {
+    public Retrocache<T> keyTransformer(KeyTransformer transformer) {
         this.keyTransformer = checkNotNull(transformer);
         return this;
     }
 
-    public Retrocache cache(CacheInterface cache) {
+    public Retrocache<T> cache(CacheInterface cache) {
         this.cache = checkNotNull(cache);
         return this;
     }
 
-    public Retrocache overrideCachePolicy(CachePolicy cachePolicy) {
+    /**
+     * Sets the policy of every method returning an {@code Observable}, in place of their
+     * {@link Cache} annotations. The methods of the other return types keep being cached
+     * only if they're annotated with {@link Cache}, and then follow this policy.
+     */
+    public Retrocache<T> overrideCachePolicy(CachePolicy cachePolicy) {
         this.overrideCachePolicy = cachePolicy;
         return this;
     }
 
-    public Retrocache cacheParser(CacheSerializer parser) {
+    public Retrocache<T> cacheParser(CacheSerializer parser) {
         this.cacheSerializer = checkNotNull(parser);
         return this;
     }
 
+    /**
+     * Sets an in-heap tier that keeps decoded objects in front of the {@link CacheInterface}.
+     * There's no memory tier by default.
+     */
+    public Retrocache<T> memoryCache(MemoryCache memoryCache) {
+        this.memoryCache = checkNotNull(memoryCache);
+        return this;
+    }
+
+    /**
+     * Sets whether concurrent calls with the same key share a single cache lookup and
+     * source call. Enabled by default.
+     */
+    public Retrocache<T> coalesceCalls(boolean coalesceCalls) {
+        this.coalesceCalls = coalesceCalls;
+        return this;
+    }
+
+    /**
+     * Sets the scheduler that refreshes stale records for
+     * {@link CachePolicy#STALE_WHILE_REVALIDATE}, and makes the calls of
+     * {@link #prefetch(Object, List)}. The default is {@link Schedulers#io()}.
+     */
+    public Retrocache<T> revalidationScheduler(Scheduler scheduler) {
+        this.revalidationScheduler = checkNotNull(scheduler);
+        return this;
+    }
+
+    /**
+     * Saves the results on a dedicated thread instead of the thread that delivers them.
+     * Up to {@code capacity} saves are queued and written in batches of at most
+     * {@code maxBatchSize}. When the queue is full, {@code overflowPolicy} decides
+     * which save is dropped, if any.
+     *
+     * <p>Call {@link #flush(Object)} or {@link #close(Object)} on the created service to
+     * wait for the queued saves.
+     */
+    public Retrocache<T> writeBehind(int capacity, int maxBatchSize, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize <= 0");
+        }
+        this.writeBehindCapacity = capacity;
+        this.writeBehindBatchSize = maxBatchSize;
+        this.overflowPolicy = checkNotNull(overflowPolicy);
+        return this;
+    }
+
+    /**
+     * Sets a listener of the hits, misses, errors and latencies of the calls, such as
+     * {@link CacheMetrics}. There's no listener by default, and no event is measured.
+     */
+    public Retrocache<T> eventListener(CacheEventListener listener) {
+        this.eventListener = checkNotNull(listener);
+        return this;
+    }
+
+    /**
+     * Sets the scheduler that deserializes the records read from the cache. By default a
+     * record is deserialized on the thread that emits it.
+     *
+     * <p>Either way, a record is deserialized only if it's emitted, not if the call is
+     * unsubscribed before.
+     */
+    public Retrocache<T> decodeScheduler(Scheduler scheduler) {
+        this.decodeScheduler = checkNotNull(scheduler);
+        return this;
+    }
+
+    /**
+     * Sets the recorder of the hottest calls, whose records {@link #warmUp} loads ahead of
+     * time after the process restarts. There's no recorder by default.
+     */
+    public Retrocache<T> warmUpRecorder(WarmUpRecorder recorder) {
+        this.warmUpRecorder = checkNotNull(recorder);
+        return this;
+    }
+
+    /**
+     * Sets the extractor of the versions of the results, such as their ETags. If the cache
+     * is a {@link TouchableCacheInterface}, a result of the version of its record touches
+     * the record instead of rewriting it. By default a result is compared to its record by
+     * a hash of its serialized content.
+     */
+    public Retrocache<T> versionExtractor(VersionExtractor extractor) {
+        this.versionExtractor = checkNotNull(extractor);
+        return this;
+    }
+
+    /**
+     * Removes the records of the service from the cache in the background once they are
+     * {@code staleGrace} past their {@link Expiration}, if the cache is a
+     * {@link RemovableCacheInterface}, so that they don't take the room of live records.
+     * A record of a method that is revalidated in the background is kept for its
+     * {@link MaxStale} period at least, a day without one. By default the expired
+     * records stay until the cache evicts them.
+     *
+     * <p>A removed record can't be used as the fallback of a failed call any more, so the
+     * grace period should cover how long such a fallback is useful.
+     */
+    public Retrocache<T> sweepExpired(long staleGrace, TimeUnit unit) {
+        if (staleGrace < 0) {
+            throw new IllegalArgumentException("staleGrace < 0");
+        }
+        this.staleGraceMillis = unit.toMillis(staleGrace);
+        return this;
+    }
+
+    /**
+     * Adds an adapter for the methods of a return type that isn't built in. The adapters
+     * are tried in the order they are added, and before the built-in ones, which adapt
+     * {@code Observable}, {@code Single}, {@code Future} and plain return values.
+     */
+    public Retrocache<T> addReturnTypeAdapter(ReturnTypeAdapter adapter) {
+        returnTypeAdapters.add(checkNotNull(adapter));
+        return this;
+    }
+
     public T create() {
         if (cache == null) {
             throw new IllegalStateException("Cache is not set.");
@@ -55,10 +204,127 @@ public class Retrocache<T> {
         if (keyTransformer == null) {
             keyTransformer = DefaultKeyTransformer.instance();
         }
-        return (T) Proxy.newProxyInstance(
-                service.getClassLoader(),
-                new Class[]{service},
-                new CacheProxyHandler(
-                        target, overrideCachePolicy, cache, keyTransformer, cacheSerializer));
+        if (revalidationScheduler == null) {
+            revalidationScheduler = Schedulers.io();
+        }
+        Map<Method, ServiceMethodInfo> serviceMethods = loadServiceMethods();
+        if (keyTransformer == DefaultKeyTransformer.instance()) {
+            for (Method method : serviceMethods.keySet()) {
+                DefaultKeyTransformer.checkParameters(method);
+            }
+        }
+        CacheProxyHandler handler = new CacheProxyHandler(
+                target, serviceMethods, cache, keyTransformer, cacheSerializer,
+                memoryCache, coalesceCalls ? new InFlightCalls() : null,
+                revalidationScheduler, createWriteBehindQueue(), eventListener,
+                decodeScheduler, warmUpRecorder,
+                cache instanceof TouchableCacheInterface
+                        ? new ContentFingerprints(versionExtractor) : null,
+                createExpirationSweeper());
+        handler.start();
+        return (T) Proxy.newProxyInstance(service.getClassLoader(), new Class[]{service}, handler);
+    }
+
+    /**
+     * Loads the records of {@code calls} of a service created by {@code Retrocache} ahead
+     * of time, such as the calls a screen is about to make. The cached records are read in
+     * one batch, and kept in the memory tier if the service has one. The other calls are
+     * made concurrently, a few at a time, and their results are written in one batch.
+     * Blocks until all the calls are done; failed calls are skipped.
+     *
+     * <p>Calls of methods whose cache policy doesn't store data, and of methods annotated
+     * with {@link StreamCache}, are ignored.
+     */
+    public static void prefetch(Object service, List<ServiceCall> calls) throws IOException {
+        handlerOf(service).prefetch(checkNotNull(calls));
+    }
+
+    /**
+     * Loads the records of the hottest calls saved by the {@link WarmUpRecorder} of a
+     * service created by {@code Retrocache}, hottest first, with up to {@code threads}
+     * threads. Only the cache is read, the calls are not made. A record is kept in the
+     * memory tier if the service has one, or else it's read through, so that its pages are
+     * in memory for the first call.
+     *
+     * <p>Returns the number of records loaded when all of them are, or when the timeout
+     * elapses, whichever comes first.
+     *
+     * @throws IllegalStateException if the service has no warm-up recorder.
+     */
+    public static int warmUp(Object service, long timeout, TimeUnit unit, int threads)
+            throws IOException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads <= 0");
+        }
+        return handlerOf(service).warmUp(unit.toNanos(timeout), threads);
+    }
+
+    /**
+     * Blocks until the saves queued by a service created by {@code Retrocache} have
+     * been written to its cache.
+     */
+    public static void flush(Object service) throws IOException {
+        handlerOf(service).flush();
+    }
+
+    /**
+     * Writes the saves queued by a service created by {@code Retrocache} and stops its
+     * write-behind thread, stops its expiration sweeper, and saves the hottest calls of its
+     * {@link WarmUpRecorder}. The service can still be used, but saves are then written
+     * synchronously and expired records aren't swept. The {@link CacheInterface} is not
+     * closed.
+     */
+    public static void close(Object service) throws IOException {
+        handlerOf(service).close();
+    }
+
+    private static CacheProxyHandler handlerOf(Object service) {
+        checkNotNull(service);
+        if (Proxy.isProxyClass(service.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(service);
+            if (handler instanceof CacheProxyHandler) {
+                return (CacheProxyHandler) handler;
+            }
+        }
+        throw new IllegalArgumentException(service + " is not created by Retrocache.");
+    }
+
+    private WriteBehindQueue createWriteBehindQueue() {
+        if (writeBehindCapacity == 0) {
+            return null;
+        }
+        return new WriteBehindQueue(writeBehindCapacity, writeBehindBatchSize, overflowPolicy);
+    }
+
+    private ExpirationSweeper createExpirationSweeper() {
+        if (staleGraceMillis < 0 || !(cache instanceof RemovableCacheInterface)) {
+            return null;
+        }
+        return new ExpirationSweeper(staleGraceMillis);
+    }
+
+    /**
+     * Resolves the cache information of every method that reads or writes the cache up
+     * front, so that no reflection is needed when the proxy is called. The other methods
+     * call the target directly.
+     */
+    private Map<Method, ServiceMethodInfo> loadServiceMethods() {
+        List<ReturnTypeAdapter> adapters = new ArrayList<>(returnTypeAdapters);
+        Collections.addAll(adapters, ReturnTypeAdapters.OBSERVABLE, ReturnTypeAdapters.SINGLE,
+                ReturnTypeAdapters.FUTURE, ReturnTypeAdapters.SYNCHRONOUS);
+        Map<Method, ServiceMethodInfo> serviceMethods = new HashMap<>();
+        for (Method method : service.getMethods()) {
+            for (ReturnTypeAdapter adapter : adapters) {
+                if (adapter.getItemType(method.getGenericReturnType()) != null) {
+                    ServiceMethodInfo serviceMethodInfo =
+                            new ServiceMethodInfo(method, overrideCachePolicy, adapter);
+                    if (serviceMethodInfo.isCacheEnabled()) {
+                        serviceMethods.put(method, serviceMethodInfo);
+                    }
+                    break;
+                }
+            }
+        }
+        return Collections.unmodifiableMap(serviceMethods);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,39 @@
+package alonexx.retrocache;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.Callable;
+
+import rx.Observable;
+
+/**
+ * Adapts the calls of service methods of a return type to the {@code Observable} the
+ * cache is applied to, and back to the return type. The adapters of {@code Observable},
+ * {@code Single}, {@code Future} and plain values are built in; others, such as a future
+ * type of another library, can be added with {@link Retrocache#addReturnTypeAdapter}.
+ *
+ * <p>The cache policy, the expiration and the serializer of a method apply whatever its
+ * return type is, though only the methods returning an {@code Observable} are cached
+ * without a {@link Cache} annotation. The item of a call is the object that is cached,
+ * like the first item of an {@code Observable}.
+ */
+public interface ReturnTypeAdapter {
+
+    /**
+     * Returns the type of the item of a method that returns {@code returnType}, or null if
+     * this adapter doesn't adapt it. The item type is passed to the serializers as
+     * {@link CacheContext#getGenericReturnType()}.
+     */
+    Type getItemType(Type returnType);
+
+    /**
+     * Returns the source of a call, whose item is the result of {@code target}. The
+     * target should be called when the source is subscribed, unless the return type is
+     * already lazy, so that a call served by the cache doesn't reach the target.
+     */
+    Observable<?> toSource(Callable<?> target) throws Exception;
+
+    /**
+     * Converts a call with the cache applied into the return type.
+     */
+    Object adapt(Observable<?> call) throws Throwable;
+}
@@ -0,0 +1,195 @@
+package alonexx.retrocache;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import rx.Completable;
+import rx.Observable;
+import rx.Single;
+import rx.Subscription;
+import rx.exceptions.OnErrorNotImplementedException;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+/**
+ * The built-in {@link ReturnTypeAdapter}s.
+ */
+final class ReturnTypeAdapters {
+
+    /**
+     * Adapts the methods returning an {@code Observable} or a subclass, whose item is the
+     * first item.
+     */
+    static final ReturnTypeAdapter OBSERVABLE = new ReturnTypeAdapter() {
+        @Override
+        public Type getItemType(Type returnType) {
+            Class<?> rawType = rawTypeOf(returnType);
+            return rawType != null && Observable.class.isAssignableFrom(rawType)
+                    ? itemTypeOf(returnType) : null;
+        }
+
+        @Override
+        public Observable<?> toSource(Callable<?> target) throws Exception {
+            return (Observable<?>) target.call();
+        }
+
+        @Override
+        public Object adapt(Observable<?> call) {
+            return call;
+        }
+    };
+
+    static final ReturnTypeAdapter SINGLE = new ReturnTypeAdapter() {
+        @Override
+        public Type getItemType(Type returnType) {
+            return rawTypeOf(returnType) == Single.class ? itemTypeOf(returnType) : null;
+        }
+
+        @Override
+        public Observable<?> toSource(Callable<?> target) throws Exception {
+            return ((Single<?>) target.call()).toObservable();
+        }
+
+        @Override
+        public Object adapt(Observable<?> call) {
+            return call.toSingle();
+        }
+    };
+
+    /**
+     * Adapts the methods returning a {@code Future}. The target is called, and the future
+     * it returns is waited for, on the I/O scheduler, only if the cache doesn't serve the
+     * call. Cancelling the returned future unsubscribes the call.
+     */
+    static final ReturnTypeAdapter FUTURE = new ReturnTypeAdapter() {
+        @Override
+        public Type getItemType(Type returnType) {
+            return rawTypeOf(returnType) == Future.class ? itemTypeOf(returnType) : null;
+        }
+
+        @Override
+        public Observable<?> toSource(final Callable<?> target) {
+            return Observable.fromCallable(target).flatMap(new Func1<Object, Observable<?>>() {
+                @Override
+                public Observable<?> call(Object future) {
+                    return Observable.from((Future<?>) future);
+                }
+            });
+        }
+
+        @Override
+        public Object adapt(Observable<?> call) {
+            return call.subscribeOn(Schedulers.io()).toBlocking().toFuture();
+        }
+    };
+
+    /**
+     * Adapts the methods returning a plain value. The call blocks the calling thread, and
+     * the target is called only if the cache doesn't serve the call. The Rx types and the
+     * futures not adapted by the other adapters aren't plain values.
+     */
+    static final ReturnTypeAdapter SYNCHRONOUS = new ReturnTypeAdapter() {
+        @Override
+        public Type getItemType(Type returnType) {
+            Class<?> rawType = rawTypeOf(returnType);
+            if (returnType == void.class || rawType == null || isAsynchronous(rawType)) {
+                return null;
+            }
+            return returnType instanceof Class<?> ? boxed((Class<?>) returnType) : returnType;
+        }
+
+        @Override
+        public Observable<?> toSource(Callable<?> target) {
+            return Observable.fromCallable(target);
+        }
+
+        @Override
+        public Object adapt(Observable<?> call) throws Throwable {
+            try {
+                return call.toBlocking().single();
+            } catch (OnErrorNotImplementedException e) {
+                throw e.getCause();
+            } catch (RuntimeException e) {
+                // A checked exception of the target is wrapped by the blocking call.
+                if (e.getClass() == RuntimeException.class && e.getCause() instanceof Exception) {
+                    throw e.getCause();
+                }
+                throw e;
+            }
+        }
+    };
+
+    private static final Class<?>[] ASYNCHRONOUS_TYPES = {
+            Observable.class, Single.class, Completable.class, Subscription.class, Future.class
+    };
+
+    private static boolean isAsynchronous(Class<?> type) {
+        for (Class<?> asynchronousType : ASYNCHRONOUS_TYPES) {
+            if (asynchronousType.isAssignableFrom(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static Class<?> rawTypeOf(Type type) {
+        if (type instanceof Class<?>) {
+            return (Class<?>) type;
+        }
+        if (type instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the type argument of a generic type with a single one, such as the
+     * {@code T} of {@code Observable<T>}, or the upper bound of a wildcard.
+     *
+     * @throws IllegalArgumentException if the type isn't parameterized with one type.
+     */
+    static Type itemTypeOf(Type returnType) {
+        if (!(returnType instanceof ParameterizedType)) {
+            throw new IllegalArgumentException(returnType + " isn't a generic type.");
+        }
+        Type[] types = ((ParameterizedType) returnType).getActualTypeArguments();
+        if (types.length != 1) {
+            throw new IllegalArgumentException(
+                    "Expected one type argument but got: " + Arrays.toString(types));
+        }
+        Type type = types[0];
+        if (type instanceof WildcardType) {
+            return ((WildcardType) type).getUpperBounds()[0];
+        }
+        return type;
+    }
+
+    private static Class<?> boxed(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        } else if (type == int.class) {
+            return Integer.class;
+        } else if (type == long.class) {
+            return Long.class;
+        } else if (type == boolean.class) {
+            return Boolean.class;
+        } else if (type == double.class) {
+            return Double.class;
+        } else if (type == float.class) {
+            return Float.class;
+        } else if (type == short.class) {
+            return Short.class;
+        } else if (type == byte.class) {
+            return Byte.class;
+        }
+        return Character.class;
+    }
+
+    private ReturnTypeAdapters() {
+        throw new AssertionError();
+    }
+}
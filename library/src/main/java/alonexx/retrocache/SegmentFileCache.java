@@ -0,0 +1,779 @@
+package alonexx.retrocache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import static alonexx.retrocache.internal.Preconditions.checkNotNull;
+
+/**
+ * An implementation of {@code CacheInterface} that appends records to memory-mapped
+ * segment files.
+ *
+ * <p>Records are appended to the active segment until it is full. Then the segment is
+ * sealed and a new one is created. An in-memory hash index maps each key to the latest
+ * record of the key, so a hit costs a map lookup, and the content is read straight from
+ * the mapped segment without copying. Unlike a cache with one file per record, hundreds
+ * of thousands of small records only take a few files.
+ *
+ * <p>A segment is mapped at its full capacity, which counts against the maximum size
+ * whether it's written or not, so a segment is never larger than the maximum size unless
+ * a single record is. Overwritten and removed records become dead space. A background
+ * thread compacts a sealed segment once less than half of it is live, by appending its
+ * live records to the active segment and deleting the segment. When the segments take
+ * more than the maximum size, the oldest segment is dropped as a whole, even if it's the
+ * only one.
+ *
+ * <p>Every record carries a CRC32 checksum. When the cache is opened, the index is rebuilt
+ * by scanning the segments, and a segment is truncated at its first corrupted record, such
+ * as one that was being written when the system crashed. Appending never continues in a
+ * segment written by an earlier process, so whatever follows its last valid record is
+ * never mistaken for a record, and the segment doesn't have to be zeroed.
+ *
+ * <p>A record reaches the mapped memory when its output stream is closed, so it survives
+ * a crash of the process. It is forced to the storage device by {@link #flush()} and
+ * {@link #close()}.
+ */
+public class SegmentFileCache
+        implements BufferCacheInterface, BatchCacheInterface, TouchableCacheInterface,
+        RemovableCacheInterface, Flushable, Closeable {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * A record starts with the checksum, the key length, the value length and the
+     * creation time, followed by the UTF-8 encoded key and the value. The checksum
+     * covers everything after itself.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
+    /**
+     * The offset of the creation time in the header of a record.
+     */
+    private static final int CREATION_TIME_OFFSET = 4 + 4 + 4;
+
+    /**
+     * The value length of a record that removes its key.
+     */
+    private static final int TOMBSTONE = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final long maxSize;
+    private final int segmentSize;
+    private final Map<String, Location> index = new HashMap<>();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final ExecutorService compactionExecutor;
+    private Segment activeSegment;
+    private long nextSegmentId;
+    private long size;
+    private boolean compactionScheduled;
+    private boolean closed;
+
+    public SegmentFileCache(File directory, long maxSize) throws IOException {
+        this(directory, maxSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory   a writable directory used only by this cache
+     * @param maxSize     the maximum number of bytes the segments may take
+     * @param segmentSize the size of a segment file, capped at {@code maxSize}. Records
+     *                    larger than this get a segment of their own.
+     */
+    public SegmentFileCache(File directory, long maxSize, int segmentSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize <= " + HEADER_SIZE);
+        }
+        this.directory = checkNotNull(directory);
+        this.maxSize = maxSize;
+        this.segmentSize = (int) Math.min(segmentSize, maxSize);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        recover();
+        compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Retrocache-SegmentCompaction");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public OutputStream newOutputStreamForKey(String key) throws IOException {
+        checkKey(key);
+        synchronized (this) {
+            checkNotClosed();
+        }
+        return new SegmentOutputStream(key);
+    }
+
+    @Override
+    public InputStream getInputStreamForKey(String key) throws IOException {
+        return getEntryForKey(key).getInputStream();
+    }
+
+    @Override
+    public synchronized long getCreationTimeForKey(String key) throws IOException {
+        return getLocation(key).creationTime;
+    }
+
+    @Override
+    public BufferCacheEntry getEntryForKey(String key) throws IOException {
+        Location location;
+        synchronized (this) {
+            location = getLocation(key);
+        }
+        return new SegmentCacheEntry(location);
+    }
+
+    @Override
+    public synchronized Map<String, CacheEntry> getAll(Collection<String> keys) throws IOException {
+        checkNotClosed();
+        Map<String, CacheEntry> entries = new LinkedHashMap<>();
+        for (String key : keys) {
+            Location location = index.get(key);
+            if (location != null) {
+                entries.put(key, new SegmentCacheEntry(location));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Appends the record straight from {@code content}, which is copied only if it isn't
+     * a heap buffer that starts at the beginning of its array.
+     */
+    @Override
+    public void putBuffer(String key, ByteBuffer content) throws IOException {
+        checkKey(key);
+        int length = content.remaining();
+        byte[] value;
+        if (content.hasArray() && content.arrayOffset() + content.position() == 0) {
+            value = content.array();
+        } else {
+            value = new byte[length];
+            content.duplicate().get(value);
+        }
+        put(key, value, length, System.currentTimeMillis());
+        content.position(content.limit());
+    }
+
+    /**
+     * Appends the records with a single acquisition of the lock, and trims the cache once
+     * for the whole batch. Call {@link #flush()} to force them to the storage device.
+     */
+    @Override
+    public synchronized void putAll(Map<String, byte[]> contents) throws IOException {
+        checkNotClosed();
+        for (String key : contents.keySet()) {
+            checkKey(key);
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+            byte[] value = content.getValue();
+            putToIndex(content.getKey(), append(content.getKey(), value, value.length, now));
+        }
+        trimToSize();
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Rewrites the creation time and the checksum in the header of the record of
+     * {@code key}, where it is. The content is read to compute the checksum, but it's not
+     * written, and the record keeps its place in its segment.
+     *
+     * <p>A touch that a system crash leaves half written fails the checksum of the
+     * record, which then truncates its segment like any corrupted record.
+     */
+    @Override
+    public synchronized boolean touch(String key) throws IOException {
+        checkNotClosed();
+        Location location = index.get(key);
+        if (location == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Segment segment = location.segment;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.putLong(location.offset + CREATION_TIME_OFFSET, now);
+        buffer.putInt(location.offset, checksum(buffer, location.offset + 4, location.recordSize() - 4));
+        segment.dirty = true;
+        putToIndex(key, new Location(
+                segment, location.offset, location.keyLength, location.valueLength, now));
+        return true;
+    }
+
+    /**
+     * Removes the record of {@code key}, if there's one.
+     *
+     * @return true if a record was removed.
+     */
+    @Override
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        if (!index.containsKey(key)) {
+            return false;
+        }
+        append(key, null, TOMBSTONE, System.currentTimeMillis());
+        removeFromIndex(key);
+        trimToSize();
+        scheduleCompactionIfNeeded();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(String key, long creationTime) throws IOException {
+        checkNotClosed();
+        Location location = index.get(key);
+        return location != null && location.creationTime == creationTime && remove(key);
+    }
+
+    /**
+     * Returns the number of bytes the segments take, including dead records and the room
+     * left at the end of the segments.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Forces the segments written since the last flush to the storage device.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkNotClosed();
+        for (Segment segment : segments.values()) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        compactionExecutor.shutdownNow();
+        IOException error = null;
+        for (Segment segment : segments.values()) {
+            try {
+                segment.force();
+                segment.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        segments.clear();
+        index.clear();
+        activeSegment = null;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private synchronized void put(String key, byte[] value, int valueLength, long creationTime)
+            throws IOException {
+        checkNotClosed();
+        Location location = append(key, value, valueLength, creationTime);
+        putToIndex(key, location);
+        trimToSize();
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Appends a record to the active segment. A null value appends a tombstone.
+     */
+    private Location append(String key, byte[] value, int valueLength, long creationTime)
+            throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int recordSize = HEADER_SIZE + keyBytes.length + Math.max(valueLength, 0);
+        Segment segment = segmentFor(recordSize);
+
+        byte[] header = new byte[HEADER_SIZE];
+        ByteBuffer.wrap(header)
+                .putInt(0)
+                .putInt(keyBytes.length)
+                .putInt(valueLength)
+                .putLong(creationTime);
+        CRC32 crc = new CRC32();
+        crc.update(header, 4, HEADER_SIZE - 4);
+        crc.update(keyBytes);
+        if (value != null) {
+            crc.update(value, 0, valueLength);
+        }
+        ByteBuffer.wrap(header).putInt((int) crc.getValue());
+
+        int offset = segment.writePosition;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset);
+        buffer.put(header).put(keyBytes);
+        if (value != null) {
+            buffer.put(value, 0, valueLength);
+        }
+        segment.writePosition += recordSize;
+        segment.dirty = true;
+        return new Location(segment, offset, keyBytes.length, valueLength, creationTime);
+    }
+
+    private Segment segmentFor(int recordSize) throws IOException {
+        if (activeSegment != null
+                && activeSegment.capacity - activeSegment.writePosition >= recordSize) {
+            return activeSegment;
+        }
+        if (activeSegment != null) {
+            activeSegment.sealed = true;
+        }
+        long id = nextSegmentId++;
+        Segment segment = Segment.open(segmentFile(id), id, Math.max(segmentSize, recordSize));
+        segments.put(id, segment);
+        size += segment.capacity;
+        activeSegment = segment;
+        return segment;
+    }
+
+    private void putToIndex(String key, Location location) {
+        Location old = index.put(key, location);
+        if (old != null) {
+            old.segment.liveBytes -= old.recordSize();
+        }
+        location.segment.liveBytes += location.recordSize();
+    }
+
+    private void removeFromIndex(String key) {
+        Location old = index.remove(key);
+        if (old != null) {
+            old.segment.liveBytes -= old.recordSize();
+        }
+    }
+
+    /**
+     * Drops the oldest segments until the segments fit the maximum size. The active
+     * segment is dropped too if it doesn't fit alone, which only happens when it holds a
+     * record larger than the maximum size.
+     */
+    private void trimToSize() throws IOException {
+        while (size > maxSize && !segments.isEmpty()) {
+            Segment oldest = segments.firstEntry().getValue();
+            RecordCursor cursor = new RecordCursor(oldest, false);
+            while (cursor.next()) {
+                if (cursor.valueLength != TOMBSTONE && isLive(cursor)) {
+                    removeFromIndex(cursor.key);
+                }
+            }
+            deleteSegment(oldest);
+        }
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        if (compactionScheduled) {
+            return;
+        }
+        for (Segment segment : segments.values()) {
+            if (needsCompaction(segment)) {
+                compactionScheduled = true;
+                compactionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        compact();
+                    }
+                });
+                return;
+            }
+        }
+    }
+
+    private static boolean needsCompaction(Segment segment) {
+        return segment.sealed && (long) segment.liveBytes * 2 < segment.capacity;
+    }
+
+    /**
+     * Compacts the sealed segments that are more than half dead, one at a time so that
+     * the callers can interleave.
+     */
+    private void compact() {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            compactionScheduled = false;
+            for (Segment segment : segments.values()) {
+                if (needsCompaction(segment)) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (Segment segment : candidates) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (segments.get(segment.id) != segment) {
+                    continue;
+                }
+                try {
+                    compactSegment(segment);
+                    trimToSize();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void compactSegment(Segment segment) throws IOException {
+        boolean hasOlderSegment = segments.firstKey() < segment.id;
+        RecordCursor cursor = new RecordCursor(segment, false);
+        while (cursor.next()) {
+            if (cursor.valueLength == TOMBSTONE) {
+                // A tombstone is still needed if an older segment may hold the removed record.
+                if (hasOlderSegment && !index.containsKey(cursor.key)) {
+                    append(cursor.key, null, TOMBSTONE, cursor.creationTime);
+                }
+            } else if (isLive(cursor)) {
+                byte[] value = new byte[cursor.valueLength];
+                ByteBuffer buffer = segment.buffer.duplicate();
+                buffer.position(cursor.offset + HEADER_SIZE + cursor.keyLength);
+                buffer.get(value);
+                putToIndex(cursor.key, append(cursor.key, value, value.length, cursor.creationTime));
+            }
+        }
+        deleteSegment(segment);
+    }
+
+    private boolean isLive(RecordCursor cursor) {
+        Location location = index.get(cursor.key);
+        return location != null
+                && location.segment == cursor.segment
+                && location.offset == cursor.offset;
+    }
+
+    private void deleteSegment(Segment segment) throws IOException {
+        segments.remove(segment.id);
+        size -= segment.capacity;
+        if (activeSegment == segment) {
+            activeSegment = null;
+        }
+        segment.close();
+        if (!segment.file.delete()) {
+            throw new IOException("Can't delete " + segment.file);
+        }
+    }
+
+    /**
+     * Rebuilds the index from the segment files, oldest first.
+     */
+    private void recover() throws IOException {
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Can't list " + directory);
+        }
+        for (File file : children) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    long id = Long.parseLong(name.substring(
+                            SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    files.put(id, file);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        for (Map.Entry<Long, File> entry : files.entrySet()) {
+            File file = entry.getValue();
+            if (file.length() <= HEADER_SIZE || file.length() > Integer.MAX_VALUE) {
+                file.delete();
+                continue;
+            }
+            Segment segment = Segment.open(file, entry.getKey(), (int) file.length());
+            RecordCursor cursor = new RecordCursor(segment, true);
+            while (cursor.next()) {
+                if (cursor.valueLength == TOMBSTONE) {
+                    removeFromIndex(cursor.key);
+                } else {
+                    putToIndex(cursor.key, new Location(segment, cursor.offset,
+                            cursor.keyLength, cursor.valueLength, cursor.creationTime));
+                }
+            }
+            // A torn write may have left bytes after the last valid record, so nothing is
+            // appended to the segment again; the next record starts a new segment.
+            segment.writePosition = cursor.end;
+            segment.sealed = true;
+            segments.put(segment.id, segment);
+            size += segment.capacity;
+            nextSegmentId = segment.id + 1;
+        }
+        trimToSize();
+    }
+
+    private Location getLocation(String key) throws IOException {
+        checkNotClosed();
+        Location location = index.get(key);
+        if (location == null) {
+            throw new KeyNotFoundException("key : " + key);
+        }
+        return location;
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Cache is closed.");
+        }
+    }
+
+    private static void checkKey(String key) {
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("The key must not be empty.");
+        }
+    }
+
+    private static final class Segment {
+
+        final File file;
+        final long id;
+        final int capacity;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        int liveBytes;
+        boolean sealed;
+        boolean dirty;
+
+        private Segment(File file, long id, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.file = file;
+            this.id = id;
+            this.capacity = buffer.capacity();
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        static Segment open(File file, long id, int capacity) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                return new Segment(file, id, raf, buffer);
+            } catch (IOException | RuntimeException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        void force() {
+            if (dirty) {
+                buffer.force();
+                dirty = false;
+            }
+        }
+
+        /**
+         * Closes the file. The mapping can't be released explicitly, since the readers may
+         * still hold its buffers; it's released once they are garbage collected. The cache
+         * drops its own references to a segment when it deletes the segment.
+         */
+        void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    /**
+     * The position of the latest record of a key.
+     */
+    private static final class Location {
+
+        final Segment segment;
+        final int offset;
+        final int keyLength;
+        final int valueLength;
+        final long creationTime;
+
+        Location(Segment segment, int offset, int keyLength, int valueLength, long creationTime) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.creationTime = creationTime;
+        }
+
+        int recordSize() {
+            return HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+        }
+
+        ByteBuffer value() {
+            ByteBuffer value = segment.buffer.duplicate();
+            int start = offset + HEADER_SIZE + keyLength;
+            value.limit(start + valueLength).position(start);
+            return value;
+        }
+    }
+
+    /**
+     * Iterates over the records of a segment.
+     */
+    private static final class RecordCursor {
+
+        final Segment segment;
+        final boolean verify;
+        final ByteBuffer buffer;
+        int end;
+        int offset;
+        int keyLength;
+        int valueLength;
+        long creationTime;
+        String key;
+
+        /**
+         * @param verify true to scan the segment up to the first invalid record, false to
+         *               iterate over the records before the write position, which are
+         *               known to be valid.
+         */
+        RecordCursor(Segment segment, boolean verify) {
+            this.segment = segment;
+            this.verify = verify;
+            this.buffer = segment.buffer.duplicate();
+        }
+
+        boolean next() {
+            int limit = verify ? segment.capacity : segment.writePosition;
+            if (end + HEADER_SIZE > limit) {
+                return false;
+            }
+            int storedCrc = buffer.getInt(end);
+            int keyLength = buffer.getInt(end + 4);
+            int valueLength = buffer.getInt(end + 8);
+            long creationTime = buffer.getLong(end + CREATION_TIME_OFFSET);
+            if (keyLength <= 0 || valueLength < TOMBSTONE) {
+                return false;
+            }
+            long recordSize = (long) HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+            if (end + recordSize > limit) {
+                return false;
+            }
+            if (verify && storedCrc != checksum(buffer, end + 4, (int) recordSize - 4)) {
+                return false;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            buffer.position(end + HEADER_SIZE);
+            buffer.get(keyBytes);
+
+            this.offset = end;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.creationTime = creationTime;
+            this.key = new String(keyBytes, UTF_8);
+            this.end += (int) recordSize;
+            return true;
+        }
+    }
+
+    /**
+     * Returns the CRC32 of {@code length} bytes of {@code buffer} from {@code position}.
+     * Moves the position of {@code buffer}.
+     */
+    private static int checksum(ByteBuffer buffer, int position, int length) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[Math.min(length, 8192)];
+        buffer.position(position);
+        while (length > 0) {
+            int count = Math.min(length, chunk.length);
+            buffer.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+            length -= count;
+        }
+        return (int) crc.getValue();
+    }
+
+    private static final class SegmentCacheEntry implements BufferCacheEntry {
+
+        final Location location;
+        InputStream in;
+
+        private SegmentCacheEntry(Location location) {
+            this.location = location;
+        }
+
+        @Override
+        public long getCreationTime() {
+            return location.creationTime;
+        }
+
+        @Override
+        public long getLength() {
+            return location.valueLength;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            if (in == null) {
+                in = new ByteBufferInputStream(location.value());
+            }
+            return in;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return location.value().asReadOnlyBuffer();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Buffers a record in heap and appends it when it is closed, since the record
+     * length has to be known before it is written.
+     */
+    private final class SegmentOutputStream extends ByteArrayOutputStream {
+
+        final String key;
+        boolean closed = false;
+
+        private SegmentOutputStream(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            put(key, buf, count, System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package alonexx.retrocache;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import static alonexx.retrocache.internal.Preconditions.checkNotNull;
+
+/**
+ * A call of a service method with its arguments, such as a call to prefetch with
+ * {@link Retrocache#prefetch(Object, java.util.List)}.
+ */
+public final class ServiceCall {
+
+    private static final Object[] EMPTY_ARRAY = new Object[0];
+
+    private final Method method;
+    private final Object[] args;
+
+    public ServiceCall(Method method, Object... args) {
+        this.method = checkNotNull(method);
+        this.args = args == null ? EMPTY_ARRAY : Arrays.copyOf(args, args.length);
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public Object[] getArgs() {
+        return Arrays.copyOf(args, args.length);
+    }
+
+    @Override
+    public String toString() {
+        return method.getName() + Arrays.toString(args);
+    }
+}
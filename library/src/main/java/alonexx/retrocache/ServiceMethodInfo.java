@@ -1,42 +1,68 @@
 package alonexx.retrocache;
 
 import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
-import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import static alonexx.retrocache.internal.Preconditions.checkNotNull;
 
 final class ServiceMethodInfo {
+
+    /**
+     * How long an expired record may be served while it's revalidated in the background,
+     * for the methods without {@link MaxStale}.
+     */
+    static final long DEFAULT_MAX_STALE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
     private final Method method;
+    private final String signature;
+    private final ReturnTypeAdapter returnTypeAdapter;
     private final Type genericReturnType;
     private final long expirationMillis;
+    private final long maxStaleMillis;
     private final CachePolicy cachePolicy;
+    private final boolean streaming;
+    private final long negativeTtlMillis;
+    private final Class<? extends Throwable>[] negativeErrors;
 
-    ServiceMethodInfo(Method method, CachePolicy cachePolicy) {
+    ServiceMethodInfo(Method method, CachePolicy cachePolicy, ReturnTypeAdapter returnTypeAdapter) {
         this.method = checkNotNull(method);
         checkNotNull(cachePolicy);
-        ParameterizedType genericReturnType;
-        try {
-            genericReturnType = (ParameterizedType) method.getGenericReturnType();
-        } catch (RuntimeException e) {
-            throw new IllegalArgumentException("Method " + method.toString()
-                    + " doesn't return a generic type.", e);
-        }
-        Type[] types = genericReturnType.getActualTypeArguments();
-        if (types.length != 1) {
-            throw new IllegalArgumentException(
-                    "Expected one type argument but got: " + Arrays.toString(types));
-        }
-        this.genericReturnType = types[0];
+        this.signature = signatureOf(method);
+        this.returnTypeAdapter = checkNotNull(returnTypeAdapter);
+        this.genericReturnType = returnTypeAdapter.getItemType(method.getGenericReturnType());
         if (method.isAnnotationPresent(Expiration.class)) {
             Expiration expiration = method.getAnnotation(Expiration.class);
             expirationMillis = expiration.timeUnit().toMillis(expiration.value());
         } else {
             expirationMillis = 0L;
         }
+        if (method.isAnnotationPresent(MaxStale.class)) {
+            MaxStale maxStale = method.getAnnotation(MaxStale.class);
+            maxStaleMillis = maxStale.timeUnit().toMillis(maxStale.value());
+        } else {
+            maxStaleMillis = DEFAULT_MAX_STALE_MILLIS;
+        }
+        streaming = method.isAnnotationPresent(StreamCache.class);
+        if (method.isAnnotationPresent(NegativeCache.class)) {
+            NegativeCache negativeCache = method.getAnnotation(NegativeCache.class);
+            negativeTtlMillis = negativeCache.timeUnit().toMillis(negativeCache.value());
+            if (negativeTtlMillis <= 0) {
+                throw new IllegalArgumentException(
+                        "@NegativeCache of " + method + " is shorter than a millisecond.");
+            }
+            negativeErrors = negativeCache.errors();
+        } else {
+            negativeTtlMillis = 0L;
+            negativeErrors = null;
+        }
 
-        if (cachePolicy == CachePolicy.UNSPECIFIED) {
+        if (returnTypeAdapter != ReturnTypeAdapters.OBSERVABLE
+                && !method.isAnnotationPresent(Cache.class)) {
+            // Only the methods returning an Observable are cached without @Cache, otherwise
+            // an overridden policy would cache every method of the service.
+            this.cachePolicy = CachePolicy.IGNORE_CACHE;
+        } else if (cachePolicy == CachePolicy.UNSPECIFIED) {
             if (method.isAnnotationPresent(Cache.class)) {
                 this.cachePolicy = method.getAnnotation(Cache.class).value();
             } else {
@@ -51,6 +77,22 @@ final class ServiceMethodInfo {
         return method;
     }
 
+    /**
+     * Returns a string that identifies the method across processes, made of the names of
+     * its declaring class, the method and its parameter types.
+     */
+    String getSignature() {
+        return signature;
+    }
+
+    ReturnTypeAdapter getReturnTypeAdapter() {
+        return returnTypeAdapter;
+    }
+
+    /**
+     * Returns the type of the item that is cached, such as the {@code T} of
+     * {@code Observable<T>}.
+     */
     Type getGenericReturnType() {
         return genericReturnType;
     }
@@ -59,6 +101,40 @@ final class ServiceMethodInfo {
         return expirationMillis;
     }
 
+    long getMaxStaleMillis() {
+        return maxStaleMillis;
+    }
+
+    /**
+     * Returns true if every item of the calls is cached, see {@link StreamCache}.
+     */
+    boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Returns how long a failure of the source is remembered, or 0 if it's not, see
+     * {@link NegativeCache}.
+     */
+    long getNegativeTtlMillis() {
+        return negativeTtlMillis;
+    }
+
+    /**
+     * Returns true if {@code error} is a failure to remember, see {@link NegativeCache}.
+     */
+    boolean isNegativelyCached(Throwable error) {
+        if (negativeTtlMillis <= 0) {
+            return false;
+        }
+        for (Class<? extends Throwable> type : negativeErrors) {
+            if (type.isInstance(error)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     boolean canReadFromCache() {
         return cachePolicy.canReadFromCache();
     }
@@ -71,4 +147,30 @@ final class ServiceMethodInfo {
         return cachePolicy.canStoreData();
     }
 
+    boolean canRevalidateInBackground() {
+        return cachePolicy.canRevalidateInBackground();
+    }
+
+    /**
+     * Returns true if calls of this method read or write the cache at all.
+     */
+    boolean isCacheEnabled() {
+        return canReadFromCache() || canReadFromExpiredCache() || canStoreData();
+    }
+
+    private static String signatureOf(Method method) {
+        StringBuilder builder = new StringBuilder()
+                .append(method.getDeclaringClass().getName())
+                .append('#')
+                .append(method.getName())
+                .append('(');
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(parameterTypes[i].getName());
+        }
+        return builder.append(')').toString();
+    }
 }
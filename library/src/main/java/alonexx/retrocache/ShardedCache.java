@@ -0,0 +1,609 @@
+package alonexx.retrocache;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static alonexx.retrocache.internal.Preconditions.checkNotNull;
+
+/**
+ * An implementation of {@code CacheInterface} that spreads the records over several
+ * caches, such as caches in different directories or on different disks, so that
+ * concurrent reads and writes don't contend on a single journal or lock.
+ * <code>
+ *     CacheInterface cache = new ShardedCache(4, 64 * 1024 * 1024, new ShardedCache.ShardFactory() {
+ *         public CacheInterface create(int index, long maxSize) throws IOException {
+ *             return new SegmentFileCache(new File(cacheDir, "shard-" + index), maxSize);
+ *         }
+ *     });
+ * </code>
+ *
+ * <p>Keys are assigned to the shards by consistent hashing: each shard owns many points
+ * of a hash ring, and a key goes to the shard of the first point after its hash. The
+ * assignment depends only on the position of a shard in the list, so the shards must be
+ * passed in the same order every time the cache is opened. When a shard is added, only
+ * the keys it takes over, about {@code 1/n} of them, are missed.
+ *
+ * <p>A single record is read and written on the calling thread. The batch operations,
+ * {@link #flush()} and {@link #close()} run on the shards concurrently.
+ */
+public class ShardedCache
+        implements BufferCacheInterface, BatchCacheInterface, TouchableCacheInterface,
+        RemovableCacheInterface, Flushable, Closeable {
+
+    private static final int VIRTUAL_NODES = 128;
+
+    /**
+     * Creates the shards of a {@link ShardedCache}.
+     */
+    public interface ShardFactory {
+
+        /**
+         * Returns the shard at {@code index}, which may hold up to {@code maxSize} bytes.
+         */
+        CacheInterface create(int index, long maxSize) throws IOException;
+    }
+
+    private final List<Shard> shards;
+    private final long[] ringPositions;
+    private final int[] ringShards;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates {@code shardCount} shards with {@code factory}, each with an equal part of
+     * {@code maxSize}.
+     */
+    public ShardedCache(int shardCount, long maxSize, ShardFactory factory) throws IOException {
+        this(createShards(shardCount, maxSize, factory));
+    }
+
+    /**
+     * Spreads the records over {@code shards}, which keep their own size budgets.
+     */
+    public ShardedCache(List<? extends CacheInterface> shards) {
+        checkNotNull(shards);
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("shards is empty");
+        }
+        List<Shard> list = new ArrayList<>(shards.size());
+        for (CacheInterface cache : shards) {
+            list.add(new Shard(checkNotNull(cache)));
+        }
+        this.shards = Collections.unmodifiableList(list);
+
+        int nodeCount = shards.size() * VIRTUAL_NODES;
+        long[] positions = new long[nodeCount];
+        Murmur3Hasher hasher = new Murmur3Hasher();
+        for (int i = 0; i < shards.size(); i++) {
+            for (int j = 0; j < VIRTUAL_NODES; j++) {
+                positions[i * VIRTUAL_NODES + j] = hasher.reset().putInt(i).putInt(j).hashLow();
+            }
+        }
+        long[] sorted = positions.clone();
+        Arrays.sort(sorted);
+        ringPositions = sorted;
+        ringShards = new int[nodeCount];
+        for (int n = 0; n < nodeCount; n++) {
+            ringShards[Arrays.binarySearch(sorted, positions[n])] = n / VIRTUAL_NODES;
+        }
+
+        executor = new ThreadPoolExecutor(shards.size(), shards.size(), 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Retrocache-Shard");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static List<CacheInterface> createShards(int shardCount, long maxSize, ShardFactory factory)
+            throws IOException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount <= 0");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        checkNotNull(factory);
+        List<CacheInterface> shards = new ArrayList<>(shardCount);
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards.add(checkNotNull(factory.create(i, maxSize / shardCount)));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (CacheInterface shard : shards) {
+                closeQuietly(shard);
+            }
+            throw e;
+        }
+        return shards;
+    }
+
+    @Override
+    public OutputStream newOutputStreamForKey(String key) throws IOException {
+        Shard shard = shardFor(key);
+        return new ShardOutputStream(shard.cache.newOutputStreamForKey(key), shard);
+    }
+
+    @Override
+    public InputStream getInputStreamForKey(String key) throws IOException {
+        Shard shard = shardFor(key);
+        try {
+            InputStream in = shard.cache.getInputStreamForKey(key);
+            shard.hits.incrementAndGet();
+            return in;
+        } catch (KeyNotFoundException e) {
+            shard.misses.incrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public long getCreationTimeForKey(String key) throws IOException {
+        return shardFor(key).cache.getCreationTimeForKey(key);
+    }
+
+    @Override
+    public BufferCacheEntry getEntryForKey(String key) throws IOException {
+        Shard shard = shardFor(key);
+        try {
+            CacheEntry entry = CacheInterfaces.getEntry(shard.cache, key);
+            shard.hits.incrementAndGet();
+            return CacheInterfaces.asBufferEntry(entry);
+        } catch (KeyNotFoundException e) {
+            shard.misses.incrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public void putBuffer(String key, ByteBuffer content) throws IOException {
+        Shard shard = shardFor(key);
+        int length = content.remaining();
+        CacheInterfaces.putBuffer(shard.cache, key, content);
+        shard.recordWrite(length);
+    }
+
+    /**
+     * Reads the entries of each shard with a batch read, the shards concurrently.
+     */
+    @Override
+    public Map<String, CacheEntry> getAll(Collection<String> keys) throws IOException {
+        Map<Shard, List<String>> keysByShard = new LinkedHashMap<>();
+        for (String key : keys) {
+            Shard shard = shardFor(key);
+            List<String> shardKeys = keysByShard.get(shard);
+            if (shardKeys == null) {
+                shardKeys = new ArrayList<>();
+                keysByShard.put(shard, shardKeys);
+            }
+            shardKeys.add(key);
+        }
+        List<Callable<Map<String, CacheEntry>>> reads = new ArrayList<>(keysByShard.size());
+        for (final Map.Entry<Shard, List<String>> shardKeys : keysByShard.entrySet()) {
+            reads.add(new Callable<Map<String, CacheEntry>>() {
+                @Override
+                public Map<String, CacheEntry> call() throws IOException {
+                    Shard shard = shardKeys.getKey();
+                    Map<String, CacheEntry> entries = CacheInterfaces.getAll(shard.cache, shardKeys.getValue());
+                    shard.hits.addAndGet(entries.size());
+                    shard.misses.addAndGet(shardKeys.getValue().size() - entries.size());
+                    return entries;
+                }
+            });
+        }
+        List<Future<Map<String, CacheEntry>>> results = invokeAll(reads);
+        Map<String, CacheEntry> entries = new LinkedHashMap<>();
+        Throwable failure = null;
+        for (Future<Map<String, CacheEntry>> result : results) {
+            try {
+                for (Map.Entry<String, CacheEntry> entry : result.get().entrySet()) {
+                    entries.put(entry.getKey(), CacheInterfaces.asBufferEntry(entry.getValue()));
+                }
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            for (CacheEntry entry : entries.values()) {
+                closeQuietly(entry);
+            }
+            throw asIOException(failure);
+        }
+        return entries;
+    }
+
+    /**
+     * Touches the record of {@code key} in its shard. Returns false if the shard can't
+     * touch records.
+     */
+    @Override
+    public boolean touch(String key) throws IOException {
+        return CacheInterfaces.touch(shardFor(key).cache, key);
+    }
+
+    /**
+     * Removes the record of {@code key} from its shard. Returns false if the shard can't
+     * remove records.
+     */
+    @Override
+    public boolean remove(String key) throws IOException {
+        return CacheInterfaces.remove(shardFor(key).cache, key);
+    }
+
+    @Override
+    public boolean remove(String key, long creationTime) throws IOException {
+        return CacheInterfaces.remove(shardFor(key).cache, key, creationTime);
+    }
+
+    /**
+     * Writes the records of each shard with a batch write, the shards concurrently.
+     */
+    @Override
+    public void putAll(Map<String, byte[]> contents) throws IOException {
+        Map<Shard, Map<String, byte[]>> contentsByShard = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+            Shard shard = shardFor(content.getKey());
+            Map<String, byte[]> shardContents = contentsByShard.get(shard);
+            if (shardContents == null) {
+                shardContents = new LinkedHashMap<>();
+                contentsByShard.put(shard, shardContents);
+            }
+            shardContents.put(content.getKey(), content.getValue());
+        }
+        List<Callable<Void>> writes = new ArrayList<>(contentsByShard.size());
+        for (final Map.Entry<Shard, Map<String, byte[]>> shardContents : contentsByShard.entrySet()) {
+            writes.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    Shard shard = shardContents.getKey();
+                    CacheInterfaces.putAll(shard.cache, shardContents.getValue());
+                    for (byte[] content : shardContents.getValue().values()) {
+                        shard.recordWrite(content.length);
+                    }
+                    return null;
+                }
+            });
+        }
+        awaitAll(invokeAll(writes));
+    }
+
+    /**
+     * Flushes the shards that can be flushed, concurrently.
+     */
+    @Override
+    public void flush() throws IOException {
+        List<Callable<Void>> flushes = new ArrayList<>(shards.size());
+        for (final Shard shard : shards) {
+            if (shard.cache instanceof Flushable) {
+                flushes.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        ((Flushable) shard.cache).flush();
+                        return null;
+                    }
+                });
+            }
+        }
+        awaitAll(invokeAll(flushes));
+    }
+
+    /**
+     * Closes the shards concurrently. All the shards are closed even if some of them
+     * fail to, and the first failure is thrown.
+     */
+    @Override
+    public void close() throws IOException {
+        if (executor.isShutdown()) {
+            return;
+        }
+        List<Callable<Void>> closes = new ArrayList<>(shards.size());
+        for (final Shard shard : shards) {
+            closes.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    shard.cache.close();
+                    return null;
+                }
+            });
+        }
+        try {
+            awaitAll(executor.invokeAll(closes));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw asIOException(e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the shards, in the order of their indexes.
+     */
+    public List<CacheInterface> getShards() {
+        List<CacheInterface> caches = new ArrayList<>(shards.size());
+        for (Shard shard : shards) {
+            caches.add(shard.cache);
+        }
+        return caches;
+    }
+
+    /**
+     * Returns the index of the shard that holds the record of {@code key}.
+     */
+    public int getShardIndex(String key) {
+        // The hash code of a String is cached, and is the same on every JVM.
+        long hash = Murmur3Hasher.fmix(key.hashCode());
+        int i = Arrays.binarySearch(ringPositions, hash);
+        if (i < 0) {
+            i = -i - 1;
+            if (i == ringPositions.length) {
+                i = 0;
+            }
+        }
+        return ringShards[i];
+    }
+
+    /**
+     * Returns the stats of the shard at {@code index}.
+     */
+    public Stats getShardStats(int index) {
+        Shard shard = shards.get(index);
+        return new Stats(shard.hits.get(), shard.misses.get(), shard.writes.get(), shard.bytesWritten.get());
+    }
+
+    /**
+     * Returns the stats of all the shards added up.
+     */
+    public Stats getStats() {
+        long hits = 0;
+        long misses = 0;
+        long writes = 0;
+        long bytesWritten = 0;
+        for (Shard shard : shards) {
+            hits += shard.hits.get();
+            misses += shard.misses.get();
+            writes += shard.writes.get();
+            bytesWritten += shard.bytesWritten.get();
+        }
+        return new Stats(hits, misses, writes, bytesWritten);
+    }
+
+    private Shard shardFor(String key) {
+        return shards.get(getShardIndex(checkNotNull(key)));
+    }
+
+    /**
+     * Runs the tasks concurrently, or a single task on the calling thread.
+     */
+    private <V> List<Future<V>> invokeAll(List<Callable<V>> tasks) throws IOException {
+        if (tasks.size() == 1) {
+            Future<V> result;
+            try {
+                result = new CompletedFuture<>(tasks.get(0).call(), null);
+            } catch (Exception e) {
+                result = new CompletedFuture<>(null, e);
+            }
+            return Collections.singletonList(result);
+        }
+        try {
+            return executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw asIOException(e);
+        }
+    }
+
+    private static void awaitAll(List<? extends Future<?>> results) throws IOException {
+        Throwable failure = null;
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw asIOException(failure);
+        }
+    }
+
+    private static IOException asIOException(Throwable e) {
+        if (e instanceof IOException) {
+            return (IOException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IOException(e);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * The read and write counts of a shard, or of all the shards.
+     */
+    public static final class Stats {
+
+        private final long hitCount;
+        private final long missCount;
+        private final long writeCount;
+        private final long bytesWritten;
+
+        Stats(long hitCount, long missCount, long writeCount, long bytesWritten) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.writeCount = writeCount;
+            this.bytesWritten = bytesWritten;
+        }
+
+        /**
+         * Returns the number of records found.
+         */
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /**
+         * Returns the number of records looked up and not found.
+         */
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * Returns the number of records written.
+         */
+        public long getWriteCount() {
+            return writeCount;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{hits=" + hitCount
+                    + ", misses=" + missCount
+                    + ", writes=" + writeCount
+                    + ", bytesWritten=" + bytesWritten
+                    + "}";
+        }
+    }
+
+    private static final class Shard {
+
+        final CacheInterface cache;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+        final AtomicLong bytesWritten = new AtomicLong();
+
+        Shard(CacheInterface cache) {
+            this.cache = cache;
+        }
+
+        void recordWrite(long length) {
+            writes.incrementAndGet();
+            bytesWritten.addAndGet(length);
+        }
+    }
+
+    /**
+     * Counts the bytes written to a shard, and the record once the stream is closed.
+     */
+    private static final class ShardOutputStream extends FilterOutputStream {
+
+        private final Shard shard;
+        private long count;
+        private boolean closed;
+
+        ShardOutputStream(OutputStream out, Shard shard) {
+            super(out);
+            this.shard = shard;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            out.close();
+            shard.recordWrite(count);
+        }
+    }
+
+    /**
+     * The result of a task run on the calling thread.
+     */
+    private static final class CompletedFuture<V> implements Future<V> {
+
+        private final V value;
+        private final Exception failure;
+
+        CompletedFuture(V value, Exception failure) {
+            this.value = value;
+            this.failure = failure;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public V get() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return value;
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws ExecutionException {
+            return get();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package alonexx.retrocache;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * An annotation that makes a method cache every item its {@code Observable} emits,
+ * instead of only the first one. It only takes effect with {@link Cache}.
+ *
+ * <p>The items are written to the record one by one as they are emitted, and a record
+ * is replayed one item at a time as the subscriber requests them, so the whole sequence
+ * is never held in memory. A sequence that fails or is unsubscribed before it completes
+ * isn't replayed, and the previous complete sequence is kept. The memory tier and the
+ * write-behind queue are not used.
+ *
+ * <p>Each sequence is written under a key of its own, made of the key of the call, a dash
+ * and a generation number, and the record of the call's key points to the last complete
+ * one. A {@link KeyTransformer} for such methods must leave room for the suffix within
+ * the key length limit of the cache.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface StreamCache {
+}
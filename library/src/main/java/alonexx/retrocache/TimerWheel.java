@@ -0,0 +1,174 @@
+package alonexx.retrocache;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timer wheel of the deadlines of keys, in milliseconds.
+ *
+ * <p>Each level is a ring of 64 buckets, and a bucket of a level spans as long as the
+ * whole ring of the level below: about a second, a minute, an hour and three days. A key
+ * is put in the finest level whose ring covers its deadline, and moves down a level each
+ * time the wheel passes its bucket, until it expires. Scheduling a key takes constant
+ * time, and advancing the wheel only visits the buckets it passes, whatever the number
+ * of keys.
+ *
+ * <p>A wheel is not thread-safe.
+ */
+final class TimerWheel {
+
+    private static final int BUCKETS = 64;
+
+    /**
+     * The log2 of the span of a bucket of each level. A ring spans
+     * {@code BUCKETS << SHIFTS[i]}, which is the span of a bucket of the next level.
+     */
+    private static final int[] SHIFTS = {10, 16, 22, 28};
+
+    private final Node[][] wheel = new Node[SHIFTS.length][BUCKETS];
+    private final Map<String, Node> nodes = new HashMap<>();
+    private long time;
+
+    TimerWheel(long time) {
+        this.time = time;
+        for (Node[] buckets : wheel) {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new Node(null);
+            }
+        }
+    }
+
+    /**
+     * Schedules {@code key}, created at {@code creationTime}, to expire at {@code deadline},
+     * replacing its earlier schedule.
+     */
+    void schedule(String key, long creationTime, long deadline) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            node = new Node(key);
+            nodes.put(key, node);
+        } else if (node.creationTime == creationTime && node.deadline == deadline) {
+            return;
+        } else {
+            node.unlink();
+        }
+        node.creationTime = creationTime;
+        node.deadline = deadline;
+        node.linkBefore(bucketFor(deadline));
+    }
+
+    /**
+     * Cancels the schedule of {@code key}, if there's one.
+     */
+    void unschedule(String key) {
+        Node node = nodes.remove(key);
+        if (node != null) {
+            node.unlink();
+        }
+    }
+
+    boolean contains(String key) {
+        return nodes.containsKey(key);
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Advances the wheel to {@code now}, and moves the keys whose deadline has passed to
+     * {@code expired}. Does nothing if {@code now} is before the current time of the wheel.
+     */
+    void advance(long now, List<Node> expired) {
+        long previous = time;
+        if (now <= previous) {
+            return;
+        }
+        time = now;
+        for (int i = 0; i < SHIFTS.length; i++) {
+            long previousTicks = previous >>> SHIFTS[i];
+            long delta = (now >>> SHIFTS[i]) - previousTicks;
+            if (delta <= 0) {
+                break;
+            }
+            expire(i, previousTicks, delta, expired);
+        }
+    }
+
+    /**
+     * Empties the buckets of a level that the wheel passed, from the one of
+     * {@code previousTicks} on. The keys that are due expire, and the others are put back
+     * in a finer level.
+     */
+    private void expire(int level, long previousTicks, long delta, List<Node> expired) {
+        Node[] buckets = wheel[level];
+        int start = (int) (previousTicks & (BUCKETS - 1));
+        int end = start + (int) Math.min(delta + 1, BUCKETS);
+        for (int i = start; i < end; i++) {
+            Node sentinel = buckets[i & (BUCKETS - 1)];
+            Node node = sentinel.next;
+            sentinel.previous = sentinel;
+            sentinel.next = sentinel;
+            while (node != sentinel) {
+                Node next = node.next;
+                node.previous = null;
+                node.next = null;
+                if (node.deadline <= time) {
+                    nodes.remove(node.key);
+                    expired.add(node);
+                } else {
+                    node.linkBefore(bucketFor(node.deadline));
+                }
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * Returns the sentinel of the bucket of the finest level whose ring covers
+     * {@code deadline}. A deadline that has passed goes to the current bucket.
+     */
+    private Node bucketFor(long deadline) {
+        deadline = Math.max(deadline, time);
+        long duration = deadline - time;
+        int level = 0;
+        while (level < SHIFTS.length - 1 && duration >= 1L << SHIFTS[level + 1]) {
+            level++;
+        }
+        return wheel[level][(int) ((deadline >>> SHIFTS[level]) & (BUCKETS - 1))];
+    }
+
+    /**
+     * A scheduled key, in the circular list of its bucket. The sentinel of a bucket has
+     * no key.
+     */
+    static final class Node {
+
+        final String key;
+        long creationTime;
+        long deadline;
+        Node previous = this;
+        Node next = this;
+
+        Node(String key) {
+            this.key = key;
+        }
+
+        void linkBefore(Node sentinel) {
+            previous = sentinel.previous;
+            next = sentinel;
+            previous.next = this;
+            sentinel.previous = this;
+        }
+
+        void unlink() {
+            if (next != null) {
+                previous.next = next;
+                next.previous = previous;
+                previous = null;
+                next = null;
+            }
+        }
+    }
+}
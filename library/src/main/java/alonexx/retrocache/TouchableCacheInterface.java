@@ -0,0 +1,25 @@
+package alonexx.retrocache;
+
+import java.io.IOException;
+
+/**
+ * A {@link CacheInterface} that refreshes the creation time of a record without writing
+ * its content again.
+ *
+ * <p>The proxy touches a record instead of rewriting it when a call returns the same
+ * content as the record, such as a stale record revalidated while the source hasn't
+ * changed. The content is compared by fingerprint, see {@link VersionExtractor}. For the
+ * implementations that don't provide this interface, the record is always rewritten.
+ */
+public interface TouchableCacheInterface extends CacheInterface {
+
+    /**
+     * Sets the creation time of the record of {@code key} to the current time, and keeps
+     * its content. Returns false if there's no record of {@code key}, or if it can't be
+     * touched right now, such as while it's being written; the caller then writes the
+     * record instead.
+     *
+     * @throws IOException If an IO error occurs, throw an IOException.
+     */
+    boolean touch(String key) throws IOException;
+}
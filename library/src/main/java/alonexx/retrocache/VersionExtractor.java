@@ -0,0 +1,29 @@
+package alonexx.retrocache;
+
+/**
+ * Extracts the version of a result, such as its ETag or revision number, as the
+ * fingerprint of its content.
+ * <code>
+ *     Retrocache.cache(SomeService.class, service)
+ *             .cache(cache)
+ *             .versionExtractor(new VersionExtractor() {
+ *                 public Object versionOf(CacheContext context, Object result) {
+ *                     return ((Versioned) result).getETag();
+ *                 }
+ *             })
+ *             .create();
+ * </code>
+ *
+ * <p>When the cache is a {@link TouchableCacheInterface}, a result whose fingerprint is
+ * the one of its record touches the record instead of rewriting it. Without an extractor,
+ * the fingerprint is a hash of the serialized result, which costs a serialization and a
+ * pass over the bytes per save. With one, a save of an unchanged result isn't serialized.
+ */
+public interface VersionExtractor {
+
+    /**
+     * Returns the version of {@code result}, or null if it's unknown, in which case the
+     * result is written. Two results of equal versions must have the same content.
+     */
+    Object versionOf(CacheContext context, Object result);
+}
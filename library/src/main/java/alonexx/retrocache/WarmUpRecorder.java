@@ -0,0 +1,254 @@
+package alonexx.retrocache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static alonexx.retrocache.internal.Preconditions.checkNotNull;
+
+/**
+ * Records the hottest calls of a service, so that their records can be loaded ahead of
+ * the first calls after the process restarts.
+ * <code>
+ *     WarmUpRecorder recorder = new WarmUpRecorder(new File(cacheDir, "warm-up"), 100);
+ *     SomeService service = Retrocache.cache(SomeService.class, target)
+ *             .cache(cache)
+ *             .memoryCache(new MemoryCache(200))
+ *             .warmUpRecorder(recorder)
+ *             .create();
+ *     // On startup, in the background:
+ *     Retrocache.warmUp(service, 500, TimeUnit.MILLISECONDS, 4);
+ *     // Before the process goes away:
+ *     recorder.save();
+ * </code>
+ *
+ * <p>Each call of a method that reads the cache is counted by key. Only calls whose
+ * arguments are all {@code Serializable} are recorded. {@link #save()} writes the most
+ * called ones to the file, and the counts loaded from the file are halved, so that the
+ * ranking follows the recent use. Once twice as many calls as saved are counted, the
+ * coldest ones are dropped in the background.
+ */
+public final class WarmUpRecorder {
+
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final int maxCalls;
+    private final ConcurrentMap<String, HotCall> calls = new ConcurrentHashMap<>();
+    private final AtomicBoolean trimScheduled = new AtomicBoolean();
+    private final ExecutorService trimExecutor;
+    private final Runnable trimTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                trim();
+            } finally {
+                trimScheduled.set(false);
+            }
+        }
+    };
+
+    /**
+     * @param file     the file to save the hottest calls to
+     * @param maxCalls the maximum number of calls to save
+     */
+    public WarmUpRecorder(File file, int maxCalls) {
+        if (maxCalls <= 0) {
+            throw new IllegalArgumentException("maxCalls <= 0");
+        }
+        this.file = checkNotNull(file);
+        this.maxCalls = maxCalls;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Retrocache-WarmUpTrim");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        trimExecutor = executor;
+    }
+
+    /**
+     * Writes the hottest calls to the file, replacing its content.
+     */
+    public void save() throws IOException {
+        List<RankedCall> hottest = hottest();
+        File tmp = new File(file.getPath() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(hottest.size());
+            for (RankedCall ranked : hottest) {
+                out.writeUTF(ranked.call.signature);
+                out.writeLong(ranked.hits);
+                out.writeObject(ranked.call.args);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    void record(String key, ServiceMethodInfo serviceMethodInfo, Object[] args) {
+        HotCall call = calls.get(key);
+        if (call == null) {
+            if (!isSerializable(args)) {
+                return;
+            }
+            HotCall newCall = new HotCall(serviceMethodInfo.getSignature(), args, 1);
+            call = calls.putIfAbsent(key, newCall);
+            if (call == null) {
+                if (calls.size() > 2 * maxCalls && trimScheduled.compareAndSet(false, true)) {
+                    trimExecutor.execute(trimTask);
+                }
+                return;
+            }
+        }
+        call.hits.incrementAndGet();
+    }
+
+    /**
+     * Reads the calls saved to the file, hottest first, and counts them with half their
+     * hits. Returns an empty list if there's no file.
+     */
+    List<HotCall> load() throws IOException {
+        List<HotCall> loaded = new ArrayList<>();
+        ObjectInputStream in;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return loaded;
+        }
+        try {
+            if (in.readInt() != VERSION) {
+                return loaded;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String signature = in.readUTF();
+                long hits = in.readLong();
+                Object[] args = (Object[]) in.readObject();
+                loaded.add(new HotCall(signature, args, hits / 2));
+            }
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Malformed warm-up file " + file, e);
+        } finally {
+            in.close();
+        }
+        return loaded;
+    }
+
+    /**
+     * Adds the hits of a loaded call to the call of {@code key}.
+     */
+    void restore(String key, HotCall loaded) {
+        HotCall call = calls.putIfAbsent(key, loaded);
+        if (call != null && call != loaded) {
+            call.hits.addAndGet(loaded.hits.get());
+        }
+    }
+
+    /**
+     * Drops the coldest calls, down to the maximum number of calls. Runs on the trim
+     * thread, so that the calls being recorded don't wait for the sort.
+     */
+    synchronized void trim() {
+        if (calls.size() <= maxCalls) {
+            return;
+        }
+        Set<HotCall> hottest = new HashSet<>();
+        for (RankedCall ranked : hottest()) {
+            hottest.add(ranked.call);
+        }
+        calls.values().retainAll(hottest);
+    }
+
+    /**
+     * Returns the hottest calls, hottest first. The hits are read once before sorting, as
+     * the calls keep counting meanwhile.
+     */
+    private List<RankedCall> hottest() {
+        List<RankedCall> sorted = new ArrayList<>(calls.size());
+        for (HotCall call : calls.values()) {
+            sorted.add(new RankedCall(call, call.hits.get()));
+        }
+        Collections.sort(sorted, new Comparator<RankedCall>() {
+            @Override
+            public int compare(RankedCall a, RankedCall b) {
+                return b.hits < a.hits ? -1 : (b.hits == a.hits ? 0 : 1);
+            }
+        });
+        return sorted.size() > maxCalls ? sorted.subList(0, maxCalls) : sorted;
+    }
+
+    private static boolean isSerializable(Object[] args) {
+        for (Object arg : args) {
+            if (arg != null && !(arg instanceof Serializable)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static final class HotCall {
+
+        /**
+         * The signature of the method, see {@link ServiceMethodInfo#getSignature()}.
+         */
+        final String signature;
+
+        final Object[] args;
+
+        final AtomicLong hits;
+
+        HotCall(String signature, Object[] args, long hits) {
+            this.signature = signature;
+            this.args = args;
+            this.hits = new AtomicLong(hits);
+        }
+    }
+
+    private static final class RankedCall {
+
+        final HotCall call;
+
+        final long hits;
+
+        RankedCall(HotCall call, long hits) {
+            this.call = call;
+            this.hits = hits;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package alonexx.retrocache;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static alonexx.retrocache.internal.Preconditions.checkNotNull;
+
+/**
+ * A bounded queue of saves that are written to the cache by a dedicated thread.
+ *
+ * <p>The writer thread drains the queue in batches, and hands each batch to the writer
+ * at once. A save that is superseded by a newer save of the same key in its batch is
+ * skipped. Until a save is written, it can be read back with {@link #get(String)}, so
+ * the callers never observe an older record than the one they saved. If the newer save
+ * is dropped by the {@link OverflowPolicy}, the older one is read back again.
+ *
+ * <p>After the queue is closed, saves are written on the calling thread.
+ */
+final class WriteBehindQueue implements Flushable, Closeable {
+
+    private final BlockingQueue<PendingWrite> queue;
+    private final ConcurrentMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+    private final int maxBatchSize;
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * Guarded by {@code this}.
+     */
+    private Writer writer;
+    private Thread writerThread;
+
+    /**
+     * The number of saves that have been queued but not written or dropped yet.
+     * Guarded by {@code this}.
+     */
+    private int outstanding;
+
+    /**
+     * Guarded by {@code this}.
+     */
+    private boolean closed;
+
+    WriteBehindQueue(int capacity, int maxBatchSize, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize <= 0");
+        }
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatchSize = maxBatchSize;
+        this.overflowPolicy = checkNotNull(overflowPolicy);
+    }
+
+    /**
+     * Starts the writer thread that writes the queued saves with {@code writer}.
+     */
+    synchronized void start(Writer writer) {
+        if (this.writer != null) {
+            throw new IllegalStateException("The queue has already been started.");
+        }
+        this.writer = checkNotNull(writer);
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Retrocache-WriteBehind");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    void enqueue(String key, CacheContext context, Object object, long creationTime) {
+        PendingWrite write = new PendingWrite(key, context, object, creationTime);
+        boolean queued;
+        Writer writer;
+        synchronized (this) {
+            writer = this.writer;
+            queued = !closed;
+            if (queued) {
+                write.superseded = pendingWrites.put(key, write);
+                outstanding++;
+            }
+        }
+        if (!queued) {
+            writer.write(Collections.singletonList(write));
+            return;
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(write);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    drop(write);
+                }
+                break;
+            case DROP_NEWEST:
+                if (!queue.offer(write)) {
+                    drop(write);
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(write)) {
+                    PendingWrite oldest = queue.poll();
+                    if (oldest != null) {
+                        drop(oldest);
+                    }
+                }
+                break;
+            default:
+                throw new AssertionError(overflowPolicy);
+        }
+    }
+
+    /**
+     * Returns the latest save of {@code key} that hasn't been written yet, or null.
+     */
+    PendingWrite get(String key) {
+        return pendingWrites.get(key);
+    }
+
+    /**
+     * Blocks until all the queued saves have been written or dropped.
+     */
+    @Override
+    public void flush() throws InterruptedIOException {
+        synchronized (this) {
+            try {
+                while (outstanding > 0) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while flushing pending writes.");
+            }
+        }
+    }
+
+    /**
+     * Writes all the queued saves and stops the writer thread.
+     */
+    @Override
+    public void close() throws InterruptedIOException {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+        Thread writerThread;
+        synchronized (this) {
+            writerThread = this.writerThread;
+        }
+        if (writerThread != null) {
+            writerThread.interrupt();
+        }
+    }
+
+    private void drain() {
+        Writer writer;
+        synchronized (this) {
+            writer = this.writer;
+        }
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        Map<String, PendingWrite> latestWrites = new LinkedHashMap<>();
+        List<PendingWrite> writes = new ArrayList<>(maxBatchSize);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                if (isClosed() && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            queue.drainTo(batch, maxBatchSize - 1);
+            for (PendingWrite write : batch) {
+                latestWrites.put(write.key, write);
+            }
+            writes.addAll(latestWrites.values());
+            try {
+                if (!writes.isEmpty()) {
+                    writer.write(writes);
+                }
+            } catch (Throwable e) {
+                reportFailure(writer, writes, e);
+            } finally {
+                finish(batch);
+            }
+            batch.clear();
+            latestWrites.clear();
+            writes.clear();
+        }
+    }
+
+    private static void reportFailure(Writer writer, List<PendingWrite> writes, Throwable e) {
+        try {
+            writer.onWriteFailed(writes, e);
+        } catch (Throwable ignored) {
+            // The writer thread must keep draining the queue.
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Forgets the saves of a batch, which have been written or skipped as superseded.
+     */
+    private synchronized void finish(List<PendingWrite> writes) {
+        for (PendingWrite write : writes) {
+            write.done = true;
+            write.superseded = null;
+            pendingWrites.remove(write.key, write);
+        }
+        changeOutstanding(-writes.size());
+    }
+
+    /**
+     * Forgets a save that has been dropped. If it's the latest save of its key, the save
+     * it superseded is the latest again, as long as it's still queued.
+     */
+    private synchronized void drop(PendingWrite write) {
+        PendingWrite previous = write.superseded;
+        while (previous != null && previous.done) {
+            previous = previous.superseded;
+        }
+        write.done = true;
+        write.superseded = null;
+        if (previous == null) {
+            pendingWrites.remove(write.key, write);
+        } else {
+            pendingWrites.replace(write.key, write, previous);
+        }
+        changeOutstanding(-1);
+    }
+
+    private synchronized void changeOutstanding(int delta) {
+        outstanding += delta;
+        if (outstanding == 0) {
+            notifyAll();
+        }
+    }
+
+    interface Writer {
+
+        /**
+         * Writes a batch of saves, each of a different key.
+         */
+        void write(List<PendingWrite> writes);
+
+        /**
+         * Reports that {@link #write(List)} failed with {@code e}, so none of
+         * {@code writes} may have been written.
+         */
+        void onWriteFailed(List<PendingWrite> writes, Throwable e);
+    }
+
+    static final class PendingWrite {
+
+        final String key;
+
+        final CacheContext context;
+
+        final Object object;
+
+        final long creationTime;
+
+        /**
+         * The queued save of the same key that this one replaced, and whether this one
+         * has been written or dropped. Guarded by the queue.
+         */
+        PendingWrite superseded;
+        boolean done;
+
+        PendingWrite(String key, CacheContext context, Object object, long creationTime) {
+            this.key = key;
+            this.context = context;
+            this.object = object;
+            this.creationTime = creationTime;
+        }
+    }
+}
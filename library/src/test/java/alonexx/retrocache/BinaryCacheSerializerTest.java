@@ -0,0 +1,93 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryCacheSerializerTest {
+
+    private final BinaryCacheSerializer serializer = new BinaryCacheSerializer();
+
+    @Test
+    public void roundTripsObject() throws Exception {
+        Node node = new Node();
+        node.name = "root";
+        node.child = new Node();
+        node.child.name = "child";
+        Node copy = (Node) roundTrip(Node.class, node);
+        assertEquals("root", copy.name);
+        assertEquals("child", copy.child.name);
+    }
+
+    @Test
+    public void rejectsSubclassOfDeclaredClass() throws Exception {
+        try {
+            write(Node.class, new SpecialNode());
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains(SpecialNode.class.getName()));
+        }
+    }
+
+    @Test
+    public void rejectsCyclicObject() throws Exception {
+        Node node = new Node();
+        node.child = new Node();
+        node.child.child = node;
+        try {
+            write(Node.class, node);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("cyclic"));
+        }
+    }
+
+    @Test
+    public void rejectsCyclicCollection() throws Exception {
+        List<Object> list = new ArrayList<>();
+        list.add(list);
+        try {
+            write(List.class, list);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("cyclic"));
+        }
+    }
+
+    @Test
+    public void writesSharedReferenceAsCopies() throws Exception {
+        Node shared = new Node();
+        shared.name = "shared";
+        Node[] nodes = {shared, shared};
+        Node[] copy = (Node[]) roundTrip(Node[].class, nodes);
+        assertEquals("shared", copy[0].name);
+        assertEquals("shared", copy[1].name);
+    }
+
+    private BinaryCacheSerializer.BinaryWriter write(Class<?> type, Object value) throws IOException {
+        BinaryCacheSerializer.BinaryWriter writer = new BinaryCacheSerializer.BinaryWriter();
+        serializer.codecFor(type).nullable().write(writer, value);
+        return writer;
+    }
+
+    private Object roundTrip(Class<?> type, Object value) throws IOException {
+        BinaryCacheSerializer.BinaryReader reader =
+                new BinaryCacheSerializer.BinaryReader(write(type, value).toBuffer());
+        return serializer.codecFor(type).nullable().read(reader);
+    }
+
+    static class Node {
+        String name;
+        Node child;
+    }
+
+    static class SpecialNode extends Node {
+        int extra;
+    }
+}
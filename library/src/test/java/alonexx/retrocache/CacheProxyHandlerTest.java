@@ -0,0 +1,244 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Observable;
+import rx.Subscription;
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CacheProxyHandlerTest {
+
+    public interface Service {
+
+        @Cache(CachePolicy.PREFER_CACHE)
+        @Expiration(value = 1, timeUnit = TimeUnit.DAYS)
+        Observable<String> get(String id);
+    }
+
+    public interface BadNegativeCacheService {
+
+        @Cache(CachePolicy.PREFER_NETWORK)
+        @NegativeCache(value = 10, timeUnit = TimeUnit.MICROSECONDS)
+        Observable<String> get(String id);
+    }
+
+    static class Target implements Service {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public Observable<String> get(final String id) {
+            return Observable.fromCallable(new Callable<String>() {
+                @Override
+                public String call() {
+                    calls.incrementAndGet();
+                    return "value-" + id;
+                }
+            });
+        }
+    }
+
+    @Test
+    public void decodesHitFromEntryBufferAndClosesEntry() throws Exception {
+        CountingCache cache = new CountingCache();
+        Target target = new Target();
+        Service service = Retrocache.cache(Service.class, (Service) target).cache(cache).create();
+
+        assertEquals("value-a", service.get("a").toBlocking().first());
+        assertEquals("value-a", service.get("a").toBlocking().first());
+
+        assertEquals(1, target.calls.get());
+        assertEquals(1, cache.buffers.get());
+        assertEquals(cache.opened.get(), cache.closed.get());
+    }
+
+    @Test
+    public void closesEntryWhenUnsubscribedBeforeDecoding() throws Exception {
+        CountingCache cache = new CountingCache();
+        Target target = new Target();
+        Retrocache.cache(Service.class, (Service) target).cache(cache).create()
+                .get("a").toBlocking().first();
+
+        TestScheduler decodeScheduler = new TestScheduler();
+        Service service = Retrocache.cache(Service.class, (Service) target).cache(cache)
+                .decodeScheduler(decodeScheduler).create();
+        Subscription subscription = service.get("a").subscribe();
+        assertEquals(1, cache.opened.get());
+        assertEquals(0, cache.closed.get());
+        subscription.unsubscribe();
+        decodeScheduler.triggerActions();
+        assertEquals(1, cache.closed.get());
+    }
+
+    @Test
+    public void closesEntryOnceDecodedWhenUnsubscribedDuringDecoding() throws Exception {
+        CountingCache cache = new CountingCache();
+        Target target = new Target();
+        final CountDownLatch decoding = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        CacheSerializer serializer = new JavaBuiltInCacheSerializer() {
+            @Override
+            public Object readFromCache(InputStream in, CacheContext context) throws Exception {
+                decoding.countDown();
+                // Unsubscribing interrupts the decode thread; keep decoding as a slow decoder would.
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        proceed.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                try {
+                    return super.readFromCache(in, context);
+                } finally {
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        Retrocache.cache(Service.class, (Service) target).cache(cache).create()
+                .get("a").toBlocking().first();
+
+        MemoryCache memoryCache = new MemoryCache(16);
+        Service service = Retrocache.cache(Service.class, (Service) target).cache(cache)
+                .cacheParser(serializer).memoryCache(memoryCache)
+                .decodeScheduler(Schedulers.newThread()).create();
+        Subscription subscription = service.get("a").subscribe();
+        assertTrue(decoding.await(5, TimeUnit.SECONDS));
+        subscription.unsubscribe();
+        assertEquals(0, cache.closed.get());
+        proceed.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.closed.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+        assertEquals(1, cache.closed.get());
+        assertNull(memoryCache.get("a"));
+    }
+
+    @Test
+    public void rejectsNegativeCacheShorterThanMillisecond() throws Exception {
+        BadNegativeCacheService target = new BadNegativeCacheService() {
+            @Override
+            public Observable<String> get(String id) {
+                return Observable.just(id);
+            }
+        };
+        try {
+            Retrocache.cache(BadNegativeCacheService.class, target).cache(new CountingCache()).create();
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void prefetchMakesBoundedNumberOfCallsAtATime() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        Service target = new Service() {
+            @Override
+            public Observable<String> get(final String id) {
+                return Observable.fromCallable(new Callable<String>() {
+                    @Override
+                    public String call() throws InterruptedException {
+                        calls.incrementAndGet();
+                        int count = inFlight.incrementAndGet();
+                        while (true) {
+                            int max = maxInFlight.get();
+                            if (count <= max || maxInFlight.compareAndSet(max, count)) {
+                                break;
+                            }
+                        }
+                        Thread.sleep(20);
+                        inFlight.decrementAndGet();
+                        return "value-" + id;
+                    }
+                });
+            }
+        };
+        Service service = Retrocache.cache(Service.class, target).cache(new CountingCache()).create();
+        Method get = Service.class.getMethod("get", String.class);
+        List<ServiceCall> prefetchCalls = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            prefetchCalls.add(new ServiceCall(get, "k" + i));
+        }
+
+        Retrocache.prefetch(service, prefetchCalls);
+
+        assertEquals(40, calls.get());
+        assertTrue(maxInFlight.get() <= 8);
+        assertEquals("value-k0", service.get("k0").toBlocking().first());
+        assertEquals(40, calls.get());
+    }
+
+    /**
+     * Counts the entries that are opened, closed and read as buffers.
+     */
+    static class CountingCache extends OffHeapCache {
+
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final AtomicInteger buffers = new AtomicInteger();
+
+        CountingCache() {
+            super(1024 * 1024, 64 * 1024);
+        }
+
+        @Override
+        public BufferCacheEntry getEntryForKey(String key) throws IOException {
+            final BufferCacheEntry entry = super.getEntryForKey(key);
+            opened.incrementAndGet();
+            return new BufferCacheEntry() {
+                @Override
+                public ByteBuffer getBuffer() throws IOException {
+                    buffers.incrementAndGet();
+                    return entry.getBuffer();
+                }
+
+                @Override
+                public long getCreationTime() {
+                    return entry.getCreationTime();
+                }
+
+                @Override
+                public long getLength() {
+                    return entry.getLength();
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return entry.getInputStream();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    closed.incrementAndGet();
+                    entry.close();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressingCacheSerializerTest {
+
+    private static final int MAGIC = 0x43;
+    private static final int LZ4 = 1;
+    private static final int DEFLATE = 2;
+
+    @Test
+    public void roundTripsWithEveryAlgorithm() throws Exception {
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 7);
+        }
+        for (CompressingCacheSerializer.Algorithm algorithm : CompressingCacheSerializer.Algorithm.values()) {
+            CompressingCacheSerializer serializer =
+                    new CompressingCacheSerializer(new BytesSerializer(), algorithm, 16);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serializer.writeToCache(out, null, content);
+            assertTrue(out.size() < content.length);
+
+            assertArrayEquals(content, (byte[]) read(serializer, out.toByteArray()));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void rejectsDeflateDataWithPresetDictionary() throws Exception {
+        byte[] raw = new byte[100];
+        Deflater deflater = new Deflater();
+        deflater.setDictionary(new byte[]{1, 2, 3});
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] compressed = new byte[200];
+        int compressedLength = deflater.deflate(compressed);
+        deflater.end();
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        writeHeader(record, DEFLATE, raw.length, compressedLength);
+        record.write(compressed, 0, compressedLength);
+        try {
+            read(new CompressingCacheSerializer(new BytesSerializer()), record.toByteArray());
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsCompressedLengthBeyondRecord() throws Exception {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        writeHeader(record, LZ4, 10, Integer.MAX_VALUE);
+        record.write(new byte[]{1, 2, 3});
+        try {
+            read(new CompressingCacheSerializer(new BytesSerializer()), record.toByteArray());
+            fail();
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsRawLengthBeyondCompressionRatio() throws Exception {
+        for (int method : new int[]{LZ4, DEFLATE}) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            writeHeader(record, method, Integer.MAX_VALUE, 3);
+            record.write(new byte[]{1, 2, 3});
+            try {
+                read(new CompressingCacheSerializer(new BytesSerializer()), record.toByteArray());
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("length"));
+            }
+        }
+    }
+
+    private static Object read(CacheSerializer serializer, byte[] record) throws Exception {
+        return serializer.readFromCache(new ByteArrayInputStream(record), null);
+    }
+
+    private static void writeHeader(OutputStream out, int method, int rawLength, int compressedLength)
+            throws IOException {
+        out.write(MAGIC);
+        out.write(method);
+        writeVarint(out, rawLength);
+        writeVarint(out, compressedLength);
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static final class BytesSerializer implements CacheSerializer {
+
+        @Override
+        public Object readFromCache(InputStream in, CacheContext context) throws Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public void writeToCache(OutputStream out, CacheContext context, Object obj) throws Exception {
+            out.write((byte[]) obj);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Observable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContentFingerprintsTest {
+
+    public interface Service {
+
+        @Cache(CachePolicy.PREFER_NETWORK)
+        Observable<String> get(String id);
+    }
+
+    /**
+     * Returns the given results in turn, for any id.
+     */
+    static class Target implements Service {
+
+        private final List<String> results;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        Target(String... results) {
+            this.results = Arrays.asList(results);
+        }
+
+        @Override
+        public Observable<String> get(String id) {
+            return Observable.just(results.get(calls.getAndIncrement()));
+        }
+    }
+
+    @Test
+    public void touchesRecordOfUnchangedContent() throws Exception {
+        CountingCache cache = new CountingCache();
+        Service service = Retrocache.cache(Service.class, (Service) new Target("a", "a", "a", "b"))
+                .cache(cache).create();
+
+        service.get("k").toBlocking().first();
+        assertEquals(1, cache.puts.get());
+        assertEquals(0, cache.touches.get());
+
+        service.get("k").toBlocking().first();
+        service.get("k").toBlocking().first();
+        assertEquals(1, cache.puts.get());
+        assertEquals(2, cache.touches.get());
+
+        service.get("k").toBlocking().first();
+        assertEquals(2, cache.puts.get());
+        assertEquals(2, cache.touches.get());
+    }
+
+    @Test
+    public void touchesRecordOfUnchangedVersionWithoutSerializing() throws Exception {
+        CountingCache cache = new CountingCache();
+        CountingSerializer serializer = new CountingSerializer();
+        Service service = Retrocache.cache(Service.class, (Service) new Target("v1:a", "v1:b", "v2:c"))
+                .cache(cache)
+                .cacheParser(serializer)
+                .versionExtractor(new VersionExtractor() {
+                    @Override
+                    public Object versionOf(CacheContext context, Object result) {
+                        return ((String) result).split(":")[0];
+                    }
+                })
+                .create();
+
+        service.get("k").toBlocking().first();
+        assertEquals(1, cache.puts.get());
+        assertEquals(1, serializer.writes.get());
+
+        service.get("k").toBlocking().first();
+        assertEquals(1, cache.puts.get());
+        assertEquals(1, cache.touches.get());
+        assertEquals(1, serializer.writes.get());
+
+        service.get("k").toBlocking().first();
+        assertEquals(2, cache.puts.get());
+        assertEquals(2, serializer.writes.get());
+    }
+
+    @Test
+    public void writesRecordOfOverlappingSavesAgain() throws Exception {
+        final CountingCache cache = new CountingCache();
+        final Service service = Retrocache.cache(Service.class, (Service) new Target("a", "b", "a", "a"))
+                .cache(cache).coalesceCalls(false).create();
+
+        cache.blockNextPut();
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                service.get("k").toBlocking().first();
+            }
+        });
+        first.start();
+        assertTrue(cache.blocked.await(5, TimeUnit.SECONDS));
+        service.get("k").toBlocking().first();
+        cache.unblock.countDown();
+        first.join(5000);
+        assertEquals(2, cache.puts.get());
+
+        // Either content may have won, so the next save writes the record.
+        service.get("k").toBlocking().first();
+        assertEquals(3, cache.puts.get());
+        assertEquals(0, cache.touches.get());
+
+        service.get("k").toBlocking().first();
+        assertEquals(3, cache.puts.get());
+        assertEquals(1, cache.touches.get());
+    }
+
+    @Test
+    public void batchWriteTouchesRecordsOfUnchangedContent() throws Exception {
+        CountingCache cache = new CountingCache();
+        Service service = Retrocache.cache(Service.class, new Service() {
+            @Override
+            public Observable<String> get(String id) {
+                return Observable.just("value-" + id);
+            }
+        }).cache(cache).create();
+        Method get = Service.class.getMethod("get", String.class);
+        List<ServiceCall> calls = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            calls.add(new ServiceCall(get, "k" + i));
+        }
+
+        Retrocache.prefetch(service, calls);
+        assertEquals(4, cache.puts.get());
+        assertEquals(0, cache.touches.get());
+
+        // The records expire at once, so they're fetched and saved again, unchanged.
+        Retrocache.prefetch(service, calls);
+        assertEquals(4, cache.puts.get());
+        assertEquals(4, cache.touches.get());
+    }
+
+    @Test
+    public void forgetsFingerprintOfOverlappingWrites() {
+        ContentFingerprints fingerprints = new ContentFingerprints(null);
+        ContentFingerprints.Write first = fingerprints.beginWrite("k");
+        ContentFingerprints.Write second = fingerprints.beginWrite("k");
+        fingerprints.endWrite("k", second, "b");
+        fingerprints.endWrite("k", first, "a");
+        assertFalse(fingerprints.matches("k", "a"));
+        assertFalse(fingerprints.matches("k", "b"));
+
+        // A read back doesn't override a write either.
+        fingerprints.putIfAbsent("k", "a");
+        assertFalse(fingerprints.matches("k", "a"));
+
+        ContentFingerprints.Write third = fingerprints.beginWrite("k");
+        fingerprints.endWrite("k", third, "c");
+        assertTrue(fingerprints.matches("k", "c"));
+    }
+
+    /**
+     * Counts the records written and touched, and can hold a write until it's released.
+     */
+    static class CountingCache extends OffHeapCache {
+
+        final AtomicInteger puts = new AtomicInteger();
+        final AtomicInteger touches = new AtomicInteger();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        private volatile boolean blockNextPut;
+
+        CountingCache() {
+            super(1024 * 1024, 64 * 1024);
+        }
+
+        void blockNextPut() {
+            blockNextPut = true;
+        }
+
+        @Override
+        public void putBuffer(String key, ByteBuffer content) throws IOException {
+            if (blockNextPut) {
+                blockNextPut = false;
+                blocked.countDown();
+                try {
+                    if (!unblock.await(5, TimeUnit.SECONDS)) {
+                        throw new IOException("Not released.");
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            super.putBuffer(key, content);
+            puts.incrementAndGet();
+        }
+
+        @Override
+        public synchronized boolean touch(String key) {
+            boolean touched = super.touch(key);
+            if (touched) {
+                touches.incrementAndGet();
+            }
+            return touched;
+        }
+    }
+
+    /**
+     * Counts the results serialized.
+     */
+    static class CountingSerializer extends JavaBuiltInCacheSerializer {
+
+        final AtomicInteger writes = new AtomicInteger();
+
+        @Override
+        public void writeToCache(OutputStream out, CacheContext context, Object obj) throws Exception {
+            writes.incrementAndGet();
+            super.writeToCache(out, context, obj);
+        }
+    }
+}
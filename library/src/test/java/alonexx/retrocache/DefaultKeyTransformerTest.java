@@ -0,0 +1,115 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import rx.Observable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+public class DefaultKeyTransformerTest {
+
+    interface Service {
+
+        Observable<String> values(String s, int i, Long l, List<String> list, Map<String, Integer> map, int[] a);
+
+        Observable<String> object(Object o);
+
+        Observable<String> sets(Set<Set<String>> sets);
+
+        Observable<String> pojo(Query query);
+
+        Observable<String> pojos(List<Query> queries);
+    }
+
+    static class Query {
+        String text;
+    }
+
+    private final KeyTransformer transformer = DefaultKeyTransformer.instance();
+
+    @Test
+    public void acceptsSupportedParameters() throws Exception {
+        for (String name : new String[]{"values", "object", "sets"}) {
+            DefaultKeyTransformer.checkParameters(method(name));
+        }
+    }
+
+    @Test
+    public void rejectsUnsupportedParameters() throws Exception {
+        for (String name : new String[]{"pojo", "pojos"}) {
+            try {
+                DefaultKeyTransformer.checkParameters(method(name));
+                fail(name);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsUnsupportedArgument() throws Exception {
+        try {
+            transformer.transform(context("object", new Query()));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        // The hashers of the thread are still usable.
+        assertEquals(transform("object", "a"), transform("object", "a"));
+    }
+
+    @Test
+    public void hashesSetsRegardlessOfOrder() throws Exception {
+        Set<Set<String>> a = new LinkedHashSet<>();
+        a.add(new LinkedHashSet<>(Arrays.asList("x", "y")));
+        a.add(new LinkedHashSet<>(Arrays.asList("z")));
+        Set<Set<String>> b = new LinkedHashSet<>();
+        b.add(new LinkedHashSet<>(Arrays.asList("z")));
+        b.add(new LinkedHashSet<>(Arrays.asList("y", "x")));
+        assertEquals(transform("sets", a), transform("sets", b));
+
+        Set<Set<String>> c = new HashSet<>();
+        c.add(new HashSet<>(Arrays.asList("x", "z")));
+        c.add(new HashSet<>(Arrays.asList("y")));
+        assertNotEquals(transform("sets", a), transform("sets", c));
+    }
+
+    @Test
+    public void distinguishesArguments() throws Exception {
+        Map<String, Integer> map = new HashMap<>();
+        map.put("k", 1);
+        String key = transform("values", "s", 1, 2L, Collections.singletonList("e"), map, new int[]{3});
+        assertEquals(32, key.length());
+        assertNotEquals(key, transform("values", "s", 1, 2L, Collections.singletonList("e"), map, new int[]{4}));
+        assertNotEquals(transform("object", "1"), transform("object", 1));
+    }
+
+    private String transform(String name, Object... args) throws Exception {
+        return transformer.transform(context(name, args));
+    }
+
+    private static CacheContext context(String name, Object... args) throws Exception {
+        ServiceMethodInfo info = new ServiceMethodInfo(
+                method(name), CachePolicy.PREFER_CACHE, ReturnTypeAdapters.OBSERVABLE);
+        return new CacheContext(info, args);
+    }
+
+    private static Method method(String name) {
+        for (Method method : Service.class.getDeclaredMethods()) {
+            if (method.getName().equals(name)) {
+                return method;
+            }
+        }
+        throw new AssertionError(name);
+    }
+}
@@ -0,0 +1,99 @@
+package alonexx.retrocache;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExpirationSweeperTest {
+
+    /**
+     * Longer than a tick of the sweeper and a bucket of its wheel.
+     */
+    private static final long SWEEP_MILLIS = 3000;
+
+    interface Service {
+
+        @Cache(CachePolicy.PREFER_CACHE)
+        @Expiration(value = 1, timeUnit = TimeUnit.SECONDS)
+        Observable<String> get(String id);
+
+        @Cache(CachePolicy.STALE_WHILE_REVALIDATE)
+        @Expiration(value = 1, timeUnit = TimeUnit.SECONDS)
+        @MaxStale(value = 1, timeUnit = TimeUnit.HOURS)
+        Observable<String> revalidated(String id);
+    }
+
+    private final BlockingQueue<String> removed = new LinkedBlockingQueue<>();
+    private final ExpirationSweeper sweeper = new ExpirationSweeper(500);
+
+    @After
+    public void tearDown() {
+        sweeper.close();
+    }
+
+    @Test
+    public void removesRecordsPastExpirationAndGrace() throws Exception {
+        start();
+        long now = System.currentTimeMillis();
+        sweeper.schedule(context("get"), "expired", now - 10000);
+        sweeper.schedule(context("get"), "unscheduled", now - 10000);
+        sweeper.unschedule("unscheduled");
+        sweeper.schedule(context("revalidated"), "stale", now - 10000);
+
+        assertEquals("expired " + (now - 10000) + " 1500", removed.poll(SWEEP_MILLIS, TimeUnit.MILLISECONDS));
+        assertNull(removed.poll(SWEEP_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void removesRecordOnceItExpires() throws Exception {
+        start();
+        long creationTime = System.currentTimeMillis();
+        sweeper.schedule(context("get"), "k", creationTime);
+
+        assertEquals("k " + creationTime + " 1500", removed.poll(1500 + SWEEP_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() >= creationTime + 1500);
+    }
+
+    @Test
+    public void rescheduleUsesNewCreationTime() throws Exception {
+        start();
+        long now = System.currentTimeMillis();
+        sweeper.schedule(context("get"), "k", now - 10000);
+        sweeper.reschedule("k", now - 5000, 1500);
+
+        assertEquals("k " + (now - 5000) + " 1500", removed.poll(SWEEP_MILLIS, TimeUnit.MILLISECONDS));
+        assertNull(removed.poll(SWEEP_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void closeStopsSweeping() throws Exception {
+        start();
+        sweeper.close();
+        sweeper.schedule(context("get"), "k", System.currentTimeMillis() - 10000);
+        assertNull(removed.poll(SWEEP_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private void start() {
+        sweeper.start(new ExpirationSweeper.Remover() {
+            @Override
+            public void removeExpired(String key, long creationTime, long lifetime) {
+                removed.add(key + " " + creationTime + " " + lifetime);
+            }
+        });
+    }
+
+    private static CacheContext context(String name) throws Exception {
+        ServiceMethodInfo info = new ServiceMethodInfo(Service.class.getDeclaredMethod(name, String.class),
+                CachePolicy.UNSPECIFIED, ReturnTypeAdapters.OBSERVABLE);
+        return new CacheContext(info, new Object[]{"id"});
+    }
+}
@@ -0,0 +1,176 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyLockingCacheTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void dropsPendingContentClosedBeforeHolder() throws Exception {
+        MapCache backend = new MapCache();
+        KeyLockingCache cache = new KeyLockingCache(backend);
+        OutputStream holder = cache.newOutputStreamForKey("k");
+        holder.write(bytes("holder"));
+        write(cache, "k", "pending");
+        holder.close();
+        assertEquals("holder", backend.get("k"));
+        assertEquals(1, backend.commits);
+    }
+
+    @Test
+    public void writesPendingContentClosedAfterHolder() throws Exception {
+        MapCache backend = new MapCache();
+        backend.commitStarted = new CountDownLatch(1);
+        backend.commitAllowed = new CountDownLatch(1);
+        final KeyLockingCache cache = new KeyLockingCache(backend);
+        final OutputStream holder = cache.newOutputStreamForKey("k");
+        holder.write(bytes("holder"));
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread closing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    holder.close();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        closing.start();
+        backend.commitStarted.await();
+        write(cache, "k", "pending");
+        backend.commitAllowed.countDown();
+        closing.join();
+        assertNull(failure.get());
+        assertEquals("pending", backend.get("k"));
+    }
+
+    @Test
+    public void keepsLastContentOfConcurrentWriters() throws Exception {
+        MapCache backend = new MapCache();
+        final KeyLockingCache cache = new KeyLockingCache(backend);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Set<String> lastWrites = new HashSet<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final String writer = "w" + t;
+            lastWrites.add(writer + "-199");
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            write(cache, "k", writer + "-" + i);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertTrue(backend.get("k"), lastWrites.contains(backend.get("k")));
+
+        // The key isn't left locked.
+        write(cache, "k", "after");
+        assertEquals("after", backend.get("k"));
+    }
+
+    private static void write(CacheInterface cache, String key, String value) throws IOException {
+        OutputStream out = cache.newOutputStreamForKey(key);
+        out.write(bytes(value));
+        out.close();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+
+    /**
+     * Stores the records in a map when their streams are closed, and fails concurrent
+     * writes of a key like {@code DiskLruCache} does.
+     */
+    static class MapCache implements CacheInterface {
+
+        final Map<String, byte[]> records = new ConcurrentHashMap<>();
+        final Set<String> editing = new HashSet<>();
+        volatile int commits;
+        CountDownLatch commitStarted;
+        CountDownLatch commitAllowed;
+
+        String get(String key) {
+            return new String(records.get(key), UTF_8);
+        }
+
+        @Override
+        public OutputStream newOutputStreamForKey(final String key) throws IOException {
+            synchronized (editing) {
+                if (!editing.add(key)) {
+                    throw new IOException("Concurrent edit of key : " + key);
+                }
+            }
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        if (commitStarted != null) {
+                            commitStarted.countDown();
+                            commitAllowed.await();
+                        }
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    records.put(key, toByteArray());
+                    commits++;
+                    synchronized (editing) {
+                        editing.remove(key);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream getInputStreamForKey(String key) throws IOException {
+            byte[] record = records.get(key);
+            if (record == null) {
+                throw new KeyNotFoundException("key : " + key);
+            }
+            return new ByteArrayInputStream(record);
+        }
+
+        @Override
+        public long getCreationTimeForKey(String key) throws IOException {
+            getInputStreamForKey(key);
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
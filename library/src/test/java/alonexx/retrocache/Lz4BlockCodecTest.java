@@ -0,0 +1,104 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+public class Lz4BlockCodecTest {
+
+    private final int[] hashTable = new int[Lz4BlockCodec.HASH_TABLE_SIZE];
+
+    @Test
+    public void roundTripsInputs() throws Exception {
+        Random random = new Random(1);
+        for (int length : new int[]{0, 1, 12, 13, 100, 4096, 100000}) {
+            byte[] randomBytes = new byte[length];
+            random.nextBytes(randomBytes);
+            assertRoundTrip(randomBytes);
+
+            byte[] repeated = new byte[length];
+            for (int i = 0; i < length; i++) {
+                repeated[i] = (byte) "abcabcabd".charAt(i % 9);
+            }
+            assertRoundTrip(repeated);
+
+            assertRoundTrip(new byte[length]);
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedBlocks() throws Exception {
+        byte[] input = text(1000);
+        byte[] compressed = compress(input);
+        int compressedLength = compressed.length;
+        // The bytes after the length are what a reused buffer holds, and must not be read.
+        byte[] src = Arrays.copyOf(compressed, compressedLength + 64);
+        Arrays.fill(src, compressedLength, src.length, (byte) 0x11);
+        for (int length = 1; length < compressedLength; length++) {
+            Arrays.fill(src, length, compressedLength, (byte) 0x11);
+            assertMalformed(src, length, input.length);
+            System.arraycopy(compressed, length, src, length, compressedLength - length);
+        }
+    }
+
+    @Test
+    public void rejectsMissingOffset() throws Exception {
+        // A literal, then a token that promises a match whose offset was cut off.
+        byte[] src = {0x10, 'a', 0x00, 0x01, 0x00};
+        assertMalformed(src, 3, 5);
+        assertMalformed(src, 4, 5);
+    }
+
+    @Test
+    public void rejectsCorruptedBlocks() throws Exception {
+        byte[] input = text(5000);
+        byte[] compressed = compress(input);
+        Random random = new Random(2);
+        byte[] dst = new byte[input.length];
+        for (int i = 0; i < 10000; i++) {
+            byte[] corrupted = compressed.clone();
+            for (int j = 0; j < 1 + random.nextInt(3); j++) {
+                corrupted[random.nextInt(corrupted.length)] = (byte) random.nextInt();
+            }
+            try {
+                Lz4BlockCodec.decompress(corrupted, corrupted.length, dst, input.length);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    private void assertRoundTrip(byte[] input) throws IOException {
+        byte[] compressed = compress(input);
+        byte[] output = new byte[input.length];
+        Lz4BlockCodec.decompress(compressed, compressed.length, output, input.length);
+        assertArrayEquals(input, output);
+    }
+
+    private byte[] compress(byte[] input) {
+        byte[] dst = new byte[Lz4BlockCodec.maxCompressedLength(input.length)];
+        int length = Lz4BlockCodec.compress(input, input.length, dst, hashTable);
+        return Arrays.copyOf(dst, length);
+    }
+
+    private static byte[] text(int length) {
+        byte[] bytes = new byte[length];
+        Random random = new Random(3);
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) "the quick brown fox ".charAt(random.nextInt(20));
+        }
+        return bytes;
+    }
+
+    private static void assertMalformed(byte[] src, int length, int decompressedLength) {
+        try {
+            Lz4BlockCodec.decompress(src, length, new byte[decompressedLength], decompressedLength);
+            fail("Expected a malformed block at length " + length);
+        } catch (IOException expected) {
+        }
+    }
+}
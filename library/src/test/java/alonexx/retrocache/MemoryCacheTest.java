@@ -0,0 +1,165 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryCacheTest {
+
+    private static final MemoryCache.Weigher LENGTH_WEIGHER = new MemoryCache.Weigher() {
+        @Override
+        public int weigh(String key, Object value) {
+            return ((String) value).length();
+        }
+    };
+
+    @Test
+    public void keepsHitEntriesOverKeysReadOnce() {
+        MemoryCache cache = new MemoryCache(10);
+        for (String key : new String[]{"a", "b", "c", "d", "e"}) {
+            cache.put(key, key, 0);
+        }
+        assertNotNull(cache.get("a"));
+        for (int i = 0; i < 20; i++) {
+            cache.put("once" + i, "once", 0);
+        }
+        assertEquals("a", cache.get("a").value);
+        assertNull(cache.get("b"));
+        assertEquals(10, cache.weight());
+    }
+
+    @Test
+    public void demotesProtectedEntriesBeyondTheirShare() {
+        MemoryCache cache = new MemoryCache(10);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, "v", 0);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(cache.get("k" + i));
+        }
+        // The hits are replayed before the write: the protected segment takes 8 entries,
+        // the 2 least recently used go back to probation, and the eldest is evicted.
+        cache.put("x", "v", 0);
+        assertNull(cache.get("k0"));
+        for (int i = 1; i < 10; i++) {
+            assertNotNull("k" + i, cache.get("k" + i));
+        }
+        assertNotNull(cache.get("x"));
+        assertEquals(10, cache.weight());
+    }
+
+    @Test
+    public void evictsByWeight() {
+        MemoryCache cache = new MemoryCache(100, LENGTH_WEIGHER);
+        cache.put("a", repeat(60), 0);
+        cache.put("b", repeat(30), 0);
+        assertEquals(90, cache.weight());
+        cache.put("c", repeat(50), 0);
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(80, cache.weight());
+
+        cache.put("b", repeat(10), 0);
+        assertEquals(60, cache.weight());
+    }
+
+    @Test
+    public void dropsObjectHeavierThanMaxWeight() {
+        MemoryCache cache = new MemoryCache(100, LENGTH_WEIGHER);
+        cache.put("a", repeat(10), 0);
+        cache.put("b", repeat(10), 0);
+        cache.put("a", repeat(101), 0);
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertEquals(10, cache.weight());
+    }
+
+    @Test
+    public void removesEntriesCreatedBefore() {
+        MemoryCache cache = new MemoryCache(10);
+        cache.put("a", "a", 100);
+        cache.removeIfCreatedBefore("a", 99);
+        assertNotNull(cache.get("a"));
+        cache.removeIfCreatedBefore("a", 100);
+        assertNull(cache.get("a"));
+        cache.removeIfCreatedBefore("missing", 100);
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void clearRemovesHitEntries() {
+        MemoryCache cache = new MemoryCache(10);
+        cache.put("a", "a", 0);
+        cache.put("b", "b", 0);
+        cache.get("a");
+        cache.clear();
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.weight());
+        cache.put("c", "c", 0);
+        assertEquals(1, cache.weight());
+    }
+
+    @Test
+    public void staysWithinMaxWeightUnderConcurrentHitsAndWrites() throws Exception {
+        final MemoryCache cache = new MemoryCache(500, LENGTH_WEIGHER);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        for (int i = 0; i < 100000; i++) {
+                            String key = "k" + random.nextInt(200);
+                            int action = random.nextInt(10);
+                            if (action == 0) {
+                                cache.put(key, repeat(1 + random.nextInt(20)), i);
+                            } else if (action == 1) {
+                                cache.removeIfCreatedBefore(key, i);
+                            } else {
+                                MemoryCache.Entry entry = cache.get(key);
+                                if (entry != null && ((String) entry.value).isEmpty()) {
+                                    throw new AssertionError(key);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertTrue(cache.weight() <= 500);
+
+        cache.clear();
+        assertEquals(0, cache.weight());
+        for (int i = 0; i < 200; i++) {
+            assertNull(cache.get("k" + i));
+        }
+    }
+
+    private static String repeat(int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append('x');
+        }
+        return builder.toString();
+    }
+}
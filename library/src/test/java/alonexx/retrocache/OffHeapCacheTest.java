@@ -0,0 +1,129 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapCacheTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void streamTakesSlabsOfOneSizeClass() throws Exception {
+        OffHeapCache cache = new OffHeapCache(8 * MB);
+        stream(cache, "a", bytes(1000, 1));
+        assertEquals(MB, cache.allocatedSize());
+        assertArrayEquals(bytes(1000, 1), get(cache, "a"));
+    }
+
+    @Test
+    public void streamsLargeRecordsWithinBudget() throws Exception {
+        OffHeapCache cache = new OffHeapCache(8 * MB);
+        for (int length : new int[]{100 * 1024, 300 * 1024, 600 * 1024}) {
+            stream(cache, "k" + length, bytes(length, length));
+            assertArrayEquals(bytes(length, length), get(cache, "k" + length));
+        }
+        assertTrue(cache.allocatedSize() <= 8 * MB);
+    }
+
+    @Test
+    public void reassignsSlabsBetweenSizeClasses() throws Exception {
+        OffHeapCache cache = new OffHeapCache(8 * MB);
+        // One small record in each of the first size classes takes a slab each.
+        for (int i = 0; i < 20; i++) {
+            cache.putBuffer("small" + i, ByteBuffer.wrap(bytes(64 << (i % 8), i)));
+        }
+        for (int i = 0; i < 16; i++) {
+            cache.putBuffer("large" + i, ByteBuffer.wrap(bytes(MB, i)));
+        }
+        assertTrue(cache.allocatedSize() <= 8 * MB);
+        assertArrayEquals(bytes(MB, 15), get(cache, "large15"));
+    }
+
+    @Test
+    public void fillsBudgetWithMixedSizes() throws Exception {
+        OffHeapCache cache = new OffHeapCache(8 * MB);
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            int length = random.nextInt(4) == 0
+                    ? random.nextInt(700 * 1024)
+                    : random.nextInt(8192);
+            byte[] value = bytes(length, i);
+            if (random.nextBoolean()) {
+                cache.putBuffer("k" + i, ByteBuffer.wrap(value));
+            } else {
+                stream(cache, "k" + i, value);
+            }
+            assertArrayEquals(value, get(cache, "k" + i));
+            assertTrue(cache.allocatedSize() <= 8 * MB);
+            assertTrue(cache.size() <= 8 * MB);
+        }
+    }
+
+    @Test
+    public void keepsMemoryOfOpenReaders() throws Exception {
+        OffHeapCache cache = new OffHeapCache(MB, 64 * 1024);
+        cache.putBuffer("a", ByteBuffer.wrap(bytes(1000, 1)));
+        CacheEntry entry = cache.getEntryForKey("a");
+        for (int i = 0; i < 100; i++) {
+            cache.putBuffer("k" + i, ByteBuffer.wrap(bytes(30 * 1024, i)));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy(entry.getInputStream(), out);
+        entry.close();
+        assertArrayEquals(bytes(1000, 1), out.toByteArray());
+    }
+
+    @Test
+    public void removesRecordOnlyIfCreatedAtExpectedTime() throws Exception {
+        OffHeapCache cache = new OffHeapCache(MB, 64 * 1024);
+        cache.putBuffer("a", ByteBuffer.wrap(bytes(1000, 1)));
+        long creationTime = cache.getCreationTimeForKey("a");
+        assertFalse(cache.remove("a", creationTime - 1));
+        assertArrayEquals(bytes(1000, 1), get(cache, "a"));
+
+        assertTrue(cache.remove("a", creationTime));
+        assertFalse(cache.remove("a", creationTime));
+        assertEquals(0, cache.size());
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void stream(CacheInterface cache, String key, byte[] value) throws IOException {
+        OutputStream out = cache.newOutputStreamForKey(key);
+        for (int off = 0; off < value.length; off += 1000) {
+            out.write(value, off, Math.min(1000, value.length - off));
+        }
+        out.close();
+    }
+
+    private static byte[] get(CacheInterface cache, String key) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = cache.getInputStreamForKey(key);
+        copy(in, out);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RecordStreamTest {
+
+    interface Service {
+
+        @StreamCache
+        @Cache(CachePolicy.PREFER_CACHE)
+        @Expiration(value = 1, timeUnit = TimeUnit.DAYS)
+        Observable<String> items(String id);
+    }
+
+    private final KeyRecordingCache cache = new KeyRecordingCache();
+    private final CacheSerializer serializer = new JavaBuiltInCacheSerializer();
+
+    @Test
+    public void replaysCompleteSequence() throws Exception {
+        write("k", Arrays.asList("a", "b", "c"), true);
+
+        TestSubscriber<Object> subscriber = new TestSubscriber<>();
+        RecordStream.replay(cache.getEntryForKey("k"), serializer, context()).subscribe(subscriber);
+        subscriber.assertValues("a", "b", "c");
+        subscriber.assertCompleted();
+    }
+
+    @Test
+    public void replaysItemsAsRequested() throws Exception {
+        write("k", Arrays.asList("a", "b", "c"), true);
+        TestSubscriber<Object> subscriber = TestSubscriber.create(0);
+        RecordStream.replay(cache.getEntryForKey("k"), serializer, context()).subscribe(subscriber);
+        subscriber.assertNoValues();
+        subscriber.requestMore(2);
+        subscriber.assertValues("a", "b");
+        subscriber.requestMore(2);
+        subscriber.assertValues("a", "b", "c");
+        subscriber.assertCompleted();
+    }
+
+    @Test
+    public void failsReplayOfAbortedAndTruncatedSequences() throws Exception {
+        write("k", Arrays.asList("a", "b"), false);
+        TestSubscriber<Object> subscriber = new TestSubscriber<>();
+        RecordStream.replay(cache.getEntryForKey("k"), serializer, context()).subscribe(subscriber);
+        subscriber.assertValues("a", "b");
+        subscriber.assertError(IOException.class);
+
+        write("k", Arrays.asList("a", "b"), true);
+        ByteBuffer buffer = cache.getEntryForKey("k").getBuffer();
+        byte[] content = new byte[buffer.remaining()];
+        buffer.get(content);
+        cache.putBuffer("truncated", ByteBuffer.wrap(content, 0, content.length - 4));
+        subscriber = new TestSubscriber<>();
+        RecordStream.replay(cache.getEntryForKey("truncated"), serializer, context()).subscribe(subscriber);
+        subscriber.assertValues("a", "b");
+        subscriber.assertError(IOException.class);
+    }
+
+    @Test
+    public void readsBackPointer() throws Exception {
+        RecordStream.writePointer(cache, "k", 42L);
+        assertEquals(42L, RecordStream.readPointer(cache.getEntryForKey("k")));
+
+        write("sequence", Collections.singletonList("a"), true);
+        try {
+            RecordStream.readPointer(cache.getEntryForKey("sequence"));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void keepsLastCompleteSequenceWhenSaveFails() throws Exception {
+        Service service = Retrocache.cache(Service.class, source("a", "b", "c")).cache(cache).create();
+        assertEquals(Arrays.asList("a", "b", "c"), service.items("id").toList().toBlocking().single());
+
+        Service failing = Retrocache.cache(Service.class, new Service() {
+            @Override
+            public Observable<String> items(String id) {
+                return Observable.just("x").concatWith(Observable.<String>error(new IOException("down")));
+            }
+        }).cache(cache).overrideCachePolicy(CachePolicy.STORE_ONLY).create();
+        TestSubscriber<String> subscriber = new TestSubscriber<>();
+        failing.items("id").subscribe(subscriber);
+        subscriber.assertValues("x");
+        subscriber.assertError(IOException.class);
+
+        Service unsubscribed = Retrocache.cache(Service.class, source("y", "z"))
+                .cache(cache).overrideCachePolicy(CachePolicy.STORE_ONLY).create();
+        assertEquals("y", unsubscribed.items("id").toBlocking().first());
+
+        assertEquals(Arrays.asList("a", "b", "c"), service.items("id").toList().toBlocking().single());
+        assertEquals(2, cache.keys.size());
+    }
+
+    @Test
+    public void replacesSequenceOnceNewOneCompletes() throws Exception {
+        Service service = Retrocache.cache(Service.class, source("a", "b")).cache(cache).create();
+        service.items("id").toList().toBlocking().single();
+        Set<String> firstKeys = new HashSet<>(cache.keys);
+
+        Service refreshing = Retrocache.cache(Service.class, source("c", "d"))
+                .cache(cache).overrideCachePolicy(CachePolicy.STORE_ONLY).create();
+        refreshing.items("id").toList().toBlocking().single();
+
+        assertEquals(Arrays.asList("c", "d"), service.items("id").toList().toBlocking().single());
+        assertEquals(2, cache.keys.size());
+        firstKeys.retainAll(cache.keys);
+        assertEquals(1, firstKeys.size());
+    }
+
+    private static Service source(final String... items) {
+        return new Service() {
+            @Override
+            public Observable<String> items(String id) {
+                return Observable.from(items);
+            }
+        };
+    }
+
+    private void write(String key, List<String> items, boolean complete) throws Exception {
+        OutputStream out = cache.newOutputStreamForKey(key);
+        RecordStream.Writer writer = new RecordStream.Writer(out, serializer, context());
+        for (String item : items) {
+            writer.write(item);
+        }
+        if (complete) {
+            writer.complete();
+        } else {
+            writer.abort();
+        }
+    }
+
+    private static CacheContext context() throws Exception {
+        ServiceMethodInfo info = new ServiceMethodInfo(Service.class.getDeclaredMethod("items", String.class),
+                CachePolicy.UNSPECIFIED, ReturnTypeAdapters.OBSERVABLE);
+        return new CacheContext(info, new Object[]{"id"});
+    }
+
+    /**
+     * Records the keys that have a record.
+     */
+    static class KeyRecordingCache extends OffHeapCache {
+
+        final Set<String> keys = Collections.synchronizedSet(new HashSet<String>());
+
+        KeyRecordingCache() {
+            super(1024 * 1024, 64 * 1024);
+        }
+
+        @Override
+        public OutputStream newOutputStreamForKey(String key) throws IOException {
+            keys.add(key);
+            return super.newOutputStreamForKey(key);
+        }
+
+        @Override
+        public void putBuffer(String key, ByteBuffer content) throws IOException {
+            keys.add(key);
+            super.putBuffer(key, content);
+        }
+
+        @Override
+        public synchronized boolean remove(String key) {
+            keys.remove(key);
+            return super.remove(key);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Completable;
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Func0;
+import rx.observables.ConnectableObservable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ReturnTypeAdaptersTest {
+
+    public interface Service {
+
+        @Expiration(value = 1, timeUnit = TimeUnit.DAYS)
+        String plain(String id);
+
+        @Cache(CachePolicy.IGNORE_CACHE)
+        @Expiration(value = 1, timeUnit = TimeUnit.DAYS)
+        String annotated(String id);
+
+        @Expiration(value = 1, timeUnit = TimeUnit.DAYS)
+        Observable<String> observable(String id);
+
+        @Expiration(value = 1, timeUnit = TimeUnit.DAYS)
+        Completable complete();
+
+        ConnectableObservable<String> connectable();
+
+        Subscription subscribe();
+
+        FutureTask<String> task();
+
+        List<String> list();
+    }
+
+    static class Target implements Service {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public String plain(String id) {
+            calls.incrementAndGet();
+            return "plain-" + id;
+        }
+
+        @Override
+        public String annotated(String id) {
+            calls.incrementAndGet();
+            return "annotated-" + id;
+        }
+
+        @Override
+        public Observable<String> observable(final String id) {
+            return Observable.defer(new Func0<Observable<String>>() {
+                @Override
+                public Observable<String> call() {
+                    calls.incrementAndGet();
+                    return Observable.just("observable-" + id);
+                }
+            });
+        }
+
+        @Override
+        public Completable complete() {
+            calls.incrementAndGet();
+            return Completable.complete();
+        }
+
+        @Override
+        public ConnectableObservable<String> connectable() {
+            return null;
+        }
+
+        @Override
+        public Subscription subscribe() {
+            return null;
+        }
+
+        @Override
+        public FutureTask<String> task() {
+            return null;
+        }
+
+        @Override
+        public List<String> list() {
+            return null;
+        }
+    }
+
+    @Test
+    public void synchronousAdapterRejectsAsynchronousTypes() throws Exception {
+        for (String name : new String[]{"complete", "connectable", "subscribe", "task"}) {
+            assertNull(name, ReturnTypeAdapters.SYNCHRONOUS.getItemType(returnType(name)));
+        }
+        assertEquals(String.class, ReturnTypeAdapters.SYNCHRONOUS.getItemType(returnType("plain")));
+        assertEquals(returnType("list"), ReturnTypeAdapters.SYNCHRONOUS.getItemType(returnType("list")));
+    }
+
+    @Test
+    public void observableAdapterAcceptsSubclasses() throws Exception {
+        assertEquals(String.class, ReturnTypeAdapters.OBSERVABLE.getItemType(returnType("connectable")));
+        assertEquals(String.class, ReturnTypeAdapters.OBSERVABLE.getItemType(returnType("observable")));
+    }
+
+    @Test
+    public void overriddenPolicyCachesOnlyObservablesAndAnnotatedMethods() throws Exception {
+        Target target = new Target();
+        Service service = Retrocache.cache(Service.class, (Service) target)
+                .cache(new OffHeapCache(1024 * 1024, 64 * 1024))
+                .overrideCachePolicy(CachePolicy.PREFER_CACHE)
+                .create();
+
+        service.plain("a");
+        service.plain("a");
+        assertEquals(2, target.calls.getAndSet(0));
+
+        service.complete().await();
+        service.complete().await();
+        assertEquals(2, target.calls.getAndSet(0));
+
+        assertEquals("annotated-a", service.annotated("a"));
+        assertEquals("annotated-a", service.annotated("a"));
+        assertEquals(1, target.calls.getAndSet(0));
+
+        service.observable("a").toBlocking().first();
+        service.observable("a").toBlocking().first();
+        assertEquals(1, target.calls.getAndSet(0));
+    }
+
+    private static Type returnType(String name) {
+        for (Method method : Service.class.getDeclaredMethods()) {
+            if (method.getName().equals(name)) {
+                return method.getGenericReturnType();
+            }
+        }
+        throw new AssertionError(name);
+    }
+}
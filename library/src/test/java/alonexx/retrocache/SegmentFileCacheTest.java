@@ -0,0 +1,183 @@
+package alonexx.retrocache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentFileCacheTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversRecordsAfterReopen() throws Exception {
+        File directory = folder.newFolder();
+        SegmentFileCache cache = new SegmentFileCache(directory, 1024 * 1024, SEGMENT_SIZE);
+        put(cache, "a", bytes(100, 1));
+        put(cache, "b", bytes(200, 2));
+        put(cache, "a", bytes(300, 3));
+        assertTrue(cache.remove("b"));
+        cache.close();
+
+        cache = new SegmentFileCache(directory, 1024 * 1024, SEGMENT_SIZE);
+        assertArrayEquals(bytes(300, 3), get(cache, "a"));
+        assertMissing(cache, "b");
+        cache.close();
+    }
+
+    @Test
+    public void truncatesSegmentAtCorruptedRecord() throws Exception {
+        File directory = folder.newFolder();
+        SegmentFileCache cache = new SegmentFileCache(directory, 1024 * 1024, SEGMENT_SIZE);
+        put(cache, "a", bytes(100, 1));
+        put(cache, "b", bytes(100, 2));
+        cache.close();
+
+        // Flips the last byte of the value of "b", as a torn write would leave it.
+        File segment = new File(directory, "segment-0.seg");
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        long lastByte = 2 * (20 + 1 + 100) - 1;
+        raf.seek(lastByte);
+        int b = raf.read();
+        raf.seek(lastByte);
+        raf.write(b ^ 0xFF);
+        raf.close();
+
+        cache = new SegmentFileCache(directory, 1024 * 1024, SEGMENT_SIZE);
+        assertArrayEquals(bytes(100, 1), get(cache, "a"));
+        assertMissing(cache, "b");
+        put(cache, "c", bytes(100, 3));
+        cache.close();
+
+        cache = new SegmentFileCache(directory, 1024 * 1024, SEGMENT_SIZE);
+        assertArrayEquals(bytes(100, 1), get(cache, "a"));
+        assertMissing(cache, "b");
+        assertArrayEquals(bytes(100, 3), get(cache, "c"));
+        cache.close();
+    }
+
+    @Test
+    public void recoveryDoesNotGrowSegmentFiles() throws Exception {
+        File directory = folder.newFolder();
+        SegmentFileCache cache = new SegmentFileCache(directory, 1024 * 1024, SEGMENT_SIZE);
+        // Mostly live, so that the recovered segment isn't compacted away.
+        put(cache, "a", bytes(SEGMENT_SIZE * 3 / 4, 1));
+        cache.close();
+
+        cache = new SegmentFileCache(directory, 1024 * 1024, SEGMENT_SIZE);
+        put(cache, "b", bytes(100, 2));
+        cache.close();
+
+        File[] files = directory.listFiles();
+        assertEquals(2, files.length);
+        for (File file : files) {
+            assertEquals(SEGMENT_SIZE, file.length());
+        }
+    }
+
+    @Test
+    public void sizeCountsMappedSegments() throws Exception {
+        SegmentFileCache cache = new SegmentFileCache(folder.newFolder(), 1024 * 1024, SEGMENT_SIZE);
+        assertEquals(0, cache.size());
+        put(cache, "a", bytes(100, 1));
+        assertEquals(SEGMENT_SIZE, cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void capsSegmentAtMaxSize() throws Exception {
+        File directory = folder.newFolder();
+        SegmentFileCache cache = new SegmentFileCache(directory, 4096);
+        put(cache, "a", bytes(100, 1));
+        assertEquals(4096, cache.size());
+        assertEquals(4096, directory.listFiles()[0].length());
+        cache.close();
+    }
+
+    @Test
+    public void evictsOldestSegmentsToFitMaxSize() throws Exception {
+        SegmentFileCache cache = new SegmentFileCache(folder.newFolder(), 3 * SEGMENT_SIZE, SEGMENT_SIZE);
+        for (int i = 0; i < 200; i++) {
+            put(cache, "k" + i, bytes(1000, i));
+            assertTrue(cache.size() <= cache.getMaxSize());
+        }
+        assertMissing(cache, "k0");
+        assertArrayEquals(bytes(1000, 199), get(cache, "k199"));
+        cache.close();
+    }
+
+    @Test
+    public void dropsRecordLargerThanMaxSize() throws Exception {
+        SegmentFileCache cache = new SegmentFileCache(folder.newFolder(), 4096, 1024);
+        put(cache, "a", bytes(100, 1));
+        put(cache, "b", bytes(8192, 2));
+        assertMissing(cache, "b");
+        assertTrue(cache.size() <= cache.getMaxSize());
+        put(cache, "c", bytes(100, 3));
+        assertArrayEquals(bytes(100, 3), get(cache, "c"));
+        cache.close();
+    }
+
+    @Test
+    public void removesRecordOnlyIfCreatedAtExpectedTime() throws Exception {
+        SegmentFileCache cache = new SegmentFileCache(folder.newFolder(), 1024 * 1024, SEGMENT_SIZE);
+        put(cache, "a", bytes(100, 1));
+        long creationTime = cache.getCreationTimeForKey("a");
+        assertFalse(cache.remove("a", creationTime - 1));
+        assertArrayEquals(bytes(100, 1), get(cache, "a"));
+
+        assertTrue(cache.remove("a", creationTime));
+        assertMissing(cache, "a");
+        assertFalse(cache.remove("a", creationTime));
+        cache.close();
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) seed);
+        bytes[0] = (byte) length;
+        return bytes;
+    }
+
+    private static void put(CacheInterface cache, String key, byte[] value) throws IOException {
+        OutputStream out = cache.newOutputStreamForKey(key);
+        out.write(value);
+        out.close();
+    }
+
+    private static byte[] get(CacheInterface cache, String key) throws IOException {
+        InputStream in = cache.getInputStreamForKey(key);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static void assertMissing(CacheInterface cache, String key) throws IOException {
+        try {
+            cache.getCreationTimeForKey(key);
+            fail("Expected no record for " + key);
+        } catch (KeyNotFoundException expected) {
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShardedCacheTest {
+
+    private static final int KEY_COUNT = 10000;
+
+    @Test
+    public void mapsKeyToSameShardAcrossInstances() throws Exception {
+        ShardedCache first = new ShardedCache(shards(4));
+        ShardedCache second = new ShardedCache(shards(4));
+        for (int i = 0; i < KEY_COUNT; i++) {
+            assertEquals(first.getShardIndex("key" + i), second.getShardIndex("key" + i));
+        }
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void spreadsKeysEvenly() throws Exception {
+        ShardedCache cache = new ShardedCache(shards(4));
+        int[] counts = new int[4];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            counts[cache.getShardIndex("key" + i)]++;
+        }
+        for (int count : counts) {
+            assertTrue(Arrays.toString(counts), count > KEY_COUNT / 4 * 0.7 && count < KEY_COUNT / 4 * 1.3);
+        }
+        cache.close();
+    }
+
+    @Test
+    public void addingShardMovesOnlyItsShareOfKeys() throws Exception {
+        ShardedCache four = new ShardedCache(shards(4));
+        ShardedCache five = new ShardedCache(shards(5));
+        int moved = 0;
+        for (int i = 0; i < KEY_COUNT; i++) {
+            int before = four.getShardIndex("key" + i);
+            int after = five.getShardIndex("key" + i);
+            if (before != after) {
+                // A key only ever moves to the new shard.
+                assertEquals(4, after);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > KEY_COUNT / 5 * 0.7 && moved < KEY_COUNT / 5 * 1.3);
+        four.close();
+        five.close();
+    }
+
+    @Test
+    public void batchOperationsGroupKeysByShard() throws Exception {
+        List<OffHeapCache> shards = shards(4);
+        ShardedCache cache = new ShardedCache(shards);
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            contents.put("key" + i, new byte[]{(byte) i});
+        }
+        cache.putAll(contents);
+
+        for (int i = 0; i < 100; i++) {
+            String key = "key" + i;
+            int index = cache.getShardIndex(key);
+            for (int j = 0; j < shards.size(); j++) {
+                try {
+                    shards.get(j).getCreationTimeForKey(key);
+                    assertEquals(index, j);
+                } catch (KeyNotFoundException e) {
+                    assertTrue(index != j);
+                }
+            }
+        }
+        assertEquals(100, cache.getStats().getWriteCount());
+        assertEquals(100, cache.getStats().getBytesWritten());
+
+        List<String> keys = new ArrayList<>(contents.keySet());
+        keys.add("missing");
+        Map<String, CacheEntry> entries = cache.getAll(keys);
+        assertEquals(contents.keySet(), entries.keySet());
+        for (Map.Entry<String, CacheEntry> entry : entries.entrySet()) {
+            byte[] content = new byte[1];
+            assertEquals(1, entry.getValue().getInputStream().read(content));
+            assertArrayEquals(contents.get(entry.getKey()), content);
+            entry.getValue().close();
+        }
+        assertEquals(100, cache.getStats().getHitCount());
+        assertEquals(1, cache.getStats().getMissCount());
+        cache.close();
+    }
+
+    @Test
+    public void closesEveryShardWhenOneFails() throws Exception {
+        List<ClosingCache> shards = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            shards.add(new ClosingCache(i == 1));
+        }
+        ShardedCache cache = new ShardedCache(shards);
+        try {
+            cache.close();
+            fail();
+        } catch (IOException expected) {
+        }
+        for (ClosingCache shard : shards) {
+            assertTrue(shard.closed);
+        }
+    }
+
+    @Test
+    public void closesCreatedShardsWhenFactoryFails() throws Exception {
+        final List<ClosingCache> created = new ArrayList<>();
+        try {
+            new ShardedCache(4, 1024 * 1024, new ShardedCache.ShardFactory() {
+                @Override
+                public CacheInterface create(int index, long maxSize) throws IOException {
+                    if (index == 2) {
+                        throw new IOException("full");
+                    }
+                    ClosingCache shard = new ClosingCache(false);
+                    created.add(shard);
+                    return shard;
+                }
+            });
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(2, created.size());
+        for (ClosingCache shard : created) {
+            assertTrue(shard.closed);
+        }
+    }
+
+    private static List<OffHeapCache> shards(int count) {
+        List<OffHeapCache> shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(new OffHeapCache(1024 * 1024, 64 * 1024));
+        }
+        return shards;
+    }
+
+    /**
+     * Holds no records, records that it's closed, and may fail to close.
+     */
+    static class ClosingCache implements CacheInterface {
+
+        final boolean failOnClose;
+        volatile boolean closed;
+
+        ClosingCache(boolean failOnClose) {
+            this.failOnClose = failOnClose;
+        }
+
+        @Override
+        public OutputStream newOutputStreamForKey(String key) throws IOException {
+            throw new IOException("read only");
+        }
+
+        @Override
+        public InputStream getInputStreamForKey(String key) throws IOException {
+            throw new KeyNotFoundException("key : " + key);
+        }
+
+        @Override
+        public long getCreationTimeForKey(String key) throws IOException {
+            throw new KeyNotFoundException("key : " + key);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (failOnClose) {
+                throw new IOException("can't close");
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package alonexx.retrocache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    /**
+     * The span of a bucket of the finest level, by which a key may expire late.
+     */
+    private static final long RESOLUTION = 1 << 10;
+
+    private static final long START = 1500000000000L;
+
+    private final TimerWheel wheel = new TimerWheel(START);
+    private final List<TimerWheel.Node> expired = new ArrayList<>();
+    private final Map<String, Long> scheduledAt = new HashMap<>();
+
+    @Test
+    public void expiresKeyOnceWheelPassesItsDeadline() {
+        wheel.schedule("k", START, START + 500);
+        wheel.advance(START + 499, expired);
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(START + 500 + RESOLUTION, expired);
+        assertEquals(1, expired.size());
+        assertEquals("k", expired.get(0).key);
+        assertEquals(START, expired.get(0).creationTime);
+        assertEquals(START + 500, expired.get(0).deadline);
+        assertFalse(wheel.contains("k"));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cascadesKeysDownTheLevels() {
+        long[] delays = {
+                TimeUnit.SECONDS.toMillis(5), TimeUnit.MINUTES.toMillis(2),
+                TimeUnit.HOURS.toMillis(3), TimeUnit.DAYS.toMillis(2), TimeUnit.DAYS.toMillis(300)};
+        Map<String, Long> deadlines = new HashMap<>();
+        for (long delay : delays) {
+            schedule(deadlines, "k" + delay, START, START + delay);
+        }
+        long now = START;
+        long step = 1;
+        while (!deadlines.isEmpty()) {
+            now += step;
+            // Steps grow so that every level of the wheel turns, without taking forever.
+            step = Math.min(step * 2, TimeUnit.MINUTES.toMillis(10));
+            advanceAndCheck(now, deadlines);
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void expiresEverythingDueAfterLongSleep() {
+        Random random = new Random(1);
+        Map<String, Long> deadlines = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            long deadline = START + (long) (random.nextDouble() * TimeUnit.DAYS.toMillis(400));
+            schedule(deadlines, "k" + i, START, deadline);
+        }
+        advanceAndCheck(START + TimeUnit.DAYS.toMillis(100), deadlines);
+        advanceAndCheck(START + TimeUnit.DAYS.toMillis(100) + 1, deadlines);
+        advanceAndCheck(START + TimeUnit.DAYS.toMillis(500), deadlines);
+        assertTrue(deadlines.isEmpty());
+    }
+
+    @Test
+    public void expiresRandomDeadlinesInTime() {
+        Random random = new Random(2);
+        Map<String, Long> deadlines = new HashMap<>();
+        long now = START;
+        for (int round = 0; round < 20000; round++) {
+            String key = "k" + random.nextInt(2000);
+            if (random.nextInt(10) == 0) {
+                wheel.unschedule(key);
+                deadlines.remove(key);
+            } else {
+                long range = random.nextBoolean() ? 5000 : TimeUnit.DAYS.toMillis(3);
+                long deadline = now + (long) (random.nextDouble() * range) - 1000;
+                schedule(deadlines, key, now, deadline);
+            }
+            if (random.nextInt(4) == 0) {
+                now += random.nextBoolean() ? random.nextInt(3000) : random.nextInt(10000000);
+                advanceAndCheck(now, deadlines);
+            }
+        }
+        advanceAndCheck(now + TimeUnit.DAYS.toMillis(4), deadlines);
+        assertTrue(deadlines.isEmpty());
+    }
+
+    @Test
+    public void rescheduleReplacesDeadline() {
+        wheel.schedule("k", START, START + 1000);
+        wheel.schedule("k", START + 500, START + TimeUnit.HOURS.toMillis(1));
+        assertEquals(1, wheel.size());
+
+        wheel.advance(START + TimeUnit.MINUTES.toMillis(30), expired);
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(START + TimeUnit.HOURS.toMillis(1) + RESOLUTION, expired);
+        assertEquals(1, expired.size());
+        assertEquals(START + 500, expired.get(0).creationTime);
+    }
+
+    @Test
+    public void unscheduledKeyNeverExpires() {
+        wheel.schedule("k", START, START + 1000);
+        wheel.schedule("other", START, START + 1000);
+        wheel.unschedule("k");
+        wheel.unschedule("missing");
+        assertFalse(wheel.contains("k"));
+
+        wheel.advance(START + TimeUnit.DAYS.toMillis(1), expired);
+        assertEquals(1, expired.size());
+        assertEquals("other", expired.get(0).key);
+    }
+
+    @Test
+    public void ignoresTimeGoingBackwards() {
+        wheel.schedule("k", START, START + 5000);
+        wheel.advance(START - 10000, expired);
+        wheel.advance(START + 5000 + RESOLUTION, expired);
+        assertEquals(1, expired.size());
+    }
+
+    /**
+     * Advances the wheel to {@code now}, and checks that the keys that expired were due,
+     * and that the ones still scheduled aren't due before the bucket of {@code now}.
+     * A key whose deadline had already passed when it was scheduled is due from then.
+     */
+    private void advanceAndCheck(long now, Map<String, Long> deadlines) {
+        expired.clear();
+        wheel.advance(now, expired);
+        for (TimerWheel.Node node : expired) {
+            Long deadline = deadlines.remove(node.key);
+            assertEquals(node.key, deadline.longValue(), node.deadline);
+            assertTrue(node.key + " expired early", node.deadline <= now);
+        }
+        for (Map.Entry<String, Long> deadline : deadlines.entrySet()) {
+            long due = Math.max(deadline.getValue(), scheduledAt.get(deadline.getKey()));
+            assertTrue(deadline.getKey() + " expired late", due / RESOLUTION >= now / RESOLUTION);
+            assertTrue(wheel.contains(deadline.getKey()));
+        }
+        assertEquals(deadlines.size(), wheel.size());
+    }
+
+    private void schedule(Map<String, Long> deadlines, String key, long now, long deadline) {
+        wheel.schedule(key, now, deadline);
+        deadlines.put(key, deadline);
+        scheduledAt.put(key, now);
+    }
+}
@@ -0,0 +1,81 @@
+package alonexx.retrocache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import rx.Observable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WarmUpRecorderTest {
+
+    interface Service {
+
+        Observable<String> get(String id);
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void savesHottestCalls() throws Exception {
+        File file = new File(folder.getRoot(), "warm-up");
+        WarmUpRecorder recorder = new WarmUpRecorder(file, 3);
+        ServiceMethodInfo info = info();
+        for (int i = 0; i < 5; i++) {
+            for (int hit = 0; hit <= i; hit++) {
+                recorder.record("k" + i, info, new Object[]{"id" + i});
+            }
+        }
+        recorder.save();
+
+        List<WarmUpRecorder.HotCall> loaded = recorder.load();
+        assertEquals(3, loaded.size());
+        assertEquals("id4", loaded.get(0).args[0]);
+        assertEquals(2, loaded.get(0).hits.get());
+        assertEquals("id3", loaded.get(1).args[0]);
+        assertEquals("id2", loaded.get(2).args[0]);
+    }
+
+    @Test
+    public void trimKeepsHottestCallsWhileRecording() throws Exception {
+        final File file = new File(folder.getRoot(), "warm-up");
+        final WarmUpRecorder recorder = new WarmUpRecorder(file, 10);
+        final ServiceMethodInfo info = info();
+        for (int i = 0; i < 10; i++) {
+            for (int hit = 0; hit < 1000; hit++) {
+                recorder.record("hot" + i, info, new Object[]{"hot" + i});
+            }
+        }
+        Thread recording = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100000; i++) {
+                    recorder.record("cold" + (i % 500), info, new Object[]{"cold"});
+                }
+            }
+        });
+        recording.start();
+        while (recording.isAlive()) {
+            recorder.trim();
+        }
+        recorder.trim();
+        recorder.save();
+
+        List<WarmUpRecorder.HotCall> loaded = recorder.load();
+        assertEquals(10, loaded.size());
+        for (WarmUpRecorder.HotCall call : loaded) {
+            assertTrue(((String) call.args[0]).startsWith("hot"));
+        }
+    }
+
+    private static ServiceMethodInfo info() throws Exception {
+        return new ServiceMethodInfo(Service.class.getDeclaredMethod("get", String.class),
+                CachePolicy.PREFER_CACHE, ReturnTypeAdapters.OBSERVABLE);
+    }
+}
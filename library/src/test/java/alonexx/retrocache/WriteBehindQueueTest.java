@@ -0,0 +1,170 @@
+package alonexx.retrocache;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindQueueTest {
+
+    private final BlockingWriter writer = new BlockingWriter();
+    private WriteBehindQueue queue;
+
+    @After
+    public void tearDown() throws Exception {
+        writer.release();
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void readsBackQueuedSavesUntilWritten() throws Exception {
+        start(4, OverflowPolicy.BLOCK);
+        queue.enqueue("a", null, "a1", 1);
+        writer.awaitWriting();
+        queue.enqueue("b", null, "b1", 1);
+        queue.enqueue("b", null, "b2", 2);
+        assertEquals("a1", queue.get("a").object);
+        assertEquals("b2", queue.get("b").object);
+
+        writer.release();
+        queue.flush();
+        assertNull(queue.get("a"));
+        assertNull(queue.get("b"));
+        assertEquals("[[a1], [b2]]", writer.batches());
+    }
+
+    @Test
+    public void dropNewestReadsBackTheSaveStillQueued() throws Exception {
+        start(1, OverflowPolicy.DROP_NEWEST);
+        queue.enqueue("a", null, "a1", 1);
+        writer.awaitWriting();
+        queue.enqueue("b", null, "b1", 1);
+        queue.enqueue("b", null, "b2", 2);
+        assertEquals("b1", queue.get("b").object);
+        queue.enqueue("c", null, "c1", 1);
+        assertNull(queue.get("c"));
+
+        writer.release();
+        queue.flush();
+        assertNull(queue.get("b"));
+        assertEquals("[[a1], [b1]]", writer.batches());
+    }
+
+    @Test
+    public void dropOldestDropsQueuedSave() throws Exception {
+        start(1, OverflowPolicy.DROP_OLDEST);
+        queue.enqueue("a", null, "a1", 1);
+        writer.awaitWriting();
+        queue.enqueue("b", null, "b1", 1);
+        queue.enqueue("c", null, "c1", 1);
+        assertNull(queue.get("b"));
+        assertEquals("c1", queue.get("c").object);
+
+        writer.release();
+        queue.flush();
+        assertEquals("[[a1], [c1]]", writer.batches());
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws Exception {
+        start(1, OverflowPolicy.BLOCK);
+        queue.enqueue("a", null, "a1", 1);
+        writer.awaitWriting();
+        queue.enqueue("b", null, "b1", 1);
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.enqueue("c", null, "c1", 1);
+            }
+        });
+        blocked.start();
+        blocked.join(200);
+        assertTrue(blocked.isAlive());
+
+        writer.release();
+        blocked.join();
+        queue.flush();
+        assertEquals(3, writer.written().size());
+    }
+
+    @Test
+    public void closeWritesQueuedSavesThenWritesOnCallingThread() throws Exception {
+        start(8, OverflowPolicy.BLOCK);
+        queue.enqueue("a", null, "a1", 1);
+        writer.awaitWriting();
+        queue.enqueue("b", null, "b1", 1);
+        queue.enqueue("c", null, "c1", 1);
+        writer.release();
+        queue.close();
+        assertEquals(3, writer.written().size());
+
+        queue.enqueue("d", null, "d1", 1);
+        assertEquals(4, writer.written().size());
+        assertNull(queue.get("d"));
+    }
+
+    private void start(int capacity, OverflowPolicy overflowPolicy) {
+        queue = new WriteBehindQueue(capacity, 8, overflowPolicy);
+        queue.start(writer);
+    }
+
+    /**
+     * Records the batches it writes, and blocks in the first one until it's released.
+     */
+    static class BlockingWriter implements WriteBehindQueue.Writer {
+
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final List<List<Object>> batches = new ArrayList<>();
+
+        @Override
+        public void write(List<WriteBehindQueue.PendingWrite> writes) {
+            List<Object> batch = new ArrayList<>();
+            for (WriteBehindQueue.PendingWrite write : writes) {
+                batch.add(write.object);
+            }
+            synchronized (this) {
+                batches.add(batch);
+            }
+            writing.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onWriteFailed(List<WriteBehindQueue.PendingWrite> writes, Throwable e) {
+        }
+
+        void awaitWriting() throws InterruptedException {
+            assertTrue(writing.await(5, TimeUnit.SECONDS));
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        synchronized String batches() {
+            return batches.toString();
+        }
+
+        synchronized List<Object> written() {
+            List<Object> written = new ArrayList<>();
+            for (List<Object> batch : batches) {
+                written.addAll(batch);
+            }
+            return written;
+        }
+    }
+}